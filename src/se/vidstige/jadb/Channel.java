@@ -0,0 +1,30 @@
+package se.vidstige.jadb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A two-way connection to a service on the device, e.g. a TCP port or an interactive shell.
+ */
+public class Channel implements Closeable {
+    private final Transport transport;
+
+    Channel(Transport transport) {
+        this.transport = transport;
+    }
+
+    public InputStream getInputStream() {
+        return transport.getInputStream();
+    }
+
+    public OutputStream getOutputStream() {
+        return transport.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+}
@@ -0,0 +1,131 @@
+package se.vidstige.jadb;
+
+import se.vidstige.jadb.managers.Bash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Shell commands to run in a single shell invocation, see {@link JadbDevice#executeBatch(CommandBatch)}.</p>
+ *
+ * <p>Each command is followed by a marker carrying its exit status, which is used to split the combined output per
+ * command again. The commands run one after the other whatever their exit status.</p>
+ *
+ * <pre>
+ * List&lt;CommandResult&gt; results = device.executeBatch(new CommandBatch()
+ *         .add("getprop", "ro.product.model")
+ *         .add("dumpsys", "battery")
+ *         .add("df", "/data"));
+ * </pre>
+ */
+public class CommandBatch {
+    /**
+     * Printed in front of each exit status, also by the managers which run their own shell lines.
+     */
+    public static final String MARKER = "x-jadb-exit-status:";
+
+    private final List<String> commands = new ArrayList<>();
+
+    /**
+     * Adds a command, the arguments are quoted as in {@link JadbDevice#executeShell(String, String...)}.
+     */
+    public CommandBatch add(String command, String... args) {
+        StringBuilder line = new StringBuilder(command);
+        for (String arg : args) {
+            line.append(" ").append(Bash.quote(arg));
+        }
+        commands.add(line.toString());
+        return this;
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    public boolean isEmpty() {
+        return commands.isEmpty();
+    }
+
+    /**
+     * Reads the output of a command up to the line with its exit status, which is echoed after {@link #MARKER}. The
+     * marker is a fixed string, so the output must not be anything which could contain it, such as file content.
+     */
+    public static CommandResult readResult(InputStream in) throws IOException, JadbException {
+        byte[] marker = MARKER.getBytes(StandardCharsets.UTF_8);
+        byte[] buffer = new byte[8 * 1024];
+        int length = 0;
+        // Only new bytes are searched, plus the ones a marker split across reads could start in
+        int searched = 0;
+        int found = -1;
+        int n;
+        while ((n = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += n;
+            if (found == -1) {
+                found = indexOf(buffer, length, marker, searched);
+                searched = found == -1 ? Math.max(searched, length - marker.length + 1) : found + marker.length;
+            }
+            if (found != -1) {
+                int newline = indexOf(buffer, length, new byte[] {'\n'}, searched);
+                if (newline != -1) {
+                    int start = found + marker.length;
+                    String status = new String(buffer, start, newline - start, StandardCharsets.UTF_8);
+                    try {
+                        return new CommandResult(new String(buffer, 0, found, StandardCharsets.UTF_8),
+                                Integer.parseInt(status.trim()));
+                    } catch (NumberFormatException e) {
+                        throw new JadbException("Malformed exit status " + status);
+                    }
+                }
+                searched = length;
+            }
+            if (length == buffer.length) buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        }
+        throw new JadbException("Command ended without exit status: "
+                + new String(buffer, 0, length, StandardCharsets.UTF_8));
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern, int from) {
+        for (int i = from; i <= length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) j++;
+            if (j == pattern.length) return i;
+        }
+        return -1;
+    }
+
+    String getShellLine() {
+        StringBuilder shellLine = new StringBuilder();
+        for (String command : commands) {
+            if (shellLine.length() > 0) shellLine.append("; ");
+            shellLine.append(command).append("; echo ").append(MARKER).append("$?");
+        }
+        return shellLine.toString();
+    }
+
+    List<CommandResult> parse(String output) throws JadbException {
+        List<CommandResult> results = new ArrayList<>(commands.size());
+        int position = 0;
+        while (results.size() < commands.size()) {
+            int marker = output.indexOf(MARKER, position);
+            if (marker == -1) {
+                throw new JadbException("Shell output ended after " + results.size() + " of " + commands.size() + " commands");
+            }
+            int statusStart = marker + MARKER.length();
+            int statusEnd = statusStart;
+            while (statusEnd < output.length() && Character.isDigit(output.charAt(statusEnd))) {
+                statusEnd++;
+            }
+            if (statusEnd == statusStart) throw new JadbException("Malformed exit status in shell output");
+            int exitStatus = Integer.parseInt(output.substring(statusStart, statusEnd));
+            results.add(new CommandResult(output.substring(position, marker), exitStatus));
+
+            position = statusEnd;
+            if (position < output.length() && output.charAt(position) == '\n') position++;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,64 @@
+package se.vidstige.jadb;
+
+import java.util.List;
+
+/**
+ * Output and exit status of a shell command.
+ */
+public class CommandResult {
+    private final String output;
+    private final int exitStatus;
+
+    public CommandResult(String output, int exitStatus) {
+        this.output = output;
+        this.exitStatus = exitStatus;
+    }
+
+    /**
+     * @return combined stdout/stderr of the command.
+     */
+    public String getOutput() {
+        return output;
+    }
+
+    public int getExitStatus() {
+        return exitStatus;
+    }
+
+    public boolean isSuccess() {
+        return exitStatus == 0;
+    }
+
+    /**
+     * @throws JadbException for the first command which failed.
+     */
+    public static void checkSuccess(List<CommandResult> results) throws JadbException {
+        for (CommandResult result : results) {
+            if (!result.isSuccess()) throw new JadbException("Command failed with " + result);
+        }
+    }
+
+    /**
+     * Checks the results of commands which print nothing on success, such as setprop.
+     *
+     * @param names what each command was for, in the same order as the results, listed in the error.
+     * @throws JadbException starting with message, if any command failed or printed something.
+     */
+    public static void checkQuiet(List<CommandResult> results, List<String> names, String message)
+            throws JadbException {
+        StringBuilder errors = new StringBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            CommandResult result = results.get(i);
+            if (result.getExitStatus() != 0 || !result.getOutput().trim().isEmpty()) {
+                if (errors.length() > 0) errors.append(", ");
+                errors.append(names.get(i)).append(" (").append(result.getOutput().trim()).append(")");
+            }
+        }
+        if (errors.length() > 0) throw new JadbException(message + ": " + errors);
+    }
+
+    @Override
+    public String toString() {
+        return "exit status " + exitStatus + ": " + output;
+    }
+}
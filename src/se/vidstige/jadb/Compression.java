@@ -0,0 +1,41 @@
+package se.vidstige.jadb;
+
+/**
+ * Compression of file transfers over sync v2, which devices announce through features such as "sendrecv_v2_lz4".
+ */
+public enum Compression {
+    NONE(0, "sendrecv_v2"),
+    LZ4(2, "sendrecv_v2_lz4");
+
+    private final int flag;
+    private final String feature;
+
+    Compression(int flag, String feature) {
+        this.flag = flag;
+        this.feature = feature;
+    }
+
+    /**
+     * @return the flag in the SND2/RCV2 setup message.
+     */
+    public int getFlag() {
+        return flag;
+    }
+
+    /**
+     * @return the device feature which tells that the device supports this compression.
+     */
+    public String getFeature() {
+        return feature;
+    }
+
+    /**
+     * @return the compression for the flags of a SND2/RCV2 setup message, or null if it is not supported.
+     */
+    public static Compression fromFlags(int flags) {
+        for (Compression compression : values()) {
+            if (compression.flag == flags) return compression;
+        }
+        return null;
+    }
+}
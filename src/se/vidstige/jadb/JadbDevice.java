@@ -4,7 +4,10 @@ import se.vidstige.jadb.managers.Bash;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -28,6 +31,8 @@ public class JadbDevice {
     private final String serial;
     private final ITransportFactory transportFactory;
     private static final int DEFAULT_TCPIP_PORT = 5555;
+    private static final int STAT_WINDOW = 256;
+    private volatile List<String> features = null;
 
     JadbDevice(String serial, ITransportFactory tFactory) {
         this.serial = serial;
@@ -58,12 +63,38 @@ public class JadbDevice {
         }
     }
 
-    private Transport getTransport() throws IOException, JadbException {
+    private String getTransportRequest() {
+        return serial == null ? "host:transport-any" : "host:transport:" + serial;
+    }
+
+    /**
+     * Connects to the device and requests a service on it, e.g. "shell:ls" or "sync:".
+     *
+     * @return the connection, it is up to the caller to close it.
+     */
+    private Transport open(String service) throws IOException, JadbException {
         Transport transport = transportFactory.createTransport();
         // Do not use try-with-resources here. We want to return unclosed Transport and it is up to caller
         // to close it. Here we close it only in case of exception.
         try {
-            send(transport, serial == null ? "host:transport-any" : "host:transport:" + serial );
+            if (!transport.isPipelining()) {
+                send(transport, getTransportRequest());
+                send(transport, service);
+                return transport;
+            }
+            transport.sendAll(getTransportRequest(), service);
+            try {
+                transport.verifyResponse();
+            } catch (IOException e) {
+                // The server closed the connection without answering, the service was never started so it is safe
+                // to retry one request at a time.
+                transport.close();
+                transport = transportFactory.createTransport();
+                send(transport, getTransportRequest());
+                send(transport, service);
+                return transport;
+            }
+            transport.verifyResponse();
         } catch (IOException|JadbException e) {
             transport.close();
             throw e;
@@ -93,9 +124,7 @@ public class JadbDevice {
      * @throws JadbException
      */
     public InputStream executeShell(String command, String... args) throws IOException, JadbException {
-        Transport transport = getTransport();
-        StringBuilder shellLine = buildCmdLine(command, args);
-        send(transport, "shell:" + shellLine.toString());
+        Transport transport = open("shell:" + buildCmdLine(command, args));
         return new AdbFilterInputStream(new BufferedInputStream(transport.getInputStream()));
     }
 
@@ -106,9 +135,7 @@ public class JadbDevice {
      */
     @Deprecated
     public void executeShell(OutputStream output, String command, String... args) throws IOException, JadbException {
-        try (Transport transport = getTransport()) {
-            StringBuilder shellLine = buildCmdLine(command, args);
-            send(transport, "shell:" + shellLine.toString());
+        try (Transport transport = open("shell:" + buildCmdLine(command, args))) {
             if (output == null)
                 return;
 
@@ -130,12 +157,64 @@ public class JadbDevice {
      * @throws JadbException
      */
     public InputStream execute(String command, String... args) throws IOException, JadbException {
-        Transport transport = getTransport();
-        StringBuilder shellLine = buildCmdLine(command, args);
-        send(transport, "exec:" + shellLine.toString());
+        Transport transport = open("exec:" + buildCmdLine(command, args));
         return new BufferedInputStream(transport.getInputStream());
     }
 
+    /**
+     * Runs several shell commands over one connection, which is much cheaper than one connection per command when
+     * many small queries are needed.
+     *
+     * @param batch the commands to run.
+     * @return output and exit status of each command, in the order they were added.
+     * @throws JadbException if the output could not be split per command, e.g. because the shell exited early.
+     */
+    public List<CommandResult> executeBatch(CommandBatch batch) throws IOException, JadbException {
+        if (batch.isEmpty()) return new ArrayList<>(0);
+        try (InputStream s = executeShell(batch.getShellLine())) {
+            return batch.parse(Stream.readAll(s, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Connects to a socket on the device through adb, without forwarding a port on the host.
+     *
+     * @param remote the socket to connect to, using the same syntax as {@link #forwardPort(String, String)},
+     *               e.g. "tcp:1080" or "localabstract:name".
+     * @return the connection, it is up to the caller to close it.
+     */
+    public Channel connect(String remote) throws IOException, JadbException {
+        return new Channel(open(remote));
+    }
+
+    /**
+     * Opens a shell which stays open for running many commands, see {@link ShellSession}.
+     *
+     * @return the session, it is up to the caller to close it.
+     */
+    public ShellSession openShellSession() throws IOException, JadbException {
+        Channel channel = connect("exec:sh");
+        return new ShellSession(new BufferedInputStream(channel.getInputStream()), channel.getOutputStream(),
+                channel, ShellSession.createMarker());
+    }
+
+    /**
+     * <p>Captures the screen through the "framebuffer:" service.</p>
+     *
+     * <p>In contrast to running "screencap -p" the pixels are transferred uncompressed, which avoids PNG encoding
+     * on the device and decoding on the host. Use {@link PngEncoder} if PNG files are needed.</p>
+     *
+     * @param image image to capture into, its buffers are reused. Pass null to allocate a new one.
+     * @return the captured image.
+     */
+    public RawImage screenshot(RawImage image) throws IOException, JadbException {
+        if (image == null) image = new RawImage();
+        try (Transport transport = open("framebuffer:")) {
+            image.read(new BufferedInputStream(transport.getInputStream(), 64 * 1024));
+        }
+        return image;
+    }
+
     /**
      * Builds a command line string from the command and its arguments.
      *
@@ -169,9 +248,7 @@ public class JadbDevice {
      * @return success or failure
      */
     public void enableAdbOverTCP(int port) throws IOException, JadbException {
-        try (Transport transport = getTransport()) {
-            send(transport, String.format("tcpip:%d", port));
-        }
+        open(String.format("tcpip:%d", port)).close();
     }
 
     /**
@@ -181,8 +258,8 @@ public class JadbDevice {
      * See {@link #listV2} for a better version.
      */
     public List<RemoteFile> list(String remotePath) throws IOException, JadbException {
-        try (Transport transport = getTransport()) {
-            SyncTransport sync = transport.startSync();
+        try (Transport transport = open("sync:")) {
+            SyncTransport sync = transport.getSyncTransport();
             sync.send("LIST", remotePath);
 
             List<RemoteFile> result = new ArrayList<>();
@@ -201,8 +278,8 @@ public class JadbDevice {
      * Will only work on devices supporting the feature "ls_v2"
      */
     public List<RemoteFile> listV2(String remotePath) throws IOException, JadbException {
-        try (Transport transport = getTransport()) {
-            SyncTransport sync = transport.startSync();
+        try (Transport transport = open("sync:")) {
+            SyncTransport sync = transport.getSyncTransport();
             sync.send("LIS2", remotePath);
 
             List<RemoteFile> result = new ArrayList<>();
@@ -213,12 +290,113 @@ public class JadbDevice {
         }
     }
 
+    /**
+     * Gets size, mode and modification time of a single file without listing its directory. Symbolic links are
+     * followed, except on devices without the "stat_v2" feature.
+     */
+    public RemoteFileStat stat(RemoteFile remote) throws IOException, JadbException {
+        return stat(Collections.singletonList(remote)).get(0);
+    }
+
+    /**
+     * Like {@link #stat(RemoteFile)}, but for many files over one connection. The requests are pipelined, a few
+     * hundred at a time, so thousands of files cost only a handful of round-trips.
+     *
+     * @return one result per file, in the same order.
+     */
+    public List<RemoteFileStat> stat(List<RemoteFile> remotes) throws IOException, JadbException {
+        return stat(remotes, true);
+    }
+
+    /**
+     * Like {@link #stat(RemoteFile)}, but describes symbolic links themselves instead of their targets.
+     */
+    public RemoteFileStat lstat(RemoteFile remote) throws IOException, JadbException {
+        return lstat(Collections.singletonList(remote)).get(0);
+    }
+
+    public List<RemoteFileStat> lstat(List<RemoteFile> remotes) throws IOException, JadbException {
+        return stat(remotes, false);
+    }
+
+    private List<RemoteFileStat> stat(List<RemoteFile> remotes, boolean followLinks) throws IOException, JadbException {
+        boolean v2 = getFeatures().contains("stat_v2");
+        // STAT from sync v1 uses lstat on the device
+        String id = !v2 ? "STAT" : followLinks ? "STA2" : "LST2";
+        List<RemoteFileStat> result = new ArrayList<>(remotes.size());
+        if (remotes.isEmpty()) return result;
+        try (Transport transport = open("sync:")) {
+            SyncTransport sync = transport.getSyncTransport();
+            // Bounded, so the replies never fill up the socket while requests are still being written
+            for (int start = 0; start < remotes.size(); start += STAT_WINDOW) {
+                int end = Math.min(remotes.size(), start + STAT_WINDOW);
+                for (int i = start; i < end; i++) {
+                    sync.send(id, remotes.get(i).getPath());
+                }
+                for (int i = start; i < end; i++) {
+                    String path = remotes.get(i).getPath();
+                    result.add(v2 ? sync.readStatV2(path) : sync.readStat(path));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the features of the device and adb, e.g. "shell_v2" or "sendrecv_v2_lz4". They are asked for once and
+     * then remembered.
+     */
+    public List<String> getFeatures() throws IOException, JadbException {
+        List<String> result = features;
+        if (result != null) return result;
+        try (Transport transport = transportFactory.createTransport()) {
+            send(transport, serial == null ? "host:features" : "host-serial:" + serial + ":features");
+            String reply = transport.readString();
+            result = reply.isEmpty()
+                    ? Collections.<String>emptyList()
+                    : Collections.unmodifiableList(Arrays.asList(reply.split(",")));
+        }
+        features = result;
+        return result;
+    }
+
+    private boolean supports(Compression compression) throws IOException, JadbException {
+        List<String> available = getFeatures();
+        return available.contains(Compression.NONE.getFeature()) && available.contains(compression.getFeature());
+    }
+
     public void push(InputStream source, long lastModified, int mode, RemoteFile remote) throws IOException, JadbException {
-        try (Transport transport = getTransport()) {
-            SyncTransport sync = transport.startSync();
-            sync.send("SEND", remote.getPath() + "," + mode);
+        push(source, lastModified, mode, remote, Compression.NONE, null);
+    }
 
-            sync.sendStream(source);
+    /**
+     * Pushes with sync v2 and the given compression, which speeds up compressible files on slow links. Falls back to
+     * an uncompressed push if the device does not support it.
+     */
+    public void push(InputStream source, long lastModified, int mode, RemoteFile remote, Compression compression)
+            throws IOException, JadbException {
+        push(source, lastModified, mode, remote, compression, null);
+    }
+
+    /**
+     * Like {@link #push(InputStream, long, int, RemoteFile, Compression)}, and updates the digest with the content as
+     * it is sent. Compare it with a hash computed on the device to check the push without reading the source again.
+     *
+     * @param digest may be null.
+     */
+    public void push(InputStream source, long lastModified, int mode, RemoteFile remote, Compression compression,
+                     MessageDigest digest) throws IOException, JadbException {
+        if (compression != Compression.NONE && !supports(compression)) compression = Compression.NONE;
+        try (Transport transport = open("sync:")) {
+            SyncTransport sync = transport.getSyncTransport();
+            if (compression == Compression.NONE) {
+                sync.send("SEND", remote.getPath() + "," + mode);
+            } else {
+                sync.send("SND2", remote.getPath());
+                sync.sendSendV2Setup(mode, compression);
+            }
+
+            sync.sendStream(source, compression, digest);
 
             sync.sendStatus("DONE", (int) lastModified);
             sync.verifyStatus();
@@ -232,11 +410,37 @@ public class JadbDevice {
     }
 
     public void pull(RemoteFile remote, OutputStream destination) throws IOException, JadbException {
-        try (Transport transport = getTransport()) {
-            SyncTransport sync = transport.startSync();
-            sync.send("RECV", remote.getPath());
+        pull(remote, destination, Compression.NONE, null);
+    }
+
+    /**
+     * Pulls with sync v2 and the given compression. Falls back to an uncompressed pull if the device does not
+     * support it.
+     */
+    public void pull(RemoteFile remote, OutputStream destination, Compression compression)
+            throws IOException, JadbException {
+        pull(remote, destination, compression, null);
+    }
+
+    /**
+     * Like {@link #pull(RemoteFile, OutputStream, Compression)}, and updates the digest with the content as it is
+     * received.
+     *
+     * @param digest may be null.
+     */
+    public void pull(RemoteFile remote, OutputStream destination, Compression compression, MessageDigest digest)
+            throws IOException, JadbException {
+        if (compression != Compression.NONE && !supports(compression)) compression = Compression.NONE;
+        try (Transport transport = open("sync:")) {
+            SyncTransport sync = transport.getSyncTransport();
+            if (compression == Compression.NONE) {
+                sync.send("RECV", remote.getPath());
+            } else {
+                sync.send("RCV2", remote.getPath());
+                sync.sendRecvV2Setup(compression);
+            }
 
-            sync.readChunksTo(destination);
+            sync.readChunksTo(destination, compression, digest);
         }
     }
 
@@ -308,8 +512,7 @@ public class JadbDevice {
     }
 
     private InputStream executePortForwardingCmd(String hostPrefix, String command) throws IOException, JadbException {
-        Transport transport = getTransport();
-        send(transport, hostPrefix + command);
+        Transport transport = open(hostPrefix + command);
         return new BufferedInputStream(transport.getInputStream());
     }
 
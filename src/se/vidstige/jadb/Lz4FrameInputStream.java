@@ -0,0 +1,235 @@
+package se.vidstige.jadb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>Decompresses the LZ4 frame format. Supports linked and independent blocks, all block sizes, block and content
+ * checksums and several concatenated frames, which covers what adbd and the lz4 tool produce.</p>
+ */
+class Lz4FrameInputStream extends InputStream {
+    private static final int SKIPPABLE_MAGIC_MASK = 0xFFFFFFF0;
+    private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] header = new byte[15];
+    private byte[] compressed = new byte[0];
+    // Decoded data, preceded by up to 64 KB of history for linked blocks
+    private byte[] window = new byte[0];
+    private int position = 0;
+    private int limit = 0;
+
+    private boolean inFrame = false;
+    private boolean independentBlocks;
+    private boolean blockChecksum;
+    private boolean contentChecksum;
+    private int maxBlockSize;
+    private final XxHash32 checksum = new XxHash32(0);
+    private boolean finished = false;
+
+    Lz4FrameInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (position == limit) {
+            if (!nextBlock()) return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(window, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (finished) return false;
+        if (!inFrame && !readFrameHeader()) {
+            finished = true;
+            return false;
+        }
+        readFully(header, 0, 4);
+        int blockHeader = XxHash32.intAt(header, 0);
+        if (blockHeader == 0) {
+            endFrame();
+            return true;
+        }
+        boolean uncompressed = (blockHeader & 0x80000000) != 0;
+        int length = blockHeader & 0x7fffffff;
+        if (length > maxBlockSize) throw new IOException("LZ4 block larger than the frame allows: " + length);
+        if (compressed.length < length) compressed = new byte[maxBlockSize];
+        readFully(compressed, 0, length);
+        if (blockChecksum) {
+            readFully(header, 0, 4);
+            if (XxHash32.intAt(header, 0) != XxHash32.hash(compressed, 0, length, 0)) {
+                throw new IOException("LZ4 block checksum mismatch");
+            }
+        }
+
+        int start = keepHistory();
+        if (uncompressed) {
+            System.arraycopy(compressed, 0, window, start, length);
+            limit = start + length;
+        } else {
+            limit = decompressBlock(compressed, length, window, start);
+        }
+        position = start;
+        if (contentChecksum) checksum.update(window, start, limit - start);
+        return true;
+    }
+
+    /**
+     * Moves the last 64 KB of decoded data to the start of the window, where linked blocks can refer to it.
+     *
+     * @return where the next block is decoded to.
+     */
+    private int keepHistory() {
+        if (independentBlocks) return 0;
+        int history = Math.min(limit, WINDOW_SIZE);
+        System.arraycopy(window, limit - history, window, 0, history);
+        return history;
+    }
+
+    private boolean readFrameHeader() throws IOException {
+        while (true) {
+            int first = in.read();
+            if (first == -1) return false;
+            header[0] = (byte) first;
+            readFully(header, 1, 3);
+            int magic = XxHash32.intAt(header, 0);
+            if ((magic & SKIPPABLE_MAGIC_MASK) == SKIPPABLE_MAGIC) {
+                readFully(header, 0, 4);
+                skipFully(XxHash32.intAt(header, 0) & 0xffffffffL);
+                continue;
+            }
+            if (magic != Lz4FrameOutputStream.MAGIC) throw new IOException("Not an LZ4 frame");
+            break;
+        }
+        readFully(header, 0, 2);
+        int flags = header[0] & 0xff;
+        int blockDescriptor = header[1] & 0xff;
+        if ((flags >> 6) != 1) throw new IOException("Unsupported LZ4 frame version");
+        independentBlocks = (flags & 0x20) != 0;
+        blockChecksum = (flags & 0x10) != 0;
+        boolean contentSize = (flags & 0x08) != 0;
+        contentChecksum = (flags & 0x04) != 0;
+        boolean dictionary = (flags & 0x01) != 0;
+        int descriptorLength = 2 + (contentSize ? 8 : 0) + (dictionary ? 4 : 0);
+        readFully(header, 2, descriptorLength - 2 + 1);
+        int expected = (XxHash32.hash(header, 0, descriptorLength, 0) >>> 8) & 0xff;
+        if ((header[descriptorLength] & 0xff) != expected) throw new IOException("LZ4 frame header checksum mismatch");
+        if (dictionary) throw new IOException("LZ4 frames with dictionaries are not supported");
+
+        int blockSizeId = (blockDescriptor >> 4) & 0x7;
+        if (blockSizeId < 4) throw new IOException("Invalid LZ4 block size");
+        maxBlockSize = 1 << (8 + 2 * blockSizeId);
+        int windowSize = (independentBlocks ? 0 : WINDOW_SIZE) + maxBlockSize;
+        if (window.length < windowSize) {
+            byte[] grown = new byte[windowSize];
+            System.arraycopy(window, 0, grown, 0, limit);
+            window = grown;
+        }
+        // History never crosses frames
+        position = 0;
+        limit = 0;
+        checksum.reset();
+        inFrame = true;
+        return true;
+    }
+
+    private void endFrame() throws IOException {
+        if (contentChecksum) {
+            readFully(header, 0, 4);
+            if (XxHash32.intAt(header, 0) != checksum.getValue()) throw new IOException("LZ4 content checksum mismatch");
+        }
+        inFrame = false;
+        position = 0;
+        limit = 0;
+    }
+
+    /**
+     * Decompresses one block in the LZ4 block format.
+     *
+     * @return the end of the decoded data in dst.
+     */
+    static int decompressBlock(byte[] src, int srcLength, byte[] dst, int dstOffset) throws IOException {
+        int ip = 0;
+        int op = dstOffset;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xff;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                if (ip == srcLength) return op;
+
+                int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+                ip += 2;
+                if (offset == 0 || offset > op) throw new IOException("Invalid LZ4 match offset");
+                int matchLength = token & 0xf;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += 4;
+                int ref = op - offset;
+                if (offset >= matchLength) {
+                    System.arraycopy(dst, ref, dst, op, matchLength);
+                    op += matchLength;
+                } else {
+                    // Overlapping copy repeats the last offset bytes
+                    for (int i = 0; i < matchLength; i++) {
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed LZ4 block");
+        }
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = in.read(buffer, offset, length);
+            if (n == -1) throw new EOFException("Truncated LZ4 frame");
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void skipFully(long length) throws IOException {
+        while (length > 0) {
+            long n = in.skip(length);
+            if (n <= 0) {
+                if (in.read() == -1) throw new EOFException("Truncated LZ4 frame");
+                n = 1;
+            }
+            length -= n;
+        }
+    }
+}
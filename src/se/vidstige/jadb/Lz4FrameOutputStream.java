@@ -0,0 +1,201 @@
+package se.vidstige.jadb;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Compresses into the LZ4 frame format, as used by sync v2 transfers with the "sendrecv_v2_lz4" feature.</p>
+ *
+ * <p>Blocks are 64 KB and independent of each other, the frame ends with a content checksum. The block compressor
+ * is a plain greedy matcher, which trades some ratio for speed.</p>
+ */
+class Lz4FrameOutputStream extends FilterOutputStream {
+    static final int MAGIC = 0x184D2204;
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private final byte[] compressed = new byte[4 + BLOCK_SIZE + BLOCK_SIZE / 255 + 16];
+    private final int[] hashTable = new int[1 << HASH_BITS];
+    private final XxHash32 contentChecksum = new XxHash32(0);
+    private boolean headerWritten = false;
+    private boolean closed = false;
+
+    Lz4FrameOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == BLOCK_SIZE) writeBlock();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        // Version 01, independent blocks, content checksum, 64 KB blocks
+        byte[] descriptor = {0x64, 0x40};
+        int headerChecksum = (XxHash32.hash(descriptor, 0, descriptor.length, 0) >>> 8) & 0xff;
+        byte[] header = new byte[7];
+        putInt(header, 0, MAGIC);
+        header[4] = descriptor[0];
+        header[5] = descriptor[1];
+        header[6] = (byte) headerChecksum;
+        out.write(header);
+        headerWritten = true;
+    }
+
+    private void writeBlock() throws IOException {
+        if (!headerWritten) writeHeader();
+        if (blockLength == 0) return;
+        contentChecksum.update(block, 0, blockLength);
+        int length = compressBlock(block, blockLength, compressed, 4);
+        if (length >= blockLength) {
+            // Incompressible, store as is with the high bit set
+            putInt(compressed, 0, blockLength | 0x80000000);
+            out.write(compressed, 0, 4);
+            out.write(block, 0, blockLength);
+        } else {
+            putInt(compressed, 0, length);
+            out.write(compressed, 0, 4 + length);
+        }
+        blockLength = 0;
+    }
+
+    /**
+     * Writes the buffered data as a block, so everything written so far can be decompressed.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    /**
+     * Ends the frame and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        finish();
+        closed = true;
+        out.close();
+    }
+
+    /**
+     * Ends the frame without closing the underlying stream.
+     */
+    void finish() throws IOException {
+        if (closed) return;
+        writeBlock();
+        byte[] trailer = new byte[8];
+        putInt(trailer, 0, 0);
+        putInt(trailer, 4, contentChecksum.getValue());
+        out.write(trailer);
+        out.flush();
+        closed = true;
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+        buffer[offset + 2] = (byte) (value >>> 16);
+        buffer[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    /**
+     * Compresses one block in the LZ4 block format.
+     *
+     * @return the compressed length, written to dst starting at dstOffset.
+     */
+    int compressBlock(byte[] src, int srcLength, byte[] dst, int dstOffset) {
+        int op = dstOffset;
+        int anchor = 0;
+        int ip = 0;
+        int matchFindLimit = srcLength - MATCH_FIND_LIMIT;
+        int matchLimit = srcLength - LAST_LITERALS;
+        for (int i = 0; i < hashTable.length; i++) hashTable[i] = -1;
+
+        while (ip < matchFindLimit) {
+            int sequence = XxHash32.intAt(src, ip);
+            int h = hash(sequence);
+            int ref = hashTable[h];
+            hashTable[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || XxHash32.intAt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+            ip += matchLength;
+            anchor = ip;
+        }
+        return writeLastLiterals(src, anchor, srcLength - anchor, dst, op) - dstOffset;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset, int matchLength,
+                                     byte[] dst, int op) {
+        int token = op++;
+        op = writeLiterals(src, literalStart, literalLength, dst, token, op);
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        int extra = matchLength - MIN_MATCH;
+        if (extra >= 15) {
+            dst[token] |= 15;
+            op = writeLength(extra - 15, dst, op);
+        } else {
+            dst[token] |= (byte) extra;
+        }
+        return op;
+    }
+
+    private static int writeLastLiterals(byte[] src, int literalStart, int literalLength, byte[] dst, int op) {
+        int token = op++;
+        return writeLiterals(src, literalStart, literalLength, dst, token, op);
+    }
+
+    private static int writeLiterals(byte[] src, int literalStart, int literalLength, byte[] dst, int token, int op) {
+        if (literalLength >= 15) {
+            dst[token] = (byte) (15 << 4);
+            op = writeLength(literalLength - 15, dst, op);
+        } else {
+            dst[token] = (byte) (literalLength << 4);
+        }
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        return op + literalLength;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+}
@@ -0,0 +1,36 @@
+package se.vidstige.jadb;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes screenshots to PNG on a worker pool, so that the capturing thread can go on with the next frame.
+ */
+public class PngEncoder {
+    private final ExecutorService executor;
+
+    public PngEncoder(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Copies the pixels right away, so the image can be reused for the next capture as soon as this returns.
+     *
+     * @return the PNG file contents.
+     */
+    public Future<byte[]> encode(RawImage image) {
+        final BufferedImage copy = image.toBufferedImage();
+        return executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                ImageIO.write(copy, "png", png);
+                return png.toByteArray();
+            }
+        });
+    }
+}
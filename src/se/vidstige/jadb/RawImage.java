@@ -0,0 +1,181 @@
+package se.vidstige.jadb;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Uncompressed screen contents as returned by the "framebuffer:" service. Pass the same instance to
+ * {@link JadbDevice#screenshot(RawImage)} repeatedly to capture frames without allocating new pixel buffers.
+ */
+public class RawImage {
+    private static final int RGB565_VERSION = 16;
+
+    private int version;
+    private int bitsPerPixel;
+    private int colorSpace;
+    private int size;
+    private int width;
+    private int height;
+    private int redOffset;
+    private int redLength;
+    private int greenOffset;
+    private int greenLength;
+    private int blueOffset;
+    private int blueLength;
+    private int alphaOffset;
+    private int alphaLength;
+    private byte[] data = new byte[0];
+
+    void read(InputStream stream) throws IOException, JadbException {
+        DataInputStream input = new DataInputStream(stream);
+        version = readInt(input);
+        if (version == RGB565_VERSION) {
+            // Old devices only send size, width and height, the format is always RGB565
+            bitsPerPixel = 16;
+            colorSpace = 0;
+            size = readInt(input);
+            width = readInt(input);
+            height = readInt(input);
+            redOffset = 11;
+            redLength = 5;
+            greenOffset = 5;
+            greenLength = 6;
+            blueOffset = 0;
+            blueLength = 5;
+            alphaOffset = 0;
+            alphaLength = 0;
+        } else if (version == 1 || version == 2) {
+            bitsPerPixel = readInt(input);
+            colorSpace = version == 2 ? readInt(input) : 0;
+            size = readInt(input);
+            width = readInt(input);
+            height = readInt(input);
+            redOffset = readInt(input);
+            redLength = readInt(input);
+            blueOffset = readInt(input);
+            blueLength = readInt(input);
+            greenOffset = readInt(input);
+            greenLength = readInt(input);
+            alphaOffset = readInt(input);
+            alphaLength = readInt(input);
+        } else {
+            throw new JadbException("Unsupported framebuffer version " + version);
+        }
+        if (data.length < size) {
+            data = new byte[size];
+        }
+        input.readFully(data, 0, size);
+    }
+
+    private static int readInt(DataInputStream input) throws IOException {
+        return Integer.reverseBytes(input.readInt());
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getBitsPerPixel() {
+        return bitsPerPixel;
+    }
+
+    /** Only reported by framebuffer version 2, 0 (sRGB) otherwise. */
+    public int getColorSpace() {
+        return colorSpace;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the number of valid bytes in {@link #getData()}.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the raw pixel data, which may be longer than {@link #getSize()}. Overwritten by the next capture.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the raw pixel data as a little endian buffer. Overwritten by the next capture.
+     */
+    public ByteBuffer getBuffer() {
+        return ByteBuffer.wrap(data, 0, size).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @param index pixel index, y * width + x.
+     * @return the pixel as ARGB, the format used by {@link BufferedImage#TYPE_INT_ARGB}.
+     */
+    public int getARGB(int index) {
+        int bytesPerPixel = bitsPerPixel / 8;
+        int offset = index * bytesPerPixel;
+        int value = 0;
+        for (int i = 0; i < bytesPerPixel; i++) {
+            value |= (data[offset + i] & 0xff) << (8 * i);
+        }
+        int alpha = alphaLength == 0 ? 0xff : channel(value, alphaOffset, alphaLength);
+        return alpha << 24
+                | channel(value, redOffset, redLength) << 16
+                | channel(value, greenOffset, greenLength) << 8
+                | channel(value, blueOffset, blueLength);
+    }
+
+    private static int channel(int value, int offset, int length) {
+        int max = (1 << length) - 1;
+        int channel = (value >>> offset) & max;
+        return length >= 8 ? channel >>> (length - 8) : channel * 0xff / max;
+    }
+
+    /**
+     * Converts all pixels to ARGB.
+     *
+     * @param pixels array to reuse, a new one is allocated if it is null or too small.
+     * @return the ARGB pixels, row by row.
+     */
+    public int[] toARGB(int[] pixels) {
+        int count = width * height;
+        if (pixels == null || pixels.length < count) {
+            pixels = new int[count];
+        }
+        if (bitsPerPixel == 32 && redOffset == 0 && greenOffset == 8 && blueOffset == 16 && redLength == 8
+                && greenLength == 8 && blueLength == 8) {
+            // RGBA_8888 and RGBX_8888, by far the most common formats
+            boolean hasAlpha = alphaLength == 8 && alphaOffset == 24;
+            for (int i = 0, offset = 0; i < count; i++, offset += 4) {
+                pixels[i] = (hasAlpha ? (data[offset + 3] & 0xff) << 24 : 0xff000000)
+                        | (data[offset] & 0xff) << 16
+                        | (data[offset + 1] & 0xff) << 8
+                        | (data[offset + 2] & 0xff);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                pixels[i] = getARGB(i);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * @return a copy of the pixels which stays valid after the next capture.
+     */
+    public BufferedImage toBufferedImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, width, height, toARGB(null), 0, width);
+        return image;
+    }
+}
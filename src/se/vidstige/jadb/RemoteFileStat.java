@@ -0,0 +1,76 @@
+package se.vidstige.jadb;
+
+/**
+ * Metadata of a single remote file, returned by {@link JadbDevice#stat(RemoteFile)}.
+ */
+public class RemoteFileStat extends RemoteFile {
+    //noinspection OctalInteger
+    private static final int S_IFMT = 0170000;
+    //noinspection OctalInteger
+    private static final int S_IFDIR = 0040000;
+    //noinspection OctalInteger
+    private static final int S_IFREG = 0100000;
+    //noinspection OctalInteger
+    private static final int S_IFLNK = 0120000;
+
+    private final int error;
+    private final int mode;
+    private final long size;
+    private final long lastModified;
+
+    /**
+     * @param error errno reported by the device, 0 on success.
+     */
+    public RemoteFileStat(String path, int error, int mode, long size, long lastModified) {
+        super(path);
+        this.error = error;
+        this.mode = mode;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public boolean exists() {
+        return error == 0 && mode != 0;
+    }
+
+    /**
+     * @return errno of the failed stat call on the device, e.g. 2 (ENOENT), or 0. Devices without sync v2 do not
+     * report errors, then a missing file just does not exist.
+     */
+    public int getError() {
+        return error;
+    }
+
+    /**
+     * @return file type and permission bits, as in st_mode.
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return modification time in seconds since the epoch.
+     */
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return (mode & S_IFMT) == S_IFDIR;
+    }
+
+    public boolean isRegularFile() {
+        return (mode & S_IFMT) == S_IFREG;
+    }
+
+    public boolean isSymbolicLink() {
+        return (mode & S_IFMT) == S_IFLNK;
+    }
+}
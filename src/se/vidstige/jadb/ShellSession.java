@@ -0,0 +1,177 @@
+package se.vidstige.jadb;
+
+import se.vidstige.jadb.managers.Bash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A shell kept open on the device for running many commands, saving the connection setup and shell startup of
+ * {@link JadbDevice#executeShell(String, String...)} for every command.</p>
+ *
+ * <p>Each command is followed by an echo of a marker unique to the session together with the exit status, which
+ * tells where the output of the command ends. Commands read from /dev/null so they cannot swallow the commands
+ * following them. Requires the exec service, i.e. Lollipop or later.</p>
+ *
+ * <p>A command which does not finish within the timeout, e.g. an interactive program or one with an unbalanced
+ * quote, closes the session, as the shell cannot be told where its output ends any more.</p>
+ */
+public class ShellSession implements Closeable {
+    private static final SecureRandom random = new SecureRandom();
+    private static final long DEFAULT_TIMEOUT_MILLIS = 60 * 1000;
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ShellSession watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final InputStream input;
+    private final OutputStream output;
+    private final Closeable connection;
+    private final byte[] marker;
+    private final byte[] buffer = new byte[8 * 1024];
+    private int bufferStart = 0;
+    private int bufferEnd = 0;
+    private volatile boolean broken = false;
+    private volatile boolean timedOut = false;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    ShellSession(InputStream input, OutputStream output, Closeable connection, String marker) {
+        this.input = input;
+        this.output = output;
+        this.connection = connection;
+        this.marker = marker.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String createMarker() {
+        return "x-jadb-" + Long.toHexString(random.nextLong()) + ":";
+    }
+
+    /**
+     * @param timeout how long a command may take, 0 waits forever. Defaults to one minute.
+     */
+    public synchronized void setTimeout(long timeout, TimeUnit unit) {
+        this.timeoutMillis = unit.toMillis(timeout);
+    }
+
+    public synchronized CommandResult execute(String command, String... args) throws IOException {
+        if (broken) throw new IOException("Shell session is broken");
+        StringBuilder line = new StringBuilder("{ ").append(command);
+        for (String arg : args) {
+            line.append(" ").append(Bash.quote(arg));
+        }
+        line.append("\n} </dev/null 2>&1; echo ").append(new String(marker, StandardCharsets.UTF_8)).append("$?\n");
+        ScheduledFuture<?> deadline = timeoutMillis > 0
+                ? watchdog.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timedOut = true;
+                        try {
+                            close();
+                        } catch (IOException e) {
+                            // Broken either way
+                        }
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS)
+                : null;
+        try {
+            output.write(line.toString().getBytes(StandardCharsets.UTF_8));
+            output.flush();
+            return readResult();
+        } catch (IOException e) {
+            broken = true;
+            if (timedOut) throw new IOException("Command timed out after " + timeoutMillis + " ms: " + command);
+            throw e;
+        } finally {
+            if (deadline != null) deadline.cancel(false);
+        }
+    }
+
+    /**
+     * @return false if a command failed to complete, after which the session cannot be used.
+     */
+    public boolean isUsable() {
+        return !broken;
+    }
+
+    private CommandResult readResult() throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        while (true) {
+            int found = indexOfMarker();
+            if (found != -1) {
+                result.write(buffer, bufferStart, found - bufferStart);
+                bufferStart = found;
+                int newline;
+                while ((newline = indexOf('\n', bufferStart + marker.length)) == -1) {
+                    if (!fill(bufferStart)) throw new IOException("Shell exited");
+                }
+                int statusStart = bufferStart + marker.length;
+                String status = new String(buffer, statusStart, newline - statusStart, StandardCharsets.UTF_8).trim();
+                bufferStart = newline + 1;
+                try {
+                    return new CommandResult(new String(result.toByteArray(), StandardCharsets.UTF_8), Integer.parseInt(status));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed exit status: " + status);
+                }
+            }
+            // Keep a possibly partial marker at the end of the buffer for the next round
+            int keep = Math.max(bufferStart, bufferEnd - marker.length + 1);
+            result.write(buffer, bufferStart, keep - bufferStart);
+            bufferStart = keep;
+            if (!fill(keep)) throw new IOException("Shell exited");
+        }
+    }
+
+    /**
+     * Moves everything from start to the front of the buffer and reads more data after it.
+     */
+    private boolean fill(int start) throws IOException {
+        int remaining = bufferEnd - start;
+        if (remaining == buffer.length) throw new IOException("Exit status line too long");
+        System.arraycopy(buffer, start, buffer, 0, remaining);
+        bufferStart = 0;
+        bufferEnd = remaining;
+        int n = input.read(buffer, bufferEnd, buffer.length - bufferEnd);
+        if (n == -1) return false;
+        bufferEnd += n;
+        return true;
+    }
+
+    private int indexOfMarker() {
+        outer:
+        for (int i = bufferStart; i <= bufferEnd - marker.length; i++) {
+            for (int j = 0; j < marker.length; j++) {
+                if (buffer[i + j] != marker[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < bufferEnd; i++) {
+            if (buffer[i] == c) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        broken = true;
+        connection.close();
+    }
+}
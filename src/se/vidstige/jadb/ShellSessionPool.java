@@ -0,0 +1,100 @@
+package se.vidstige.jadb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small set of {@link ShellSession}s to the same device, so that several threads can run commands concurrently.
+ * Sessions are opened on demand up to the given maximum, after which callers wait for a session to become idle.
+ */
+public class ShellSessionPool implements Closeable {
+    private final JadbDevice device;
+    private final int maxSessions;
+    private final Deque<ShellSession> idle = new ArrayDeque<>();
+    private int open = 0;
+    private boolean closed = false;
+    private volatile long timeoutMillis = -1;
+
+    public ShellSessionPool(JadbDevice device, int maxSessions) {
+        if (maxSessions < 1) throw new IllegalArgumentException("maxSessions must be at least 1");
+        this.device = device;
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * @param timeout how long a command may take, see {@link ShellSession#setTimeout(long, TimeUnit)}. A session
+     *                whose command timed out is closed and replaced.
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeoutMillis = unit.toMillis(timeout);
+    }
+
+    public CommandResult execute(String command, String... args) throws IOException, JadbException {
+        ShellSession session = acquire();
+        try {
+            if (timeoutMillis >= 0) session.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+            return session.execute(command, args);
+        } finally {
+            release(session);
+        }
+    }
+
+    private ShellSession acquire() throws IOException, JadbException {
+        synchronized (this) {
+            while (idle.isEmpty() && open >= maxSessions && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new JadbException("Interrupted while waiting for a shell session");
+                }
+            }
+            if (closed) throw new JadbException("Shell session pool is closed");
+            if (!idle.isEmpty()) return idle.pop();
+            open++;
+        }
+        try {
+            return device.openShellSession();
+        } catch (IOException | JadbException e) {
+            synchronized (this) {
+                open--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private void release(ShellSession session) throws IOException {
+        boolean discard;
+        synchronized (this) {
+            discard = closed || !session.isUsable();
+            if (discard) {
+                open--;
+            } else {
+                idle.push(session);
+            }
+            notifyAll();
+        }
+        if (discard) session.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        while (true) {
+            ShellSession session;
+            synchronized (this) {
+                session = idle.poll();
+                if (session == null) return;
+                open--;
+            }
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package se.vidstige.jadb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Encodes and decodes the adb host protocol ("smart socket" protocol). Requests and replies are a UTF-8 message
+ * prefixed by its byte length as four hex digits, statuses are the four bytes "OKAY" or "FAIL".</p>
+ *
+ * <p>Statuses are handled as ints and messages are encoded into a reusable buffer, so a request costs a single
+ * write and no allocation. An instance is meant to be used by one connection, it is not thread safe.</p>
+ */
+public class SmartSocketCodec {
+    public static final int OKAY = status("OKAY");
+    public static final int FAIL = status("FAIL");
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_MESSAGE_LENGTH = 0xffff;
+
+    private byte[] buffer = new byte[256];
+    private int position = 0;
+
+    private static int status(String status) {
+        byte[] bytes = status.getBytes(StandardCharsets.US_ASCII);
+        return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+    }
+
+    public static String statusToString(int status) {
+        return new String(new byte[]{(byte) (status >>> 24), (byte) (status >>> 16), (byte) (status >>> 8),
+                (byte) status}, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the number of bytes the message takes up in UTF-8.
+     */
+    public static int utf8Length(CharSequence message) {
+        int length = 0;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < message.length()
+                    && Character.isLowSurrogate(message.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1; // Unpaired surrogates are replaced by '?', like String.getBytes does
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Adds a length prefixed message to the pending output, see {@link #flushTo(OutputStream)}.
+     */
+    public void encode(CharSequence message) {
+        int length = utf8Length(message);
+        if (length > MAX_MESSAGE_LENGTH) {
+            throw new IllegalArgumentException("Message too long: " + length + " bytes");
+        }
+        ensureCapacity(position + 4 + length);
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            buffer[position++] = HEX_DIGITS[(length >>> shift) & 0xf];
+        }
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xc0 | c >> 6);
+                buffer[position++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < message.length()
+                    && Character.isLowSurrogate(message.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, message.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | codePoint >> 18);
+                buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xe0 | c >> 12);
+                buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buffer[position++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+    }
+
+    /**
+     * Adds a status, e.g. {@link #OKAY}, to the pending output.
+     */
+    public void encodeStatus(int status) {
+        ensureCapacity(position + 4);
+        buffer[position++] = (byte) (status >>> 24);
+        buffer[position++] = (byte) (status >>> 16);
+        buffer[position++] = (byte) (status >>> 8);
+        buffer[position++] = (byte) status;
+    }
+
+    /**
+     * Writes all pending output in a single write.
+     */
+    public void flushTo(OutputStream output) throws IOException {
+        output.write(buffer, 0, position);
+        output.flush();
+        position = 0;
+    }
+
+    public void writeMessage(OutputStream output, CharSequence message) throws IOException {
+        encode(message);
+        flushTo(output);
+    }
+
+    public void writeStatus(OutputStream output, int status) throws IOException {
+        encodeStatus(status);
+        flushTo(output);
+    }
+
+    public int readStatus(InputStream input) throws IOException {
+        readFully(input, 4);
+        return (buffer[0] & 0xff) << 24 | (buffer[1] & 0xff) << 16 | (buffer[2] & 0xff) << 8 | (buffer[3] & 0xff);
+    }
+
+    public int readLength(InputStream input) throws IOException {
+        readFully(input, 4);
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            length = length << 4 | hexValue(buffer[i]);
+        }
+        return length;
+    }
+
+    /**
+     * Reads a length prefixed message.
+     */
+    public String readMessage(InputStream input) throws IOException {
+        return readString(input, readLength(input));
+    }
+
+    public String readString(InputStream input, int length) throws IOException {
+        readFully(input, length);
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int hexValue(byte digit) throws IOException {
+        if (digit >= '0' && digit <= '9') return digit - '0';
+        if (digit >= 'a' && digit <= 'f') return digit - 'a' + 10;
+        if (digit >= 'A' && digit <= 'F') return digit - 'A' + 10;
+        throw new IOException("Invalid hex digit in length: " + (char) (digit & 0xff));
+    }
+
+    private void readFully(InputStream input, int length) throws IOException {
+        if (position != 0) throw new IllegalStateException("Pending output must be flushed before reading");
+        ensureCapacity(length);
+        int offset = 0;
+        while (offset < length) {
+            int n = input.read(buffer, offset, length - offset);
+            if (n < 0) throw new EOFException();
+            offset += n;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, position);
+            buffer = grown;
+        }
+    }
+}
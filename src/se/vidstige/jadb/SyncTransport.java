@@ -2,14 +2,29 @@ package se.vidstige.jadb;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 
 /**
  * Created by vidstige on 2014-03-19.
+ *
+ * <p>Frames are assembled in a buffer and written when a protocol boundary is reached: before reading a reply, when
+ * a status or end of listing is sent, or on {@link #flush()}. Fixed size headers are read in one go.</p>
  */
 public class SyncTransport {
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    private static final int DENT_LENGTH = 4 + 4 + 4 + 4 + 4;
+    private static final int DNT2_LENGTH = 4 + 20 + 8 + 8 + 8 + 8 + 8 + 8 + 4;
+    private static final int STAT_LENGTH = 4 + 4 + 4 + 4;
+    private static final int STAT_V2_LENGTH = 4 + 4 + 8 + 8 + 4 + 4 + 4 + 4 + 8 + 8 + 8 + 8;
+    private static final int ENOENT = 2;
 
     private final DataOutput output;
     private final DataInput input;
+    private final byte[] frame = new byte[2 * MAX_CHUNK_SIZE];
+    private int framePosition = 0;
+    private final byte[] header = new byte[DNT2_LENGTH];
 
     public SyncTransport(DataOutput outputStream, DataInput inputStream) {
         output = outputStream;
@@ -18,35 +33,108 @@ public class SyncTransport {
 
     public void send(String syncCommand, String name) throws IOException {
         if (syncCommand.length() != 4) throw new IllegalArgumentException("sync commands must have length 4");
-        output.writeBytes(syncCommand);
         byte[] data = name.getBytes(StandardCharsets.UTF_8);
-        output.writeInt(Integer.reverseBytes(data.length));
-        output.write(data);
+        putId(syncCommand);
+        putInt(data.length);
+        putBytes(data, 0, data.length);
     }
 
     public void sendStatus(String statusCode, int length) throws IOException {
-        output.writeBytes(statusCode);
-        output.writeInt(Integer.reverseBytes(length));
+        putId(statusCode);
+        putInt(length);
+        flush();
+    }
+
+    /**
+     * Writes all buffered frames.
+     */
+    public void flush() throws IOException {
+        if (framePosition > 0) {
+            output.write(frame, 0, framePosition);
+            framePosition = 0;
+        }
     }
 
     public void verifyStatus() throws IOException, JadbException {
-        String status = readString(4);
-        int length = readInt();
-        if ("FAIL".equals(status)) {
+        readHeader(8);
+        int length = headerInt(4);
+        if (isHeaderId("FAIL")) {
             String error = readString(length);
             throw new JadbException(error);
         }
-        if (!"OKAY".equals(status)) {
-            throw new JadbException("Unknown error: " + status);
+        if (!isHeaderId("OKAY")) {
+            throw new JadbException("Unknown error: " + headerId());
+        }
+    }
+
+    private void reserve(int length) throws IOException {
+        if (framePosition + length > frame.length) flush();
+    }
+
+    private void putId(String id) throws IOException {
+        reserve(4);
+        for (int i = 0; i < 4; i++) {
+            frame[framePosition++] = (byte) id.charAt(i);
+        }
+    }
+
+    private void putInt(int value) throws IOException {
+        reserve(4);
+        for (int i = 0; i < 4; i++) {
+            frame[framePosition++] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private void putLong(long value) throws IOException {
+        reserve(8);
+        for (int i = 0; i < 8; i++) {
+            frame[framePosition++] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private void putZeros(int length) throws IOException {
+        reserve(length);
+        for (int i = 0; i < length; i++) {
+            frame[framePosition++] = 0;
+        }
+    }
+
+    private void putBytes(byte[] data, int offset, int length) throws IOException {
+        reserve(length);
+        if (length > frame.length) {
+            output.write(data, offset, length);
+            return;
         }
+        System.arraycopy(data, offset, frame, framePosition, length);
+        framePosition += length;
     }
 
-    private int readInt() throws IOException {
-        return Integer.reverseBytes(input.readInt());
+    /**
+     * Reads a fixed size header, skipping any unused fields in the same read.
+     */
+    private void readHeader(int length) throws IOException {
+        flush();
+        input.readFully(header, 0, length);
+    }
+
+    private int headerInt(int offset) {
+        return (header[offset] & 0xff) | (header[offset + 1] & 0xff) << 8
+                | (header[offset + 2] & 0xff) << 16 | (header[offset + 3] & 0xff) << 24;
+    }
+
+    private long headerLong(int offset) {
+        return (headerInt(offset) & 0xffffffffL) | (long) headerInt(offset + 4) << 32;
+    }
+
+    private boolean isHeaderId(String id) {
+        for (int i = 0; i < 4; i++) {
+            if (header[i] != id.charAt(i)) return false;
+        }
+        return true;
     }
 
-    private long readLong() throws IOException {
-        return Long.reverseBytes(input.readLong());
+    private String headerId() {
+        return new String(header, 0, 4, StandardCharsets.UTF_8);
     }
 
     private String readString(int length) throws IOException {
@@ -56,118 +144,322 @@ public class SyncTransport {
     }
 
     public void sendDirectoryEntry(RemoteFile file) throws IOException {
-        output.writeBytes("DENT");
-        output.writeInt(Integer.reverseBytes(0666 | (file.isDirectory() ? (1 << 14) : 0)));
-        output.writeInt(Integer.reverseBytes((int)file.getSize()));
-        output.writeInt(Integer.reverseBytes((int)file.getLastModified()));
+        putId("DENT");
+        putInt(0666 | (file.isDirectory() ? (1 << 14) : 0));
+        putInt((int) file.getSize());
+        putInt((int) file.getLastModified());
         byte[] pathChars = file.getPath().getBytes(StandardCharsets.UTF_8);
-        output.writeInt(Integer.reverseBytes(pathChars.length));
-        output.write(pathChars);
+        putInt(pathChars.length);
+        putBytes(pathChars, 0, pathChars.length);
     }
 
     public void sendDirectoryEntryDone() throws IOException {
-        output.writeBytes("DONE");
-        output.writeBytes("\0\0\0\0\0\0\0\0\0\0\0\0\0\0\0\0"); // equivalent to the length of a "normal" dent
+        putId("DONE");
+        putZeros(DENT_LENGTH - 4); // equivalent to the length of a "normal" dent
+        flush();
     }
 
     public void sendDirectoryEntryV2(RemoteFile file) throws IOException {
-        output.writeBytes("DNT2");
+        putId("DNT2");
         //20 unknown bytes
-        writeDummyBytes(20);
-        output.writeLong(Long.reverseBytes(0666 | (file.isDirectory() ? (1 << 14) : 0)));
-        writeDummyBytes(8);
-        output.writeLong(Long.reverseBytes(file.getSize()));
-        writeDummyBytes(8);
-        output.writeLong(Long.reverseBytes(file.getLastModified()));
-        writeDummyBytes(8);
+        putZeros(20);
+        putLong(0666 | (file.isDirectory() ? (1 << 14) : 0));
+        putZeros(8);
+        putLong(file.getSize());
+        putZeros(8);
+        putLong(file.getLastModified());
+        putZeros(8);
         byte[] pathChars = file.getPath().getBytes(StandardCharsets.UTF_8);
-        output.writeInt(Integer.reverseBytes(pathChars.length));
-        output.write(pathChars);
+        putInt(pathChars.length);
+        putBytes(pathChars, 0, pathChars.length);
     }
 
     public void sendDirectoryEntryDoneV2() throws IOException {
-        output.writeBytes("DONE");
+        putId("DONE");
         // equivalent to the length of a "normal" DNT2
-        writeDummyBytes(20 + 8 + 8 + 8 + 8 + 8 + 8 + 4);
-    }
-
-    private void writeDummyBytes(int countBytes) throws IOException {
-        for (int i=0;i<countBytes;i++) {
-            output.writeByte('\0');
-        }
+        putZeros(DNT2_LENGTH - 4);
+        flush();
     }
 
     public RemoteFileRecord readDirectoryEntry() throws IOException {
-        String id = readString(4);
-        int mode = readInt();
-        int size = readInt();
-        int time = readInt();
-        int nameLength = readInt();
+        readHeader(DENT_LENGTH);
+        int mode = headerInt(4);
+        int size = headerInt(8);
+        int time = headerInt(12);
+        int nameLength = headerInt(16);
+        boolean done = !isHeaderId("DENT");
         String name = readString(nameLength);
 
-        if (!"DENT".equals(id)) return RemoteFileRecord.DONE;
+        if (done) return RemoteFileRecord.DONE;
         return new RemoteFileRecord(name, mode, size, time);
     }
 
     public RemoteFileRecordV2 readDirectoryEntryV2() throws IOException {
-        String id = readString(4);
+        readHeader(DNT2_LENGTH);
         //see https://github.com/cstyan/adbDocumentation?tab=readme-ov-file#adb-list
         //After DNT2 there is 20 bytes of unknown data ( could be some extra file info that is undocumented )
-        skipBytes(20);
-
-        long mode = readLong();
-        //there is an extra added 8 bytes (which is undocumented )
-        skipBytes(8);
-        long size = readLong();
-        skipBytes(8);
-        long time = readLong();
-        skipBytes(8);
-
-        int nameLength = readInt();
+        long mode = headerLong(24);
+        //there is an extra added 8 bytes (which is undocumented ) after each of mode, size and time
+        long size = headerLong(40);
+        long time = headerLong(56);
+        int nameLength = headerInt(72);
+        boolean done = !isHeaderId("DNT2");
         String name = readString(nameLength);
 
-        if (!"DNT2".equals(id)) return RemoteFileRecordV2.DONE;
+        if (done) return RemoteFileRecordV2.DONE;
         return new RemoteFileRecordV2(name, mode, size, time);
     }
 
-    private void skipBytes(int countByes) throws IOException {
-        for (int i=0;i<countByes;i++) {
-            input.readByte();
+    /**
+     * Reads the reply to a STAT request, which does not tell why a stat failed.
+     */
+    public RemoteFileStat readStat(String path) throws IOException, JadbException {
+        readHeader(STAT_LENGTH);
+        if (!isHeaderId("STAT")) throw new JadbException("Unexpected reply to STAT: " + headerId());
+        int mode = headerInt(4);
+        return new RemoteFileStat(path, 0, mode, headerInt(8) & 0xffffffffL, headerInt(12) & 0xffffffffL);
+    }
+
+    /**
+     * Reads the reply to a STA2 or LST2 request.
+     */
+    public RemoteFileStat readStatV2(String path) throws IOException, JadbException {
+        readHeader(STAT_V2_LENGTH);
+        if (!isHeaderId("STA2") && !isHeaderId("LST2")) {
+            throw new JadbException("Unexpected reply to STA2/LST2: " + headerId());
         }
+        return new RemoteFileStat(path, headerInt(4), headerInt(24), headerLong(40), headerLong(56));
+    }
+
+    /**
+     * Sends the reply to a STAT request.
+     *
+     * @param file the file, or null if it does not exist.
+     */
+    public void sendStat(RemoteFile file) throws IOException {
+        putId("STAT");
+        putInt(file == null ? 0 : statMode(file));
+        putInt(file == null ? 0 : (int) file.getSize());
+        putInt(file == null ? 0 : (int) file.getLastModified());
     }
 
-    private void sendChunk(byte[] buffer, int offset, int length) throws IOException {
-        output.writeBytes("DATA");
-        output.writeInt(Integer.reverseBytes(length));
-        output.write(buffer, offset, length);
+    /**
+     * Sends the reply to a STA2 or LST2 request.
+     *
+     * @param id the id of the request.
+     * @param file the file, or null if it does not exist.
+     */
+    public void sendStatV2(String id, RemoteFile file) throws IOException {
+        putId(id);
+        putInt(file == null ? ENOENT : 0);
+        putZeros(8 + 8); // dev, ino
+        putInt(file == null ? 0 : statMode(file));
+        putZeros(4 + 4 + 4); // nlink, uid, gid
+        putLong(file == null ? 0 : file.getSize());
+        putLong(file == null ? 0 : file.getLastModified()); // atime
+        putLong(file == null ? 0 : file.getLastModified());
+        putLong(file == null ? 0 : file.getLastModified()); // ctime
+    }
+
+    private static int statMode(RemoteFile file) {
+        return file.isDirectory() ? 0040755 : 0100644;
     }
 
     private int readChunk(byte[] buffer) throws IOException, JadbException {
-        String id = readString(4);
-        int n = readInt();
-        if ("FAIL".equals(id)) {
+        readHeader(8);
+        int n = headerInt(4);
+        if (isHeaderId("FAIL")) {
             throw new JadbException(readString(n));
         }
-        if (!"DATA".equals(id)) return -1;
+        if (!isHeaderId("DATA")) return -1;
         input.readFully(buffer, 0, n);
         return n;
     }
 
+    /**
+     * Sends the stream as DATA chunks. Each chunk is read straight into the frame buffer after its header, so a
+     * chunk is written together with the frames before it.
+     */
     public void sendStream(InputStream in) throws IOException {
-        byte[] buffer = new byte[1024 * 64];
-        int n = in.read(buffer);
-        while (n != -1) {
-            sendChunk(buffer, 0, n);
-            n = in.read(buffer);
+        sendStream(in, Compression.NONE, null);
+    }
+
+    /**
+     * Sends the setup message which follows a SND2 request.
+     */
+    public void sendSendV2Setup(int mode, Compression compression) throws IOException {
+        putId("SND2");
+        putInt(mode);
+        putInt(compression.getFlag());
+    }
+
+    /**
+     * Sends the setup message which follows a RCV2 request.
+     */
+    public void sendRecvV2Setup(Compression compression) throws IOException {
+        putId("RCV2");
+        putInt(compression.getFlag());
+    }
+
+    /**
+     * Sends the stream as DATA chunks, compressed as one stream split over the chunks as sync v2 expects.
+     */
+    public void sendStream(InputStream in, Compression compression) throws IOException {
+        sendStream(in, compression, null);
+    }
+
+    /**
+     * Like {@link #sendStream(InputStream, Compression)}, and updates the digest with the uncompressed content as it
+     * is sent, so the source does not have to be read again to check it.
+     *
+     * @param digest may be null.
+     */
+    public void sendStream(InputStream in, Compression compression, MessageDigest digest) throws IOException {
+        if (compression == Compression.NONE) {
+            while (true) {
+                reserve(8 + MAX_CHUNK_SIZE);
+                int n = in.read(frame, framePosition + 8, MAX_CHUNK_SIZE);
+                if (n == -1) return;
+                if (digest != null) digest.update(frame, framePosition + 8, n);
+                putId("DATA");
+                putInt(n);
+                framePosition += n;
+            }
+        }
+        ChunkOutputStream chunks = new ChunkOutputStream();
+        Lz4FrameOutputStream compressed = new Lz4FrameOutputStream(chunks);
+        Stream.copy(digest == null ? in : new DigestInputStream(in, digest), compressed);
+        compressed.finish();
+        chunks.close();
+    }
+
+    /**
+     * Reads DATA chunks holding one compressed stream, see {@link #sendStream(InputStream, Compression)}.
+     */
+    public void readChunksTo(OutputStream stream, Compression compression) throws IOException, JadbException {
+        readChunksTo(stream, compression, null);
+    }
+
+    /**
+     * Like {@link #readChunksTo(OutputStream, Compression)}, and updates the digest with the uncompressed content as
+     * it is received.
+     *
+     * @param digest may be null.
+     */
+    public void readChunksTo(OutputStream stream, Compression compression, MessageDigest digest)
+            throws IOException, JadbException {
+        if (compression == Compression.NONE) {
+            byte[] buffer = new byte[MAX_CHUNK_SIZE];
+            int n = readChunk(buffer);
+            while (n != -1) {
+                if (digest != null) digest.update(buffer, 0, n);
+                stream.write(buffer, 0, n);
+                n = readChunk(buffer);
+            }
+            return;
+        }
+        try {
+            Stream.copy(new Lz4FrameInputStream(new ChunkInputStream()),
+                    digest == null ? stream : new DigestOutputStream(stream, digest));
+        } catch (FailReplyException e) {
+            throw (JadbException) e.getCause();
         }
     }
 
     public void readChunksTo(OutputStream stream) throws IOException, JadbException {
-        byte[] buffer = new byte[1024 * 64];
-        int n = readChunk(buffer);
-        while (n != -1) {
-            stream.write(buffer, 0, n);
-            n = readChunk(buffer);
+        readChunksTo(stream, Compression.NONE, null);
+    }
+
+    /**
+     * Carries a FAIL reply through the InputStream interface.
+     */
+    private static class FailReplyException extends IOException {
+        FailReplyException(JadbException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        private static final long serialVersionUID = 5188721318342167324L;
+    }
+
+    /**
+     * The payload of consecutive DATA chunks, ends at the first other frame.
+     */
+    private class ChunkInputStream extends InputStream {
+        private final byte[] chunk = new byte[MAX_CHUNK_SIZE];
+        private int position = 0;
+        private int limit = 0;
+        private boolean done = false;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (position == limit) {
+                if (done) return -1;
+                try {
+                    int n = readChunk(chunk);
+                    if (n == -1) {
+                        done = true;
+                        return -1;
+                    }
+                    position = 0;
+                    limit = n;
+                } catch (JadbException e) {
+                    throw new FailReplyException(e);
+                }
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+    /**
+     * Splits what is written into DATA chunks, assembled directly in the frame buffer.
+     */
+    private class ChunkOutputStream extends OutputStream {
+        private int chunkStart = -1;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (chunkStart == -1) {
+                    reserve(8 + MAX_CHUNK_SIZE);
+                    chunkStart = framePosition;
+                    framePosition += 8;
+                }
+                int n = Math.min(len, MAX_CHUNK_SIZE - (framePosition - chunkStart - 8));
+                System.arraycopy(b, off, frame, framePosition, n);
+                framePosition += n;
+                off += n;
+                len -= n;
+                if (framePosition - chunkStart - 8 == MAX_CHUNK_SIZE) endChunk();
+            }
+        }
+
+        private void endChunk() {
+            int length = framePosition - chunkStart - 8;
+            for (int i = 0; i < 4; i++) {
+                frame[chunkStart + i] = (byte) "DATA".charAt(i);
+            }
+            Lz4FrameOutputStream.putInt(frame, chunkStart + 4, length);
+            chunkStart = -1;
+        }
+
+        @Override
+        public void close() {
+            if (chunkStart != -1) endChunk();
         }
     }
 }
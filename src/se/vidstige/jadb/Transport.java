@@ -2,7 +2,6 @@ package se.vidstige.jadb;
 
 import java.io.*;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 
 class Transport implements Closeable {
 
@@ -10,8 +9,11 @@ class Transport implements Closeable {
     private final InputStream inputStream;
     private final DataInputStream dataInput;
     private final DataOutputStream dataOutput;
+    private final boolean pipelining;
+    private final SmartSocketCodec codec = new SmartSocketCodec();
 
-    private Transport(OutputStream outputStream, InputStream inputStream) {
+    private Transport(OutputStream outputStream, InputStream inputStream, boolean pipelining) {
+        this.pipelining = pipelining;
         this.outputStream = outputStream;
         this.inputStream = inputStream;
         this.dataInput = new DataInputStream(inputStream);
@@ -19,13 +21,22 @@ class Transport implements Closeable {
     }
 
     public Transport(Socket socket) throws IOException {
-        this(socket.getOutputStream(), socket.getInputStream());
+        this(socket, false);
+    }
+
+    Transport(Socket socket, boolean pipelining) throws IOException {
+        this(socket.getOutputStream(), socket.getInputStream(), pipelining);
+    }
+
+    /**
+     * @return true if requests may be sent before the status of the previous one has been read.
+     */
+    boolean isPipelining() {
+        return pipelining;
     }
 
     public String readString() throws IOException {
-        String encodedLength = readString(4);
-        int length = Integer.parseInt(encodedLength, 16);
-        return readString(length);
+        return codec.readMessage(inputStream);
     }
 
     public void readResponseTo(OutputStream output) throws IOException {
@@ -36,34 +47,46 @@ class Transport implements Closeable {
         return inputStream;
     }
 
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
     public void verifyResponse() throws IOException, JadbException {
-        String response = readString(4);
-        if (!"OKAY".equals(response)) {
+        if (codec.readStatus(inputStream) != SmartSocketCodec.OKAY) {
             String error = readString();
             throw new JadbException("command failed: " + error);
         }
     }
 
     public String readString(int length) throws IOException {
-        byte[] responseBuffer = new byte[length];
-        dataInput.readFully(responseBuffer);
-        return new String(responseBuffer, StandardCharsets.UTF_8);
+        return codec.readString(inputStream, length);
     }
 
-    private String getCommandLength(String command) {
-        return String.format("%04x", command.getBytes().length);
+    public void send(String command) throws IOException {
+        codec.writeMessage(outputStream, command);
     }
 
-    public void send(String command) throws IOException {
-        OutputStreamWriter writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
-        writer.write(getCommandLength(command));
-        writer.write(command);
-        writer.flush();
+    /**
+     * Sends several requests in a single write. The status of each request must then be read in the same order
+     * with {@link #verifyResponse()}.
+     */
+    public void sendAll(String... commands) throws IOException {
+        for (String command : commands) {
+            codec.encode(command);
+        }
+        codec.flushTo(outputStream);
     }
 
     public SyncTransport startSync() throws IOException, JadbException {
         send("sync:");
         verifyResponse();
+        return getSyncTransport();
+    }
+
+    /**
+     * @return the sync protocol on this connection, after "sync:" has been acknowledged.
+     */
+    SyncTransport getSyncTransport() {
         return new SyncTransport(dataOutput, dataInput);
     }
 
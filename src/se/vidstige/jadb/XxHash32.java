@@ -0,0 +1,104 @@
+package se.vidstige.jadb;
+
+/**
+ * Streaming xxHash32, the checksum used by the LZ4 frame format.
+ */
+class XxHash32 {
+    private static final int PRIME1 = 0x9E3779B1;
+    private static final int PRIME2 = 0x85EBCA77;
+    private static final int PRIME3 = 0xC2B2AE3D;
+    private static final int PRIME4 = 0x27D4EB2F;
+    private static final int PRIME5 = 0x165667B1;
+
+    private final int seed;
+    private int v1;
+    private int v2;
+    private int v3;
+    private int v4;
+    private long totalLength;
+    private final byte[] memory = new byte[16];
+    private int memoryLength;
+
+    XxHash32(int seed) {
+        this.seed = seed;
+        reset();
+    }
+
+    static int hash(byte[] data, int offset, int length, int seed) {
+        XxHash32 hash = new XxHash32(seed);
+        hash.update(data, offset, length);
+        return hash.getValue();
+    }
+
+    void reset() {
+        v1 = seed + PRIME1 + PRIME2;
+        v2 = seed + PRIME2;
+        v3 = seed;
+        v4 = seed - PRIME1;
+        totalLength = 0;
+        memoryLength = 0;
+    }
+
+    void update(byte[] data, int offset, int length) {
+        totalLength += length;
+        if (memoryLength + length < 16) {
+            System.arraycopy(data, offset, memory, memoryLength, length);
+            memoryLength += length;
+            return;
+        }
+        int end = offset + length;
+        if (memoryLength > 0) {
+            int fill = 16 - memoryLength;
+            System.arraycopy(data, offset, memory, memoryLength, fill);
+            stripe(memory, 0);
+            offset += fill;
+            memoryLength = 0;
+        }
+        while (offset + 16 <= end) {
+            stripe(data, offset);
+            offset += 16;
+        }
+        memoryLength = end - offset;
+        System.arraycopy(data, offset, memory, 0, memoryLength);
+    }
+
+    private void stripe(byte[] data, int offset) {
+        v1 = round(v1, intAt(data, offset));
+        v2 = round(v2, intAt(data, offset + 4));
+        v3 = round(v3, intAt(data, offset + 8));
+        v4 = round(v4, intAt(data, offset + 12));
+    }
+
+    private static int round(int accumulator, int lane) {
+        return Integer.rotateLeft(accumulator + lane * PRIME2, 13) * PRIME1;
+    }
+
+    int getValue() {
+        int h;
+        if (totalLength >= 16) {
+            h = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7)
+                    + Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += (int) totalLength;
+        int i = 0;
+        for (; i + 4 <= memoryLength; i += 4) {
+            h = Integer.rotateLeft(h + intAt(memory, i) * PRIME3, 17) * PRIME4;
+        }
+        for (; i < memoryLength; i++) {
+            h = Integer.rotateLeft(h + (memory[i] & 0xff) * PRIME5, 11) * PRIME1;
+        }
+        h ^= h >>> 15;
+        h *= PRIME2;
+        h ^= h >>> 13;
+        h *= PRIME3;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static int intAt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,61 @@
+package se.vidstige.jadb.managers;
+
+/**
+ * One encoded H.264 frame in Annex B format, start codes included. Instances are reused by {@link ScreenStream}
+ * once the listener returns, so copy anything which must be kept.
+ */
+public class AccessUnit {
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] data;
+    private int length;
+    private boolean keyFrame;
+    private long timestampNanos;
+
+    AccessUnit(int capacity) {
+        data = new byte[capacity];
+    }
+
+    void set(byte[] source, int length, boolean keyFrame, long timestampNanos) {
+        set(EMPTY, source, length, keyFrame, timestampNanos);
+    }
+
+    /**
+     * @param prefix bytes to put in front of the frame, e.g. parameter sets it depends on.
+     */
+    void set(byte[] prefix, byte[] source, int length, boolean keyFrame, long timestampNanos) {
+        if (data.length < prefix.length + length) {
+            data = new byte[prefix.length + length];
+        }
+        System.arraycopy(prefix, 0, data, 0, prefix.length);
+        System.arraycopy(source, 0, data, prefix.length, length);
+        this.length = prefix.length + length;
+        this.keyFrame = keyFrame;
+        this.timestampNanos = timestampNanos;
+    }
+
+    /**
+     * @return the encoded frame, only the first {@link #getLength()} bytes are valid.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return true if the frame contains an IDR slice, i.e. decoding can start here.
+     */
+    public boolean isKeyFrame() {
+        return keyFrame;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the first byte of the frame was received.
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+}
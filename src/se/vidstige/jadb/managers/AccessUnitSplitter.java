@@ -0,0 +1,123 @@
+package se.vidstige.jadb.managers;
+
+import java.io.IOException;
+
+/**
+ * Splits an H.264 Annex B byte stream into access units, i.e. one encoded frame each including its start codes.
+ *
+ * Bytes are copied once into an internal buffer which is reused for every access unit, so splitting does not
+ * allocate once the buffer has grown to the largest frame. An access unit is only known to be complete when the
+ * next one starts, see ITU-T H.264 section 7.4.1.2.3.
+ */
+public class AccessUnitSplitter {
+    public interface Listener {
+        /**
+         * @param data the access unit, only valid until this method returns.
+         * @param length number of valid bytes in data.
+         * @param keyFrame true if the access unit contains an IDR slice.
+         * @param timestampNanos {@link System#nanoTime()} when the first byte of the access unit was received.
+         */
+        void onAccessUnit(byte[] data, int length, boolean keyFrame, long timestampNanos) throws IOException;
+    }
+
+    private static final int BODY = 0;
+    private static final int HEADER = 1;
+    private static final int SLICE = 2;
+
+    private final Listener listener;
+    private byte[] buffer = new byte[64 * 1024];
+    private int length = 0;
+    private int zeros = 0;
+    private int state = BODY;
+    private int nalType = 0;
+    private int nalStart = 0;
+    private boolean sawSlice = false;
+    private boolean keyFrame = false;
+    private long timestamp = 0;
+    private long now = 0;
+
+    public AccessUnitSplitter(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(byte[] data, int offset, int count, long timestampNanos) throws IOException {
+        now = timestampNanos;
+        if (length == 0 && count > 0) timestamp = now;
+        ensureCapacity(length + count);
+        for (int i = offset; i < offset + count; i++) {
+            byte b = data[i];
+            buffer[length++] = b;
+            if (state == HEADER) {
+                nalType = b & 0x1f;
+                if (isSlice(nalType)) {
+                    state = SLICE;
+                } else {
+                    startNal(false);
+                    state = BODY;
+                }
+            } else if (state == SLICE) {
+                // first_mb_in_slice is ue(v) coded, so a leading one bit means it is 0
+                startNal((b & 0x80) != 0);
+                state = BODY;
+            }
+
+            if (b == 0) {
+                zeros++;
+            } else {
+                if (b == 1 && zeros >= 2) {
+                    nalStart = length - 1 - Math.min(zeros, 3);
+                    state = HEADER;
+                }
+                zeros = 0;
+            }
+        }
+    }
+
+    /**
+     * Emits the last access unit at the end of the stream.
+     */
+    public void finish() throws IOException {
+        if (length > 0) {
+            listener.onAccessUnit(buffer, length, keyFrame, timestamp);
+        }
+        length = 0;
+        zeros = 0;
+        state = BODY;
+        sawSlice = false;
+        keyFrame = false;
+    }
+
+    private static boolean isSlice(int type) {
+        return type == 1 || type == 5;
+    }
+
+    private void startNal(boolean firstSliceOfPicture) throws IOException {
+        boolean startsAccessUnit = isSlice(nalType)
+                ? firstSliceOfPicture
+                : nalType == 6 || nalType == 7 || nalType == 8 || nalType == 9 || (nalType >= 14 && nalType <= 18);
+        if (sawSlice && startsAccessUnit) {
+            split();
+        }
+        if (isSlice(nalType)) sawSlice = true;
+        if (nalType == 5) keyFrame = true;
+    }
+
+    private void split() throws IOException {
+        listener.onAccessUnit(buffer, nalStart, keyFrame, timestamp);
+        int tail = length - nalStart;
+        System.arraycopy(buffer, nalStart, buffer, 0, tail);
+        length = tail;
+        nalStart = 0;
+        sawSlice = false;
+        keyFrame = false;
+        timestamp = now;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length < capacity) {
+            byte[] larger = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, larger, 0, length);
+            buffer = larger;
+        }
+    }
+}
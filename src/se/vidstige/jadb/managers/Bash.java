@@ -8,4 +8,12 @@ public class Bash {
     public static String quote(String s) {
         return "'" + s.replace("'", "'\\''") + "'";
     }
+
+    static String stripNewline(String output) {
+        int end = output.length();
+        while (end > 0 && (output.charAt(end - 1) == '\n' || output.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        return output.substring(0, end);
+    }
 }
@@ -0,0 +1,178 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.Channel;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.RemoteFileStat;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>Pulls files gzip compressed, which moves text such as logs, traces and databases several times faster over
+ * slow links. The file is compressed by gzip on the device and inflated on the host while it arrives.</p>
+ *
+ * <p>Compression is only used where it pays off. Small files, files which are compressed already, judging by their
+ * extension, and devices without gzip use a plain {@link JadbDevice#pull(RemoteFile, OutputStream)}.</p>
+ */
+public class CompressedTransfer {
+    private static final long DEFAULT_MINIMUM_SIZE = 64 * 1024;
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "7z", "aac", "apk", "br", "bz2", "gz", "heic", "jar", "jpeg", "jpg", "lz4", "m4a", "mkv", "mp3",
+            "mp4", "ogg", "opus", "png", "tgz", "webm", "webp", "xz", "zip", "zst"));
+
+    private final JadbDevice device;
+    private long minimumSize = DEFAULT_MINIMUM_SIZE;
+
+    /**
+     * What a pull transferred and how fast.
+     */
+    public static class Result {
+        private final long size;
+        private final long transferred;
+        private final long nanos;
+        private final boolean compressed;
+
+        Result(long size, long transferred, long nanos, boolean compressed) {
+            this.size = size;
+            this.transferred = transferred;
+            this.nanos = nanos;
+            this.compressed = compressed;
+        }
+
+        /**
+         * @return the size of the file as pulled, which may differ from an earlier stat if it is being written.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the number of bytes which went over the connection, less than the size if compressed.
+         */
+        public long getTransferred() {
+            return transferred;
+        }
+
+        public long getMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        /**
+         * @return file bytes per second, which for compressed pulls is more than the link carries.
+         */
+        public double getThroughput() {
+            return nanos == 0 ? 0 : size * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d bytes (%d transferred) in %d ms, %.1f KB/s", size, transferred,
+                    getMillis(), getThroughput() / 1024);
+        }
+    }
+
+    public CompressedTransfer(JadbDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * @param bytes files smaller than this are pulled uncompressed. Defaults to 64 KB.
+     */
+    public void setMinimumSize(long bytes) {
+        this.minimumSize = bytes;
+    }
+
+    public Result pull(RemoteFile remote, File local) throws IOException, JadbException {
+        try (OutputStream destination = new FileOutputStream(local)) {
+            return pull(remote, destination);
+        }
+    }
+
+    public Result pull(RemoteFile remote, OutputStream destination) throws IOException, JadbException {
+        long start = System.nanoTime();
+        RemoteFileStat stat = device.stat(remote);
+        if (stat.isRegularFile() && shouldCompress(remote.getPath(), stat.getSize())) {
+            // exec: sends stderr along with stdout, where it would corrupt the compressed stream
+            String command = "gzip -c -1 " + Bash.quote(remote.getPath()) + " 2>/dev/null";
+            try (Channel channel = device.connect("exec:" + command)) {
+                CountingInputStream counted = new CountingInputStream(channel.getInputStream());
+                BufferedInputStream in = new BufferedInputStream(counted, 64 * 1024);
+                in.mark(2);
+                boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+                in.reset();
+                if (gzip) {
+                    // The size may differ from the stat for a file which is being written. A stream which ended
+                    // early is caught by the length and checksum in the gzip trailer.
+                    long size = copy(new GZIPInputStream(in, 64 * 1024), destination);
+                    return new Result(size, counted.getCount(), System.nanoTime() - start, true);
+                }
+                // Nothing or no gzip output, so gzip is missing or could not read the file
+            }
+        }
+        device.pull(remote, destination);
+        long size = stat.isRegularFile() ? stat.getSize() : 0;
+        return new Result(size, size, System.nanoTime() - start, false);
+    }
+
+    private boolean shouldCompress(String path, long size) {
+        if (size < minimumSize) return false;
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if (dot <= slash + 1) return true;
+        return !COMPRESSED_EXTENSIONS.contains(path.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
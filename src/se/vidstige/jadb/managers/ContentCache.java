@@ -0,0 +1,236 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.CommandBatch;
+import se.vidstige.jadb.CommandResult;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Pushes files through a content addressed cache on the device. Every pushed file is also kept in a cache
+ * directory on the device, named by its SHA-256, and a manifest on the host remembers which hashes each device has.
+ * Pushing the same content again, to any path, is then a copy on the device instead of a transfer.</p>
+ *
+ * <p>The manifest is stored per device serial in a directory on the host, so it survives between runs. If the
+ * device no longer has a cached file, e.g. because it was wiped, the entry is dropped and the file pushed again.</p>
+ *
+ * <pre>
+ * ContentCache cache = new ContentCache(device, new File("build/jadb-cache"));
+ * for (File fixture : fixtures) {
+ *     cache.push(fixture, new RemoteFile("/sdcard/fixtures/" + fixture.getName()));
+ * }
+ * </pre>
+ */
+public class ContentCache {
+    private static final String DEFAULT_REMOTE_DIRECTORY = "/data/local/tmp/.jadb-cache";
+    private static final String TEMPORARY_SUFFIX = ".jadb-tmp";
+    //noinspection OctalInteger
+    private static final int DEFAULT_MODE = 0664;
+
+    private final JadbDevice device;
+    private final File manifestDirectory;
+    private String remoteDirectory = DEFAULT_REMOTE_DIRECTORY;
+    private boolean hardLinks = false;
+    private Properties manifest;
+
+    /**
+     * @param manifestDirectory where the manifests of all devices are kept on the host.
+     */
+    public ContentCache(JadbDevice device, File manifestDirectory) {
+        this.device = device;
+        this.manifestDirectory = manifestDirectory;
+    }
+
+    /**
+     * @param path the cache directory on the device. Defaults to /data/local/tmp/.jadb-cache.
+     */
+    public void setRemoteDirectory(String path) {
+        this.remoteDirectory = path;
+    }
+
+    /**
+     * Hard links cached files instead of copying them, which is instant but only works on the file system of the
+     * cache directory. Files pushed this way share their content, mode and modification time with the cache, so they
+     * must not be modified in place on the device, and a copy is made whenever mode or modification time have to
+     * differ from the cached file's. Off by default.
+     */
+    public void setHardLinks(boolean hardLinks) {
+        this.hardLinks = hardLinks;
+    }
+
+    public boolean push(File local, RemoteFile remote) throws IOException, JadbException {
+        return push(local, DEFAULT_MODE, remote);
+    }
+
+    /**
+     * @param mode permission bits of the remote file, e.g. 0644.
+     * @return true if the content was on the device already and no bytes were transferred.
+     */
+    public boolean push(File local, int mode, RemoteFile remote) throws IOException, JadbException {
+        String hash = hash(local);
+        String cached = remoteDirectory + "/" + hash;
+        long lastModified = TimeUnit.MILLISECONDS.toSeconds(local.lastModified());
+
+        String entry = get(hash);
+        if (entry != null) {
+            // The cached file has the mode and modification time of the push which added it
+            if (hardLinks && entry.equals(createEntry(local.length(), mode, lastModified)) && link(cached, remote)) {
+                return true;
+            }
+            if (copy(cached, remote, mode, lastModified)) return true;
+            // Gone from the device
+            remove(hash);
+        }
+
+        try (InputStream source = new FileInputStream(local)) {
+            device.push(source, lastModified, mode, remote);
+        }
+        // Copied under a temporary name first, so that an interrupted copy never looks like a cached file
+        String temporary = cached + ".tmp";
+        List<CommandResult> results = device.executeBatch(new CommandBatch()
+                .add("mkdir", "-p", remoteDirectory)
+                .add("cp", "-p", "-f", remote.getPath(), temporary)
+                .add("mv", "-f", temporary, cached));
+        for (CommandResult result : results) {
+            // Caching is best effort, the push itself succeeded
+            if (!result.isSuccess()) return false;
+        }
+        add(hash, createEntry(local.length(), mode, lastModified));
+        return false;
+    }
+
+    /**
+     * Deletes the cache directory on the device and forgets everything in it.
+     */
+    public synchronized void clear() throws IOException, JadbException {
+        CommandResult.checkSuccess(device.executeBatch(new CommandBatch().add("rm", "-rf", remoteDirectory)));
+        manifest = new Properties();
+        Files.deleteIfExists(getManifestFile().toPath());
+    }
+
+    private boolean link(String cached, RemoteFile remote) throws IOException, JadbException {
+        // No chmod or touch, they would change the cached file as well. Linked in under a temporary name, as the
+        // remote path may be a link to another cached file whose content must not change.
+        String temporary = remote.getPath() + TEMPORARY_SUFFIX;
+        List<CommandResult> results = device.executeBatch(new CommandBatch()
+                .add("mkdir", "-p", parentOf(remote.getPath()))
+                .add("ln", "-f", cached, temporary)
+                .add("mv", "-f", temporary, remote.getPath()));
+        for (CommandResult result : results) {
+            // Falls back to a copy, which also finds out whether the cached file is still there
+            if (!result.isSuccess()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the cached file is gone from the device.
+     */
+    private boolean copy(String cached, RemoteFile remote, int mode, long lastModified)
+            throws IOException, JadbException {
+        // Never written through the remote path, which may be a link to a cached file
+        String temporary = remote.getPath() + TEMPORARY_SUFFIX;
+        List<CommandResult> results = device.executeBatch(new CommandBatch()
+                .add("test", "-f", cached)
+                .add("mkdir", "-p", parentOf(remote.getPath()))
+                .add("rm", "-f", temporary)
+                .add("cp", "-f", cached, temporary)
+                .add("chmod", Integer.toOctalString(mode & 07777), temporary)
+                .add("touch", "-m", "-d", "@" + lastModified, temporary)
+                .add("mv", "-f", temporary, remote.getPath()));
+        if (!results.get(0).isSuccess()) return false;
+        for (CommandResult result : results) {
+            if (!result.isSuccess()) throw new JadbException("Command failed with " + result);
+        }
+        return true;
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        if (slash == -1) return ".";
+        return slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    private static String createEntry(long size, int mode, long lastModified) {
+        return size + " " + Integer.toOctalString(mode & 07777) + " " + lastModified;
+    }
+
+    private synchronized String get(String hash) throws IOException, JadbException {
+        return getManifest().getProperty(hash);
+    }
+
+    private synchronized void add(String hash, String entry) throws IOException, JadbException {
+        getManifest().setProperty(hash, entry);
+        saveManifest();
+    }
+
+    private synchronized void remove(String hash) throws IOException, JadbException {
+        getManifest().remove(hash);
+        saveManifest();
+    }
+
+    private Properties getManifest() throws IOException, JadbException {
+        if (manifest == null) {
+            manifest = new Properties();
+            File file = getManifestFile();
+            if (file.isFile()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    manifest.load(in);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    private void saveManifest() throws IOException, JadbException {
+        if (!manifestDirectory.isDirectory() && !manifestDirectory.mkdirs()) {
+            throw new IOException("Could not create " + manifestDirectory);
+        }
+        File file = getManifestFile();
+        File temporary = new File(manifestDirectory, file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporary)) {
+            manifest.store(out, "Content cached on " + device.getSerial());
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File getManifestFile() throws JadbException {
+        if (device.getSerial() == null) {
+            throw new JadbException("The content cache needs a device with a serial to keep its manifest");
+        }
+        // Serials of network devices contain a colon
+        return new File(manifestDirectory, device.getSerial().replaceAll("[^A-Za-z0-9._-]", "_") + ".manifest");
+    }
+
+    private static String hash(File local) throws IOException, JadbException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new JadbException("SHA-256 is not available: " + e.getMessage());
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(local)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return DigestManager.toHex(digest.digest());
+    }
+}
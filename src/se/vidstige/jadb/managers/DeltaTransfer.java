@@ -0,0 +1,388 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.Channel;
+import se.vidstige.jadb.CommandBatch;
+import se.vidstige.jadb.CommandResult;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.RemoteFileStat;
+import se.vidstige.jadb.Stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static se.vidstige.jadb.CommandBatch.MARKER;
+
+/**
+ * <p>Pushes a file by sending only what differs from the version already on the device, like rsync.</p>
+ *
+ * <p>The device splits the remote file into blocks and lists a cksum and an md5sum of each. The host then slides a window over
+ * the local file and looks up the window's cksum, which is cheap to update byte by byte, and confirms candidates with
+ * md5. Blocks which are found, at any offset, are copied on the device with dd, and only the bytes in between are
+ * pushed. Files which are new, small or not in the device's page cache gain little; large files with a few changes,
+ * such as snapshots and models, transfer a fraction of their size.</p>
+ *
+ * <p>Splitting the blocks takes as much free space next to the remote file as the file itself. Anything that goes
+ * wrong on the way, e.g. a device without cksum or split or too little space, ends in a plain
+ * {@link JadbDevice#push(InputStream, long, int, RemoteFile)}, but only once the script which rebuilds the file on
+ * the device has reported its exit status and can no longer write to it.</p>
+ */
+public class DeltaTransfer {
+    private static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    //noinspection OctalInteger
+    private static final int DEFAULT_MODE = 0664;
+
+    private final JadbDevice device;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    public DeltaTransfer(JadbDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * @param bytes the block size of the remote file's signature. Smaller blocks find more matches, but make longer
+     *              lists of signatures. Defaults to 256 KB.
+     */
+    public void setBlockSize(int bytes) {
+        if (bytes < 1) throw new IllegalArgumentException("Block size must be positive");
+        this.blockSize = bytes;
+    }
+
+    public long push(File local, RemoteFile remote) throws IOException, JadbException {
+        return push(local, DEFAULT_MODE, remote);
+    }
+
+    /**
+     * @param mode permission bits of the remote file, e.g. 0644.
+     * @return the number of bytes which were sent.
+     */
+    public long push(File local, int mode, RemoteFile remote) throws IOException, JadbException {
+        long lastModified = TimeUnit.MILLISECONDS.toSeconds(local.lastModified());
+        RemoteFileStat stat = device.stat(remote);
+        // Mapped in one piece, so larger files go in full
+        if (stat.isRegularFile() && stat.getSize() >= blockSize && local.length() <= Integer.MAX_VALUE) {
+            long sent = pushDelta(local, stat.getSize(), mode, lastModified, remote);
+            if (sent >= 0) return sent;
+        }
+        try (InputStream source = new FileInputStream(local)) {
+            device.push(source, lastModified, mode, remote);
+        }
+        return local.length();
+    }
+
+    /**
+     * @return the number of bytes sent, or -1 if the delta could not be used and a plain push should follow.
+     */
+    private long pushDelta(File local, long remoteSize, int mode, long lastModified, RemoteFile remote)
+            throws IOException, JadbException {
+        RemoteFile literals = new RemoteFile(remote.getPath() + ".jadb-literals");
+        RemoteFile script = new RemoteFile(remote.getPath() + ".jadb-script");
+        RemoteFile temporary = new RemoteFile(remote.getPath() + ".jadb-delta");
+        ByteBuffer data;
+        List<Operation> operations;
+        try {
+            List<Signature> signatures = readSignatures(remote, remoteSize / blockSize);
+            try (RandomAccessFile file = new RandomAccessFile(local, "r")) {
+                data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            }
+            operations = diff(data, signatures);
+        } catch (IOException | JadbException e) {
+            return -1;
+        }
+
+        LiteralInputStream source = new LiteralInputStream(data, operations);
+        byte[] commands = createScript(operations, literals, script, temporary, mode, lastModified, remote)
+                .getBytes(StandardCharsets.UTF_8);
+        try {
+            device.push(source, lastModified, DEFAULT_MODE, literals);
+            device.push(new ByteArrayInputStream(commands), lastModified, DEFAULT_MODE, script);
+        } catch (IOException | JadbException e) {
+            // Nothing has touched the remote file yet
+            try {
+                device.executeBatch(new CommandBatch().add("rm", "-f", literals.getPath(), script.getPath()));
+            } catch (IOException | JadbException ignored) {
+                // Only litter
+            }
+            return -1;
+        }
+
+        // Not caught, as the script could still be working on the remote file if its exit status never arrived.
+        // The script is run from a file, adb cannot signal the end of a script sent to stdin.
+        CommandResult result;
+        try (Channel exec = device.connect("exec:sh " + Bash.quote(script.getPath()))) {
+            result = CommandBatch.readResult(exec.getInputStream());
+        }
+        if (!result.isSuccess()) return -1;
+        // A wrong copy in the script would keep the size
+        String pushed = new DigestManager(device, "MD5").digest(remote);
+        return pushed.equals(md5(data)) ? source.getCount() : -1;
+    }
+
+    /**
+     * Lists cksum and md5sum of the first count whole blocks of the remote file. The blocks are split into a
+     * directory next to it in one pass, so the device starts a handful of processes instead of several per block.
+     */
+    private List<Signature> readSignatures(RemoteFile remote, long count) throws IOException, JadbException {
+        // Fixed width suffixes, so the blocks are listed in order
+        int suffixLength = 2;
+        for (long names = 26 * 26; names < count; names *= 26) suffixLength++;
+        String command = "d=" + Bash.quote(remote.getPath() + ".jadb-blocks") + "; rm -rf \"$d\"; mkdir \"$d\" && head -c "
+                + count * blockSize + " " + Bash.quote(remote.getPath()) + " | split -b " + blockSize + " -a "
+                + suffixLength + " - \"$d/b\" && cd \"$d\" && cksum b* && md5sum b*; s=$?; cd /; rm -rf \"$d\"; echo "
+                + MARKER + "$s";
+        String output;
+        try (Channel exec = device.connect("exec:" + command);
+             InputStream in = exec.getInputStream()) {
+            output = Stream.readAll(in, StandardCharsets.UTF_8);
+        }
+
+        String[] lines = output.split("\n");
+        if (lines.length != 2 * count + 1 || !lines[lines.length - 1].equals(MARKER + "0")) {
+            throw new JadbException("Could not list blocks of " + remote.getPath() + ": " + output);
+        }
+        List<Signature> signatures = new ArrayList<>((int) count);
+        for (int i = 0; i < count; i++) {
+            String[] weak = lines[i].trim().split("\\s+");
+            String[] strong = lines[(int) count + i].trim().split("\\s+");
+            if (weak.length < 3 || strong.length < 2 || !weak[1].equals(Integer.toString(blockSize))
+                    || strong[0].length() != 32 || !weak[2].equals(strong[1])) {
+                throw new JadbException("Unexpected block signature " + lines[i] + ", " + lines[(int) count + i]);
+            }
+            try {
+                signatures.add(new Signature(i, Long.parseLong(weak[0]), strong[0]));
+            } catch (NumberFormatException e) {
+                throw new JadbException("Unexpected block signature " + lines[i]);
+            }
+        }
+        return signatures;
+    }
+
+    private static String md5(ByteBuffer data) throws JadbException {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data.duplicate());
+            return DigestManager.toHex(md5.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new JadbException("MD5 is not available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Splits the local file into runs of remote blocks and of bytes which have to be sent.
+     */
+    List<Operation> diff(ByteBuffer data, List<Signature> signatures) throws JadbException {
+        Map<Long, List<Signature>> byChecksum = new HashMap<>();
+        for (Signature signature : signatures) {
+            List<Signature> matches = byChecksum.get(signature.checksum);
+            if (matches == null) {
+                matches = new ArrayList<>(1);
+                byChecksum.put(signature.checksum, matches);
+            }
+            matches.add(signature);
+        }
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new JadbException("MD5 is not available: " + e.getMessage());
+        }
+        List<Operation> operations = new ArrayList<>();
+        RollingChecksum checksum = new RollingChecksum(blockSize);
+        int size = data.capacity();
+        int literalStart = 0;
+        int position = 0;
+        boolean rolled = false;
+        while (position + blockSize <= size) {
+            if (rolled) {
+                checksum.roll(data.get(position - 1), data.get(position + blockSize - 1));
+            } else {
+                checksum.reset(data, position);
+            }
+            Signature match = null;
+            List<Signature> candidates = byChecksum.get(checksum.getValue());
+            if (candidates != null) {
+                ByteBuffer window = data.duplicate();
+                window.limit(position + blockSize).position(position);
+                md5.update(window);
+                String hash = DigestManager.toHex(md5.digest());
+                for (Signature candidate : candidates) {
+                    if (candidate.hash.equals(hash)) {
+                        match = candidate;
+                        break;
+                    }
+                }
+            }
+            if (match == null) {
+                position++;
+                rolled = true;
+                continue;
+            }
+            if (literalStart < position) operations.add(Operation.literal(literalStart, position - literalStart));
+            Operation last = operations.isEmpty() ? null : operations.get(operations.size() - 1);
+            if (last != null && last.isCopy() && last.block + last.count == match.index) {
+                last.count++;
+            } else {
+                operations.add(Operation.copy(match.index));
+            }
+            position += blockSize;
+            literalStart = position;
+            rolled = false;
+        }
+        if (literalStart < size) operations.add(Operation.literal(literalStart, size - literalStart));
+        return operations;
+    }
+
+    /**
+     * Builds the new file next to the old one from its blocks and the pushed literals, moves it in place and
+     * deletes itself and the literals.
+     */
+    private String createScript(List<Operation> operations, RemoteFile literals, RemoteFile script,
+                                RemoteFile temporary, int mode, long lastModified, RemoteFile remote) {
+        StringBuilder commands = new StringBuilder("(\n");
+        long literalBlock = 0;
+        for (Operation operation : operations) {
+            if (operation.isCopy()) {
+                commands.append("dd ").append(Bash.quote("if=" + remote.getPath()))
+                        .append(" ").append(Bash.quote("bs=" + blockSize))
+                        .append(" ").append(Bash.quote("skip=" + operation.block))
+                        .append(" ").append(Bash.quote("count=" + operation.count))
+                        .append(" 'status=none' || exit 1\n");
+            } else {
+                long blocks = (operation.length + blockSize - 1) / blockSize;
+                commands.append("dd ").append(Bash.quote("if=" + literals.getPath()))
+                        .append(" ").append(Bash.quote("bs=" + blockSize))
+                        .append(" ").append(Bash.quote("skip=" + literalBlock))
+                        .append(" ").append(Bash.quote("count=" + blocks))
+                        .append(" 'status=none' | head -c ").append(operation.length).append(" || exit 1\n");
+                literalBlock += blocks;
+            }
+        }
+        String path = Bash.quote(temporary.getPath());
+        commands.append(") > ").append(path)
+                .append(" && chmod ").append(Integer.toOctalString(mode & 07777)).append(" ").append(path)
+                .append(" && touch -m -d @").append(lastModified).append(" ").append(path)
+                .append(" && mv -f ").append(path).append(" ").append(Bash.quote(remote.getPath())).append("\n")
+                .append("s=$?; rm -f ").append(path).append(" ").append(Bash.quote(literals.getPath()))
+                .append(" ").append(Bash.quote(script.getPath()))
+                .append("; echo ").append(MARKER).append("$s\n");
+        return commands.toString();
+    }
+
+    static class Signature {
+        private final int index;
+        private final long checksum;
+        private final String hash;
+
+        Signature(int index, long checksum, String hash) {
+            this.index = index;
+            this.checksum = checksum;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Either count remote blocks from block on, or length local bytes from offset on.
+     */
+    static class Operation {
+        private final int block;
+        private int count;
+        private final int offset;
+        private final int length;
+
+        private Operation(int block, int count, int offset, int length) {
+            this.block = block;
+            this.count = count;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        static Operation copy(int block) {
+            return new Operation(block, 1, -1, 0);
+        }
+
+        static Operation literal(int offset, int length) {
+            return new Operation(-1, 0, offset, length);
+        }
+
+        boolean isCopy() {
+            return block >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return isCopy() ? "copy " + block + "+" + count : "literal " + offset + "+" + length;
+        }
+    }
+
+    /**
+     * The literal runs of a delta, each padded to whole blocks so the device can find them with dd.
+     */
+    private class LiteralInputStream extends InputStream {
+        private final ByteBuffer data;
+        private final List<Operation> literals = new ArrayList<>();
+        private int current = 0;
+        private long position = 0;
+        private long count = 0;
+
+        LiteralInputStream(ByteBuffer data, List<Operation> operations) {
+            this.data = data;
+            for (Operation operation : operations) {
+                if (!operation.isCopy()) literals.add(operation);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            while (current < literals.size()) {
+                Operation literal = literals.get(current);
+                boolean last = current == literals.size() - 1;
+                long padded = last ? literal.length : (literal.length + blockSize - 1) / blockSize * blockSize;
+                if (position == padded) {
+                    current++;
+                    position = 0;
+                    continue;
+                }
+                int n;
+                if (position < literal.length) {
+                    n = (int) Math.min(len, literal.length - position);
+                    ByteBuffer run = data.duplicate();
+                    run.position((int) (literal.offset + position));
+                    run.get(b, off, n);
+                } else {
+                    n = (int) Math.min(len, padded - position);
+                    for (int i = 0; i < n; i++) b[off + i] = 0;
+                }
+                position += n;
+                count += n;
+                return n;
+            }
+            return -1;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.CommandBatch;
+import se.vidstige.jadb.CommandResult;
+import se.vidstige.jadb.Compression;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Hashes files on the device with toybox sha256sum and friends, and checks pushed and pulled files against them.
+ * The host side hash is computed while the file is transferred, so checking costs no extra read of the local
+ * file.</p>
+ */
+public class DigestManager {
+    //noinspection OctalInteger
+    private static final int DEFAULT_MODE = 0664;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final JadbDevice device;
+    private final String algorithm;
+    private final String command;
+
+    /**
+     * Uses SHA-256.
+     */
+    public DigestManager(JadbDevice device) {
+        this(device, "SHA-256");
+    }
+
+    /**
+     * @param algorithm one of MD5, SHA-1, SHA-224, SHA-256, SHA-384 and SHA-512.
+     */
+    public DigestManager(JadbDevice device, String algorithm) {
+        this.device = device;
+        this.algorithm = algorithm;
+        this.command = getCommand(algorithm);
+    }
+
+    private static String getCommand(String algorithm) {
+        switch (algorithm.toUpperCase(Locale.ROOT)) {
+            case "MD5": return "md5sum";
+            case "SHA-1": return "sha1sum";
+            case "SHA-224": return "sha224sum";
+            case "SHA-256": return "sha256sum";
+            case "SHA-384": return "sha384sum";
+            case "SHA-512": return "sha512sum";
+            default: throw new IllegalArgumentException("No device command for " + algorithm);
+        }
+    }
+
+    /**
+     * @return the hash of the remote file in lower case hex.
+     */
+    public String digest(RemoteFile remote) throws IOException, JadbException {
+        return digest(Collections.singletonList(remote)).get(0);
+    }
+
+    /**
+     * Hashes many files with a single shell invocation.
+     *
+     * @return the hashes in lower case hex, in the same order as the files.
+     */
+    public List<String> digest(List<RemoteFile> remotes) throws IOException, JadbException {
+        CommandBatch batch = new CommandBatch();
+        for (RemoteFile remote : remotes) {
+            batch.add(command, remote.getPath());
+        }
+        List<CommandResult> results = device.executeBatch(batch);
+        List<String> digests = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            CommandResult result = results.get(i);
+            String output = result.getOutput().trim();
+            int end = output.indexOf(' ');
+            if (!result.isSuccess() || end == -1) {
+                throw new JadbException("Could not hash " + remotes.get(i).getPath() + ": " + result);
+            }
+            digests.add(output.substring(0, end).toLowerCase(Locale.ROOT));
+        }
+        return digests;
+    }
+
+    public void pushVerified(File local, RemoteFile remote) throws IOException, JadbException {
+        pushVerified(local, remote, Compression.NONE);
+    }
+
+    /**
+     * Pushes the file and checks it against a hash computed on the device afterwards.
+     *
+     * @throws JadbException if the hashes differ.
+     */
+    public void pushVerified(File local, RemoteFile remote, Compression compression)
+            throws IOException, JadbException {
+        MessageDigest digest = createDigest();
+        try (InputStream source = new FileInputStream(local)) {
+            device.push(source, TimeUnit.MILLISECONDS.toSeconds(local.lastModified()), DEFAULT_MODE, remote,
+                    compression, digest);
+        }
+        verify(remote, toHex(digest.digest()), digest(remote));
+    }
+
+    public void pullVerified(RemoteFile remote, File local) throws IOException, JadbException {
+        pullVerified(remote, local, Compression.NONE);
+    }
+
+    /**
+     * Pulls the file while the device hashes it on a second connection, and checks that both hashes are equal.
+     *
+     * @throws JadbException if the hashes differ.
+     */
+    public void pullVerified(final RemoteFile remote, File local, Compression compression)
+            throws IOException, JadbException {
+        FutureTask<String> remoteDigest = new FutureTask<>(new Callable<String>() {
+            @Override
+            public String call() throws IOException, JadbException {
+                return digest(remote);
+            }
+        });
+        Thread thread = new Thread(remoteDigest, "Digest " + remote.getPath());
+        thread.setDaemon(true);
+        thread.start();
+
+        MessageDigest digest = createDigest();
+        try (OutputStream destination = new FileOutputStream(local)) {
+            device.pull(remote, destination, compression, digest);
+        }
+        try {
+            verify(remote, toHex(digest.digest()), remoteDigest.get());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof JadbException) throw (JadbException) e.getCause();
+            throw new JadbException("Could not hash " + remote.getPath() + ": " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JadbException("Interrupted while hashing " + remote.getPath());
+        }
+    }
+
+    private static void verify(RemoteFile remote, String local, String device) throws JadbException {
+        if (!local.equals(device)) {
+            throw new JadbException("Digest mismatch for " + remote.getPath() + ": " + local + " on the host, "
+                    + device + " on the device");
+        }
+    }
+
+    private MessageDigest createDigest() throws JadbException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new JadbException(algorithm + " is not available: " + e.getMessage());
+        }
+    }
+
+    static String toHex(byte[] data) {
+        char[] hex = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(data[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[data[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
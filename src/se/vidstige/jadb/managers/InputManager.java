@@ -0,0 +1,260 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.Channel;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Injects input events with millisecond latency. Running "input tap" starts a new process on the device for every
+ * event, instead this keeps one monkey process running in network mode and sends events to it over a single
+ * connection. A batch of events is written in one go and the replies are read afterwards.
+ *
+ * <pre>
+ * try (InputManager input = new InputManager(device)) {
+ *     input.open();
+ *     input.batch().tap(100, 200).text("hello world").keyPress(KEYCODE_ENTER).execute();
+ * }
+ * </pre>
+ */
+public class InputManager implements Closeable {
+    public static final int KEYCODE_HOME = 3;
+    public static final int KEYCODE_BACK = 4;
+    public static final int KEYCODE_TAB = 61;
+    public static final int KEYCODE_SPACE = 62;
+    public static final int KEYCODE_ENTER = 66;
+
+    private static final int DEFAULT_PORT = 1080;
+    private static final long STARTUP_TIMEOUT_MILLIS = 10000;
+    private static final long STARTUP_RETRY_MILLIS = 100;
+
+    private final JadbDevice device;
+    private final int port;
+    private InputStream monkey = null;
+    private Channel channel = null;
+    private BufferedReader replies = null;
+
+    public InputManager(JadbDevice device) {
+        this(device, DEFAULT_PORT);
+    }
+
+    /**
+     * @param port port on the device used by monkey, only reachable from the device itself.
+     */
+    public InputManager(JadbDevice device, int port) {
+        this.device = device;
+        this.port = port;
+    }
+
+    /**
+     * Starts monkey on the device and connects to it. Monkey stops when this is closed.
+     */
+    public synchronized void open() throws IOException, JadbException {
+        if (channel != null) return;
+        monkey = device.executeShell("monkey", "--port", Integer.toString(port));
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                connect();
+                // Connecting succeeds even before monkey listens, only a reply proves it is up
+                send(new Batch().sleep(0).commands);
+                return;
+            } catch (IOException | JadbException e) {
+                disconnect();
+                if (System.currentTimeMillis() > deadline) {
+                    close();
+                    throw new JadbException("Could not connect to monkey on port " + port + ": " + e.getMessage());
+                }
+            }
+            try {
+                Thread.sleep(STARTUP_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new JadbException("Interrupted while starting monkey");
+            }
+        }
+    }
+
+    private void connect() throws IOException, JadbException {
+        channel = device.connect("tcp:" + port);
+        replies = new BufferedReader(new InputStreamReader(channel.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private void disconnect() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The connection is useless anyway
+        }
+        channel = null;
+        replies = null;
+    }
+
+    public Batch batch() {
+        return new Batch();
+    }
+
+    public void tap(int x, int y) throws IOException, JadbException {
+        batch().tap(x, y).execute();
+    }
+
+    public void swipe(int x1, int y1, int x2, int y2, long durationMillis) throws IOException, JadbException {
+        batch().swipe(x1, y1, x2, y2, durationMillis).execute();
+    }
+
+    public void keyPress(int keyCode) throws IOException, JadbException {
+        batch().keyPress(keyCode).execute();
+    }
+
+    public void text(String text) throws IOException, JadbException {
+        batch().text(text).execute();
+    }
+
+    private synchronized void send(List<String> commands) throws IOException, JadbException {
+        if (channel == null) throw new JadbException("InputManager is not open");
+        StringBuilder request = new StringBuilder();
+        for (String command : commands) {
+            request.append(command).append('\n');
+        }
+        OutputStream output = channel.getOutputStream();
+        output.write(request.toString().getBytes(StandardCharsets.UTF_8));
+        output.flush();
+
+        StringBuilder errors = new StringBuilder();
+        for (String command : commands) {
+            String reply = replies.readLine();
+            if (reply == null) throw new IOException("Monkey closed the connection");
+            if (!reply.startsWith("OK")) {
+                if (errors.length() > 0) errors.append(", ");
+                errors.append(command).append(" (").append(reply).append(")");
+            }
+        }
+        if (errors.length() > 0) throw new JadbException("Input events failed: " + errors);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            try {
+                channel.getOutputStream().write("quit\n".getBytes(StandardCharsets.UTF_8));
+                channel.getOutputStream().flush();
+            } catch (IOException e) {
+                // Monkey is stopped below in any case
+            }
+            disconnect();
+        }
+        if (monkey != null) {
+            monkey.close();
+            monkey = null;
+        }
+    }
+
+    /**
+     * A sequence of input events, sent to the device in one write.
+     */
+    public class Batch {
+        private final List<String> commands = new ArrayList<>();
+
+        private Batch() {
+        }
+
+        public Batch tap(int x, int y) {
+            commands.add("tap " + x + " " + y);
+            return this;
+        }
+
+        public Batch touchDown(int x, int y) {
+            commands.add("touch down " + x + " " + y);
+            return this;
+        }
+
+        public Batch touchMove(int x, int y) {
+            commands.add("touch move " + x + " " + y);
+            return this;
+        }
+
+        public Batch touchUp(int x, int y) {
+            commands.add("touch up " + x + " " + y);
+            return this;
+        }
+
+        /**
+         * Moves from one point to another in steps of roughly 10 ms.
+         */
+        public Batch swipe(int x1, int y1, int x2, int y2, long durationMillis) {
+            int steps = (int) Math.max(1, durationMillis / 10);
+            touchDown(x1, y1);
+            for (int i = 1; i <= steps; i++) {
+                sleep(durationMillis / steps);
+                touchMove(x1 + (x2 - x1) * i / steps, y1 + (y2 - y1) * i / steps);
+            }
+            return touchUp(x2, y2);
+        }
+
+        public Batch keyDown(int keyCode) {
+            commands.add("key down " + keyCode);
+            return this;
+        }
+
+        public Batch keyUp(int keyCode) {
+            commands.add("key up " + keyCode);
+            return this;
+        }
+
+        public Batch keyPress(int keyCode) {
+            commands.add("press " + keyCode);
+            return this;
+        }
+
+        /**
+         * Types text. Spaces, tabs and newlines are sent as key presses since monkey splits commands on whitespace.
+         */
+        public Batch text(String text) {
+            StringBuilder word = new StringBuilder();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                int keyCode = c == ' ' ? KEYCODE_SPACE : c == '\t' ? KEYCODE_TAB : c == '\n' ? KEYCODE_ENTER : -1;
+                if (keyCode == -1) {
+                    // monkey treats a leading quote as the start of a quoted string unless escaped
+                    word.append(c == '"' ? "\\\"" : String.valueOf(c));
+                    continue;
+                }
+                typeWord(word);
+                keyPress(keyCode);
+            }
+            typeWord(word);
+            return this;
+        }
+
+        private void typeWord(StringBuilder word) {
+            if (word.length() > 0) {
+                commands.add("type " + word);
+                word.setLength(0);
+            }
+        }
+
+        public Batch sleep(long millis) {
+            commands.add("sleep " + millis);
+            return this;
+        }
+
+        List<String> getCommands() {
+            return commands;
+        }
+
+        public void execute() throws IOException, JadbException {
+            send(commands);
+        }
+    }
+}
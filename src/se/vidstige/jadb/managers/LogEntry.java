@@ -0,0 +1,149 @@
+package se.vidstige.jadb.managers;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single logcat entry. Instances are meant to be reused: {@link LogcatReader#read(LogEntry)} overwrites all fields
+ * and the payload buffer, so copy anything which must outlive the next read. Tag and message are only decoded into
+ * strings when asked for.
+ */
+public class LogEntry {
+    /**
+     * The log id of entries whose header does not carry one. 0 is the main log.
+     */
+    public static final int UNKNOWN_LOG_ID = -1;
+
+    private int pid;
+    private int tid;
+    private int seconds;
+    private int nanoseconds;
+    private int logId = UNKNOWN_LOG_ID;
+    private int uid;
+
+    byte[] payload;
+    private int payloadLength;
+    private int tagEnd;
+    private int messageEnd;
+    private String tag;
+    private String message;
+
+    public LogEntry() {
+        this(LogcatReader.DEFAULT_PAYLOAD_CAPACITY);
+    }
+
+    LogEntry(int capacity) {
+        payload = new byte[capacity];
+    }
+
+    void set(int pid, int tid, int seconds, int nanoseconds, int logId, int uid, int payloadLength) {
+        this.pid = pid;
+        this.tid = tid;
+        this.seconds = seconds;
+        this.nanoseconds = nanoseconds;
+        this.logId = logId;
+        this.uid = uid;
+        this.payloadLength = payloadLength;
+        this.tag = null;
+        this.message = null;
+
+        // payload is: priority byte, tag, NUL, message, NUL
+        tagEnd = indexOfNul(1);
+        messageEnd = indexOfNul(Math.min(tagEnd + 1, payloadLength));
+    }
+
+    void copyFrom(LogEntry other) {
+        if (payload.length < other.payloadLength) {
+            payload = new byte[other.payloadLength];
+        }
+        System.arraycopy(other.payload, 0, payload, 0, other.payloadLength);
+        pid = other.pid;
+        tid = other.tid;
+        seconds = other.seconds;
+        nanoseconds = other.nanoseconds;
+        logId = other.logId;
+        uid = other.uid;
+        payloadLength = other.payloadLength;
+        tagEnd = other.tagEnd;
+        messageEnd = other.messageEnd;
+        tag = other.tag;
+        message = other.message;
+    }
+
+    private int indexOfNul(int from) {
+        for (int i = from; i < payloadLength; i++) {
+            if (payload[i] == 0) return i;
+        }
+        return payloadLength;
+    }
+
+    public int getPid() {
+        return pid;
+    }
+
+    public int getTid() {
+        return tid;
+    }
+
+    /** Only reported by devices using logger entry v4 or later, {@link #UNKNOWN_LOG_ID} otherwise. */
+    public int getLogId() {
+        return logId;
+    }
+
+    /** Only reported by devices using logger entry v4 or later, 0 otherwise. */
+    public int getUid() {
+        return uid;
+    }
+
+    public long getTimestampSeconds() {
+        return seconds & 0xffffffffL;
+    }
+
+    public int getTimestampNanoseconds() {
+        return nanoseconds;
+    }
+
+    public long getTimestampMillis() {
+        return getTimestampSeconds() * 1000 + nanoseconds / 1000000;
+    }
+
+    public Logcat.Priority getPriority() {
+        return payloadLength == 0 ? Logcat.Priority.VERBOSE : Logcat.Priority.fromValue(payload[0]);
+    }
+
+    public String getTag() {
+        if (tag == null) {
+            int start = Math.min(1, payloadLength);
+            tag = new String(payload, start, tagEnd - start, StandardCharsets.UTF_8);
+        }
+        return tag;
+    }
+
+    public String getMessage() {
+        if (message == null) {
+            int start = Math.min(tagEnd + 1, payloadLength);
+            message = new String(payload, start, messageEnd - start, StandardCharsets.UTF_8);
+        }
+        return message;
+    }
+
+    /**
+     * @return true if the tag equals the given one, without decoding the tag into a string.
+     */
+    public boolean hasTag(String expected) {
+        if (tag != null) return tag.equals(expected);
+        for (int i = 0; i < expected.length(); i++) {
+            if (expected.charAt(i) > 0x7f) return getTag().equals(expected);
+        }
+        int length = tagEnd - 1;
+        if (length != expected.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (payload[1 + i] != expected.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return getPid() + " " + getTid() + " " + getPriority().getLetter() + " " + getTag() + ": " + getMessage();
+    }
+}
@@ -0,0 +1,25 @@
+package se.vidstige.jadb.managers;
+
+/**
+ * Selects log entries by tag and minimum priority. Override {@link #accept(LogEntry)} for other criteria.
+ */
+public class LogFilter {
+    public static final LogFilter ALL = new LogFilter(null, Logcat.Priority.VERBOSE);
+
+    private final String tag;
+    private final Logcat.Priority minimum;
+
+    /**
+     * @param tag the tag to accept, or null to accept any tag.
+     * @param minimum the lowest priority to accept.
+     */
+    public LogFilter(String tag, Logcat.Priority minimum) {
+        this.tag = tag;
+        this.minimum = minimum;
+    }
+
+    public boolean accept(LogEntry entry) {
+        if (entry.getPriority().compareTo(minimum) < 0) return false;
+        return tag == null || entry.hasTag(tag);
+    }
+}
@@ -0,0 +1,262 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one logcat stream per device between any number of subscribers. The upstream connection is opened by the
+ * first subscription and closed when the last one is closed.
+ *
+ * Every subscription has its own filter, its own delivery thread and a bounded queue of preallocated entries. When
+ * a subscriber falls behind, its {@link OverflowPolicy} decides whether entries are dropped for that subscriber only,
+ * or whether reading the log is paused for everyone until the subscriber catches up.
+ */
+public class LogHub {
+    public enum OverflowPolicy { DROP, BLOCK }
+
+    private static final Map<JadbDevice, LogHub> hubs = new HashMap<>();
+    private static final int INITIAL_ENTRY_CAPACITY = 256;
+
+    private final JadbDevice device;
+    private final boolean shared;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private LogcatReader upstream = null;
+
+    public LogHub(JadbDevice device) {
+        this(device, false);
+    }
+
+    private LogHub(JadbDevice device, boolean shared) {
+        this.device = device;
+        this.shared = shared;
+    }
+
+    /**
+     * @return the hub shared by everyone in this process for the given device. It is forgotten when its last
+     * subscription is closed.
+     */
+    public static LogHub forDevice(JadbDevice device) {
+        synchronized (hubs) {
+            LogHub hub = hubs.get(device);
+            if (hub == null) {
+                hub = new LogHub(device, true);
+                hubs.put(device, hub);
+            }
+            return hub;
+        }
+    }
+
+    /**
+     * @param filter selects the entries passed to the listener.
+     * @param listener called on the subscription's own thread, returning false closes the subscription.
+     * @param capacity maximum number of entries queued for this subscriber.
+     * @param policy what to do with entries when the queue is full.
+     */
+    public synchronized Subscription subscribe(LogFilter filter, Logcat.Listener listener, int capacity, OverflowPolicy policy)
+            throws IOException, JadbException {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+        Subscription subscription = new Subscription(filter, listener, capacity, policy);
+        // Added before the upstream starts, so that the first subscriber sees the first entries
+        subscriptions.add(subscription);
+        subscription.start();
+        if (upstream == null) {
+            try {
+                startUpstream();
+            } catch (IOException | JadbException | RuntimeException e) {
+                subscriptions.remove(subscription);
+                subscription.end(e);
+                throw e;
+            }
+        }
+        return subscription;
+    }
+
+    private void startUpstream() throws IOException, JadbException {
+        final LogcatReader reader = new Logcat(device).open();
+        upstream = reader;
+        if (shared) {
+            // Handed out again after it was forgotten
+            synchronized (hubs) {
+                if (!hubs.containsKey(device)) hubs.put(device, this);
+            }
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pump(reader);
+            }
+        }, "LogHub " + device.getSerial());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void pump(LogcatReader reader) {
+        Exception failure = null;
+        try {
+            LogEntry entry = new LogEntry();
+            while (reader.read(entry)) {
+                for (Subscription subscription : subscriptions) {
+                    subscription.offer(entry);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = e;
+            Thread.currentThread().interrupt();
+        }
+        upstreamEnded(reader, failure);
+    }
+
+    private synchronized void upstreamEnded(LogcatReader reader, Exception failure) {
+        if (upstream != reader) return; // closed because the last subscriber left
+        upstream = null;
+        forget();
+        for (Subscription subscription : subscriptions) {
+            subscription.end(failure);
+        }
+        subscriptions.clear();
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        if (!subscriptions.remove(subscription) || !subscriptions.isEmpty() || upstream == null) return;
+        LogcatReader reader = upstream;
+        upstream = null;
+        forget();
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // Nothing left to report it to
+        }
+    }
+
+    private void forget() {
+        if (!shared) return;
+        synchronized (hubs) {
+            if (hubs.get(device) == this) hubs.remove(device);
+        }
+    }
+
+    public class Subscription implements Closeable {
+        private final LogFilter filter;
+        private final Logcat.Listener listener;
+        private final OverflowPolicy policy;
+        private final BlockingQueue<LogEntry> free = new LinkedBlockingQueue<>();
+        private final BlockingQueue<LogEntry> queued = new LinkedBlockingQueue<>();
+        private final LogEntry end = new LogEntry(0);
+        private final AtomicLong dropped = new AtomicLong();
+        private final Thread thread;
+        private volatile boolean closed = false;
+        private volatile Exception failure = null;
+
+        private Subscription(LogFilter filter, Logcat.Listener listener, int capacity, OverflowPolicy policy) {
+            this.filter = filter;
+            this.listener = listener;
+            this.policy = policy;
+            for (int i = 0; i < capacity; i++) {
+                free.add(new LogEntry(INITIAL_ENTRY_CAPACITY));
+            }
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            }, "LogHub subscriber " + device.getSerial());
+            thread.setDaemon(true);
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        private void offer(LogEntry entry) throws InterruptedException {
+            if (closed || !filter.accept(entry)) return;
+            LogEntry slot = policy == OverflowPolicy.BLOCK ? free.take() : free.poll();
+            if (slot == null) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (closed) return;
+            slot.copyFrom(entry);
+            queued.add(slot);
+        }
+
+        private void deliver() {
+            try {
+                for (LogEntry entry = queued.take(); entry != end; entry = queued.take()) {
+                    boolean more;
+                    try {
+                        more = listener.onEntry(entry);
+                    } catch (RuntimeException e) {
+                        // Unsubscribes and wakes up the upstream, which may be waiting for a slot of this subscriber
+                        failure = e;
+                        close();
+                        return;
+                    }
+                    free.add(entry);
+                    if (!more) {
+                        close();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void end(Exception failure) {
+            this.failure = failure;
+            closed = true;
+            queued.add(end);
+        }
+
+        /**
+         * @return number of entries which matched the filter but were dropped because the queue was full.
+         */
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        /**
+         * @return the error which ended the upstream log or was thrown by the listener, or null.
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Waits until all queued entries have been delivered after the subscription was closed or the log ended.
+         *
+         * @return false on timeout.
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            thread.join(unit.toMillis(timeout));
+            return !thread.isAlive();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            unsubscribe(this);
+            // wake up a blocked upstream and the delivery thread
+            free.add(new LogEntry(0));
+            queued.add(end);
+        }
+    }
+}
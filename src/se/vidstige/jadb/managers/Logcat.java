@@ -0,0 +1,122 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the device log through the binary logcat format. Tag and priority filters are passed on to logcat, so
+ * filtered out entries never leave the device.
+ *
+ * <pre>
+ * new Logcat(device).filter("ActivityManager", Logcat.Priority.INFO).read(listener);
+ * </pre>
+ */
+public class Logcat {
+    public enum Priority {
+        VERBOSE('V'), DEBUG('D'), INFO('I'), WARN('W'), ERROR('E'), FATAL('F'), SILENT('S');
+
+        private static final Priority[] VALUES = values();
+        private final char letter;
+
+        Priority(char letter) {
+            this.letter = letter;
+        }
+
+        public char getLetter() {
+            return letter;
+        }
+
+        /**
+         * @return the numeric value used by liblog, VERBOSE = 2 up to SILENT = 8.
+         */
+        public int getValue() {
+            return ordinal() + 2;
+        }
+
+        static Priority fromValue(int value) {
+            return VALUES[Math.max(0, Math.min(VALUES.length - 1, value - 2))];
+        }
+    }
+
+    /**
+     * Receives log entries. The entry object is reused for the next entry once this method returns. No more data is
+     * read from the device while the listener is busy, so a slow listener throttles the device instead of buffering
+     * the log in memory.
+     */
+    public interface Listener {
+        /**
+         * @return false to stop reading.
+         */
+        boolean onEntry(LogEntry entry);
+    }
+
+    private final JadbDevice device;
+    private final List<String> filterSpecs = new ArrayList<>();
+    private Priority defaultPriority = null;
+    private boolean dump = false;
+
+    public Logcat(JadbDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Only include entries with the given tag at or above the given priority. Once a filter is added, entries with
+     * other tags are excluded unless {@link #defaultPriority(Priority)} is set.
+     */
+    public Logcat filter(String tag, Priority minimum) {
+        filterSpecs.add(tag + ":" + minimum.getLetter());
+        return this;
+    }
+
+    /**
+     * Minimum priority for entries whose tag has no filter.
+     */
+    public Logcat defaultPriority(Priority minimum) {
+        defaultPriority = minimum;
+        return this;
+    }
+
+    /**
+     * Only read the entries currently in the log and then stop, instead of waiting for new entries.
+     */
+    public Logcat dump() {
+        dump = true;
+        return this;
+    }
+
+    List<String> getArguments() {
+        List<String> arguments = new ArrayList<>();
+        arguments.add("-B");
+        if (dump) arguments.add("-d");
+        arguments.addAll(filterSpecs);
+        if (defaultPriority != null) {
+            arguments.add("*:" + defaultPriority.getLetter());
+        } else if (!filterSpecs.isEmpty()) {
+            arguments.add("*:" + Priority.SILENT.getLetter());
+        }
+        return arguments;
+    }
+
+    /**
+     * Starts logcat on the device. Requires the exec service, i.e. Lollipop or later.
+     */
+    public LogcatReader open() throws IOException, JadbException {
+        return new LogcatReader(device.execute("logcat", getArguments().toArray(new String[0])));
+    }
+
+    /**
+     * Reads log entries into the listener until the listener returns false or the log ends.
+     */
+    public void read(Listener listener) throws IOException, JadbException {
+        try (LogcatReader reader = open()) {
+            LogEntry entry = new LogEntry();
+            while (reader.read(entry)) {
+                if (!listener.onEntry(entry)) return;
+            }
+        }
+    }
+}
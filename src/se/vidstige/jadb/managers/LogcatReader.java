@@ -0,0 +1,77 @@
+package se.vidstige.jadb.managers;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses the binary log format written by "logcat -B". Entries are read into caller supplied {@link LogEntry}
+ * objects so that a steady stream of entries can be parsed without allocating.
+ *
+ * See struct logger_entry in liblog for the header layout. All versions start with the payload length followed by
+ * the header size, which is 0 in the original 20 byte v1 header. The v2 and v3 headers are both 24 bytes and differ
+ * only in their last field, the euid of the writer in v2 and the log id in v3, so the log id is only taken from the
+ * 28 byte v4 header or later, which has the uid as well.
+ */
+public class LogcatReader implements Closeable {
+    static final int DEFAULT_PAYLOAD_CAPACITY = 5 * 1024;
+    private static final int V1_HEADER_SIZE = 20;
+    private static final int V4_HEADER_SIZE = 28;
+    private static final int MAX_HEADER_SIZE = 64;
+
+    private final DataInputStream input;
+    private final byte[] header = new byte[MAX_HEADER_SIZE];
+
+    public LogcatReader(InputStream input) {
+        this.input = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+    }
+
+    /**
+     * Reads the next entry.
+     *
+     * @param entry the entry to fill in, its previous contents are overwritten.
+     * @return false if the log stream ended.
+     */
+    public boolean read(LogEntry entry) throws IOException {
+        int first = input.read();
+        if (first == -1) return false;
+        input.readFully(header, 1, 3);
+        header[0] = (byte) first;
+
+        int payloadLength = readShort(0);
+        int headerSize = readShort(2);
+        if (headerSize == 0) headerSize = V1_HEADER_SIZE;
+        if (headerSize < V1_HEADER_SIZE || headerSize > MAX_HEADER_SIZE) {
+            throw new IOException("Unsupported logger entry header size " + headerSize);
+        }
+        input.readFully(header, 4, headerSize - 4);
+
+        if (entry.payload.length < payloadLength) {
+            entry.payload = new byte[payloadLength];
+        }
+        input.readFully(entry.payload, 0, payloadLength);
+        entry.set(readInt(4), readInt(8), readInt(12), readInt(16),
+                headerSize >= V4_HEADER_SIZE ? readInt(20) : LogEntry.UNKNOWN_LOG_ID,
+                headerSize >= V4_HEADER_SIZE ? readInt(24) : 0,
+                payloadLength);
+        return true;
+    }
+
+    private int readShort(int offset) {
+        return (header[offset] & 0xff) | (header[offset + 1] & 0xff) << 8;
+    }
+
+    private int readInt(int offset) {
+        return (header[offset] & 0xff)
+                | (header[offset + 1] & 0xff) << 8
+                | (header[offset + 2] & 0xff) << 16
+                | (header[offset + 3] & 0xff) << 24;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -1,5 +1,7 @@
 package se.vidstige.jadb.managers;
 
+import se.vidstige.jadb.CommandBatch;
+import se.vidstige.jadb.CommandResult;
 import se.vidstige.jadb.JadbDevice;
 import se.vidstige.jadb.JadbException;
 import se.vidstige.jadb.RemoteFile;
@@ -89,6 +91,103 @@ public class PackageManager {
         s.close();
     }
 
+    /**
+     * Runs several package operations through a single shell connection.
+     *
+     * @param operations the operations to run, in order.
+     * @return one result per operation, in the same order. Failed operations do not stop the batch.
+     */
+    public List<OperationResult> execute(List<Operation> operations) throws IOException, JadbException {
+        CommandBatch batch = new CommandBatch();
+        for (Operation operation : operations) {
+            batch.add(operation.command, operation.arguments);
+        }
+        List<CommandResult> results = device.executeBatch(batch);
+        List<OperationResult> operationResults = new ArrayList<>(operations.size());
+        for (int i = 0; i < operations.size(); i++) {
+            operationResults.add(new OperationResult(operations.get(i), results.get(i)));
+        }
+        return operationResults;
+    }
+
+    //<editor-fold desc="Operation">
+    public static class Operation {
+        private final String name;
+        private final Package target;
+        private final String command;
+        private final String[] arguments;
+        private final boolean printsSuccess;
+
+        private Operation(String name, Package target, boolean printsSuccess, String command, String... arguments) {
+            this.name = name;
+            this.target = target;
+            this.printsSuccess = printsSuccess;
+            this.command = command;
+            this.arguments = arguments;
+        }
+
+        public static Operation uninstall(Package name) {
+            return new Operation("uninstall", name, true, "pm", "uninstall", name.toString());
+        }
+
+        public static Operation clear(Package name) {
+            return new Operation("clear", name, true, "pm", "clear", name.toString());
+        }
+
+        public static Operation grant(Package name, String permission) {
+            return new Operation("grant " + permission + " to", name, false, "pm", "grant", name.toString(), permission);
+        }
+
+        public static Operation revoke(Package name, String permission) {
+            return new Operation("revoke " + permission + " from", name, false, "pm", "revoke", name.toString(), permission);
+        }
+
+        public static Operation forceStop(Package name) {
+            return new Operation("force-stop", name, false, "am", "force-stop", name.toString());
+        }
+
+        public Package getTarget() {
+            return target;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + target;
+        }
+    }
+
+    public static class OperationResult {
+        private final Operation operation;
+        private final String output;
+        private final boolean success;
+
+        private OperationResult(Operation operation, CommandResult result) {
+            this.operation = operation;
+            this.output = result.getOutput();
+            // pm grant/revoke and am force-stop are silent on success, uninstall and clear print "Success"
+            this.success = operation.printsSuccess
+                    ? output.contains("Success")
+                    : result.getExitStatus() == 0 && output.trim().isEmpty();
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public void verify() throws JadbException {
+            if (!success) throw new JadbException("Could not " + operation + ": " + output);
+        }
+    }
+    //</editor-fold>
+
     //<editor-fold desc="InstallOption">
     public static class InstallOption {
         private final StringBuilder stringBuilder = new StringBuilder();
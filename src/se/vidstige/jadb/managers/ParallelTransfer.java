@@ -0,0 +1,269 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.Channel;
+import se.vidstige.jadb.CommandBatch;
+import se.vidstige.jadb.CommandResult;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.RemoteFileStat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static se.vidstige.jadb.CommandBatch.MARKER;
+
+/**
+ * <p>Transfers large files over several connections at once. A single sync connection waits for every chunk to be
+ * acknowledged, which over adb on TCP leaves most of the link unused.</p>
+ *
+ * <p>Files are split into segments which are copied with dd on the device, each over its own exec: connection. A
+ * pull writes every segment at its offset in a pre-sized local file, a push has dd write it in place in the remote
+ * file, checks it against an md5 of what was sent and restores mode and modification time afterwards. Small files
+ * and anything that is not a regular file use a plain {@link JadbDevice#pull(RemoteFile, File)} or push, which is
+ * also the fallback if a segment fails, e.g. on devices without a dd that understands "status=none".</p>
+ */
+public class ParallelTransfer {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    //noinspection OctalInteger
+    private static final int DEFAULT_MODE = 0664;
+    private static final long DEFAULT_MINIMUM_SIZE = 32L * 1024 * 1024;
+
+    private final JadbDevice device;
+    private final int connections;
+    private long minimumSize = DEFAULT_MINIMUM_SIZE;
+
+    public ParallelTransfer(JadbDevice device, int connections) {
+        if (connections < 1) throw new IllegalArgumentException("connections must be at least 1");
+        this.device = device;
+        this.connections = connections;
+    }
+
+    /**
+     * @param bytes files smaller than this are transferred over a single connection. Defaults to 32 MB.
+     */
+    public void setMinimumSize(long bytes) {
+        this.minimumSize = bytes;
+    }
+
+    public void pull(RemoteFile remote, File local) throws IOException, JadbException {
+        RemoteFileStat stat = device.stat(remote);
+        if (!stat.isRegularFile() || stat.getSize() < minimumSize || connections == 1) {
+            device.pull(remote, local);
+            return;
+        }
+        try {
+            pullSegments(remote, stat.getSize(), local);
+        } catch (IOException | JadbException e) {
+            device.pull(remote, local);
+        }
+    }
+
+    public void push(File local, RemoteFile remote) throws IOException, JadbException {
+        push(local, DEFAULT_MODE, remote);
+    }
+
+    /**
+     * @param mode permission bits of the remote file, e.g. 0644.
+     */
+    public void push(File local, int mode, RemoteFile remote) throws IOException, JadbException {
+        long size = local.length();
+        long lastModified = TimeUnit.MILLISECONDS.toSeconds(local.lastModified());
+        if (size >= minimumSize && connections > 1) {
+            try {
+                pushSegments(local, size, remote);
+                finishPush(remote, mode, lastModified);
+                return;
+            } catch (IOException | JadbException e) {
+                // Fall through to a single stream, which replaces whatever was written
+            }
+        }
+        try (FileInputStream source = new FileInputStream(local)) {
+            device.push(source, lastModified, mode, remote);
+        }
+    }
+
+    private void pullSegments(final RemoteFile remote, long size, File local) throws IOException, JadbException {
+        long blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long segmentBlocks = Math.max(1, (blocks + connections - 1) / connections);
+        try (RandomAccessFile file = new RandomAccessFile(local, "rw")) {
+            file.setLength(size);
+            final FileChannel channel = file.getChannel();
+            List<Callable<Long>> segments = new ArrayList<>();
+            for (long first = 0; first < blocks; first += segmentBlocks) {
+                final long skip = first;
+                final long count = Math.min(segmentBlocks, blocks - first);
+                final long expected = Math.min(count * BLOCK_SIZE, size - skip * BLOCK_SIZE);
+                segments.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException, JadbException {
+                        return readRange(device, remote, BLOCK_SIZE, skip, count, expected, channel);
+                    }
+                });
+            }
+            long received = 0;
+            for (long n : runAll(segments)) {
+                received += n;
+            }
+            if (received != size) {
+                throw new JadbException("Pulled " + received + " bytes of " + size + " from " + remote.getPath());
+            }
+        }
+    }
+
+    /**
+     * Reads count blocks of blockSize bytes starting at block skip of the remote file with dd, and writes them at
+     * the same offset in the local file.
+     *
+     * @param expected the number of bytes the range must have, less than count blocks at the end of the file.
+     */
+    static long readRange(JadbDevice device, RemoteFile remote, int blockSize, long skip, long count, long expected,
+                          FileChannel channel) throws IOException, JadbException {
+        long position = skip * blockSize;
+        long end = position + expected;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = device.execute("dd", "if=" + remote.getPath(), "bs=" + blockSize,
+                "skip=" + skip, "count=" + count, "status=none")) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (position + n > end) {
+                    throw new JadbException("Range at block " + skip + " of " + remote.getPath() + " is too long");
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+            }
+        }
+        if (position != end) {
+            throw new JadbException("Range at block " + skip + " of " + remote.getPath() + " is truncated");
+        }
+        return expected;
+    }
+
+    private void pushSegments(File local, long size, final RemoteFile remote) throws IOException, JadbException {
+        // Sized up front, so segments can be written in any order without truncating each other
+        CommandResult.checkSuccess(device.executeBatch(
+                new CommandBatch().add("truncate", "-s", Long.toString(size), remote.getPath())));
+        long blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long segmentBlocks = Math.max(1, (blocks + connections - 1) / connections);
+        try (RandomAccessFile file = new RandomAccessFile(local, "r")) {
+            final FileChannel channel = file.getChannel();
+            List<Callable<Long>> segments = new ArrayList<>();
+            for (long first = 0; first < blocks; first += segmentBlocks) {
+                final long seek = first;
+                final long length = Math.min(segmentBlocks * BLOCK_SIZE, size - seek * BLOCK_SIZE);
+                segments.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException, JadbException {
+                        return writeRange(device, channel, BLOCK_SIZE, seek, length, remote, null);
+                    }
+                });
+            }
+            runAll(segments);
+        }
+    }
+
+    /**
+     * Writes length bytes of the local file, starting at block seek of blockSize bytes, to the same offset in the
+     * remote file with dd, and checks what landed there against an md5 of what was sent.
+     *
+     * @param digest also updated with the bytes sent, unless null.
+     */
+    static long writeRange(JadbDevice device, FileChannel channel, int blockSize, long seek, long length,
+                           RemoteFile remote, MessageDigest digest) throws IOException, JadbException {
+        // head ends the input after length bytes, adb cannot close just the sending side of a connection
+        long count = (length + blockSize - 1) / blockSize;
+        String command = "head -c " + length + " | dd " + Bash.quote("of=" + remote.getPath())
+                + " " + Bash.quote("bs=" + blockSize) + " " + Bash.quote("seek=" + seek)
+                + " 'conv=notrunc' 'status=none' && dd " + Bash.quote("if=" + remote.getPath())
+                + " " + Bash.quote("bs=" + blockSize) + " " + Bash.quote("skip=" + seek)
+                + " " + Bash.quote("count=" + count) + " 'status=none' | head -c " + length + " | md5sum; echo "
+                + MARKER + "$?";
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new JadbException("MD5 is not available: " + e.getMessage());
+        }
+        try (Channel exec = device.connect("exec:" + command)) {
+            OutputStream out = exec.getOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long position = seek * blockSize;
+            long end = position + length;
+            while (position < end) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) buffer.limit((int) (end - position));
+                int n = channel.read(buffer, position);
+                if (n == -1) throw new JadbException("Local file shrank while pushing " + remote.getPath());
+                out.write(buffer.array(), 0, n);
+                md5.update(buffer.array(), 0, n);
+                if (digest != null) digest.update(buffer.array(), 0, n);
+                position += n;
+            }
+            out.flush();
+            CommandResult result = CommandBatch.readResult(exec.getInputStream());
+            String output = result.getOutput().trim();
+            if (!result.isSuccess() || !output.startsWith(DigestManager.toHex(md5.digest()) + " ")) {
+                throw new JadbException("Could not write range at block " + seek + " of " + remote.getPath()
+                        + ": " + result);
+            }
+        }
+        return length;
+    }
+
+    private void finishPush(RemoteFile remote, int mode, long lastModified) throws IOException, JadbException {
+        CommandResult.checkSuccess(device.executeBatch(new CommandBatch()
+                .add("chmod", Integer.toOctalString(mode & 07777), remote.getPath())
+                .add("touch", "-m", "-d", "@" + lastModified, remote.getPath())));
+    }
+
+    /**
+     * Runs the tasks on up to one thread per connection and waits for all of them, so that no connection is still
+     * in use when this returns.
+     */
+    private <T> List<T> runAll(List<Callable<T>> tasks) throws IOException, JadbException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, tasks.size()));
+        try {
+            List<Future<T>> futures = new ArrayList<>(tasks.size());
+            for (Callable<T> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            List<T> results = new ArrayList<>(tasks.size());
+            Throwable failure = null;
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = e.getCause();
+                }
+            }
+            if (failure instanceof IOException) throw (IOException) failure;
+            if (failure instanceof JadbException) throw (JadbException) failure;
+            if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+            if (failure instanceof Error) throw (Error) failure;
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JadbException("Interrupted while transferring");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
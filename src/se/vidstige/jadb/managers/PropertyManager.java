@@ -1,23 +1,42 @@
 package se.vidstige.jadb.managers;
 
+import se.vidstige.jadb.CommandBatch;
+import se.vidstige.jadb.CommandResult;
 import se.vidstige.jadb.JadbDevice;
 import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.Stream;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * A class which works with properties, uses getprop and setprop methods of android shell
+ *
+ * Read-only properties (ro.*) cannot change until the device reboots, so they are only fetched once. The cache
+ * belongs to the instance, keep one instance per device to share it. A serial alone does not identify a device, as
+ * emulators on different hosts and reflashed devices reuse serials. Use {@link #clearCache()} after rebooting the
+ * device.
  */
 public class PropertyManager {
+    private static final String READ_ONLY_PREFIX = "ro.";
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
     private final Pattern pattern = Pattern.compile("^\\[([a-zA-Z0-9_.-]*)]:.\\[([^\\[\\]]*)]");
     private final JadbDevice device;
+    private final Map<String, String> readOnlyCache = new ConcurrentHashMap<>();
 
     public PropertyManager(JadbDevice device) {
         this.device = device;
@@ -26,7 +45,112 @@ public class PropertyManager {
     public Map<String, String> getprop() throws IOException, JadbException {
         try (BufferedReader bufferedReader =
                      new BufferedReader(new InputStreamReader(device.executeShell("getprop"), StandardCharsets.UTF_8))) {
-            return parseProp(bufferedReader);
+            Map<String, String> result = parseProp(bufferedReader);
+            for (Map.Entry<String, String> entry : result.entrySet()) {
+                cache(entry.getKey(), entry.getValue());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Fetches a single property.
+     *
+     * @param key the property name, e.g. "sys.boot_completed".
+     * @return the property value, or an empty string if it is not set.
+     */
+    public String get(String key) throws IOException, JadbException {
+        String cached = readOnlyCache.get(key);
+        if (cached != null) return cached;
+        try (InputStream s = device.executeShell("getprop", key)) {
+            String value = Bash.stripNewline(Stream.readAll(s, StandardCharsets.UTF_8));
+            cache(key, value);
+            return value;
+        }
+    }
+
+    /**
+     * Fetches the given properties through a single shell connection.
+     *
+     * @param keys the property names.
+     * @return map from each key to its value, empty for properties which are not set.
+     */
+    public Map<String, String> getAll(Collection<String> keys) throws IOException, JadbException {
+        Map<String, String> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        CommandBatch batch = new CommandBatch();
+        for (String key : keys) {
+            String cached = readOnlyCache.get(key);
+            if (cached != null) {
+                result.put(key, cached);
+            } else if (!missing.contains(key)) {
+                missing.add(key);
+                batch.add("getprop", key);
+            }
+        }
+        List<CommandResult> results = device.executeBatch(batch);
+        for (int i = 0; i < missing.size(); i++) {
+            String value = Bash.stripNewline(results.get(i).getOutput());
+            cache(missing.get(i), value);
+            result.put(missing.get(i), value);
+        }
+        return result;
+    }
+
+    public void setprop(String key, String value) throws IOException, JadbException {
+        setprop(Collections.singletonMap(key, value));
+    }
+
+    /**
+     * Sets the given properties through a single shell connection. All properties are attempted even if some of
+     * them fail.
+     *
+     * @param properties map from property name to the new value.
+     * @throws JadbException if any of the properties could not be set.
+     */
+    public void setprop(Map<String, String> properties) throws IOException, JadbException {
+        List<String> keys = new ArrayList<>(properties.keySet());
+        CommandBatch batch = new CommandBatch();
+        for (String key : keys) {
+            batch.add("setprop", key, properties.get(key));
+            readOnlyCache.remove(key);
+        }
+        CommandResult.checkQuiet(device.executeBatch(batch), keys, "Could not set properties");
+    }
+
+    /**
+     * Waits until a property has the expected value. The polling is done by a loop running on the device, so only
+     * a single shell connection is used regardless of how long it takes.
+     *
+     * @param key the property name, e.g. "sys.boot_completed".
+     * @param value the value to wait for, e.g. "1".
+     * @param timeout maximum time to wait.
+     * @param unit unit of timeout.
+     * @return true if the property reached the value, false on timeout.
+     */
+    public boolean waitFor(String key, String value, long timeout, TimeUnit unit) throws IOException, JadbException {
+        long polls = Math.max(1, unit.toMillis(timeout) / POLL_INTERVAL_MILLIS);
+        String getprop = "getprop " + Bash.quote(key);
+        // Toolbox sleep only takes whole seconds, counted as that many polls so the timeout stays the same
+        String script = "i=0; while [ \"$(" + getprop + ")\" != " + Bash.quote(value) + " ] && [ $i -lt " + polls + " ]; " +
+                "do if sleep " + POLL_INTERVAL_MILLIS / 1000.0 + " 2>/dev/null; then i=$((i+1)); " +
+                "else sleep 1; i=$((i+" + 1000 / POLL_INTERVAL_MILLIS + ")); fi; done; " + getprop;
+        try (InputStream s = device.executeShell(script)) {
+            return value.equals(Bash.stripNewline(Stream.readAll(s, StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Forgets all cached read-only properties, e.g. after the device was rebooted into a new build or another device
+     * took over its serial.
+     */
+    public void clearCache() {
+        readOnlyCache.clear();
+    }
+
+    private void cache(String key, String value) {
+        if (key.startsWith(READ_ONLY_PREFIX) && !value.isEmpty()) {
+            readOnlyCache.put(key, value);
         }
     }
 
@@ -0,0 +1,177 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.RemoteFileStat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <p>Keeps pulled files in a directory on the host, so that pulling a file which has not changed on the device only
+ * costs a stat. A cached copy is used as long as the remote file has the same size and modification time. The
+ * device reports modification times in whole seconds, so a file rewritten with the same size within the same second
+ * is served stale.</p>
+ *
+ * <p>The directory is kept below a quota by deleting the least recently used files, and may be shared by the caches
+ * of several devices.</p>
+ *
+ * <pre>
+ * PullCache cache = new PullCache(device, new File("build/pull-cache"), 512 * 1024 * 1024);
+ * cache.pull(new RemoteFile("/system/build.prop"), new File("build.prop"));
+ * </pre>
+ */
+public class PullCache {
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final JadbDevice device;
+    private final File directory;
+    private final long quota;
+
+    /**
+     * @param quota the most bytes to keep in the directory.
+     */
+    public PullCache(JadbDevice device, File directory, long quota) {
+        this.device = device;
+        this.directory = directory;
+        this.quota = quota;
+    }
+
+    /**
+     * The local file is only replaced once the pull succeeded.
+     *
+     * @return true if the file was served from the cache.
+     */
+    public boolean pull(RemoteFile remote, File local) throws IOException, JadbException {
+        File parent = local.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile("." + local.getName() + "-", TEMPORARY_SUFFIX, parent);
+        try {
+            boolean hit;
+            try (OutputStream destination = new FileOutputStream(temporary)) {
+                hit = pull(remote, destination);
+            }
+            Files.move(temporary.toPath(), local.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return hit;
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    /**
+     * @return true if the file was served from the cache.
+     */
+    public boolean pull(RemoteFile remote, OutputStream destination) throws IOException, JadbException {
+        RemoteFileStat stat = device.stat(remote);
+        if (!stat.isRegularFile() || stat.getSize() > quota) {
+            device.pull(remote, destination);
+            return false;
+        }
+
+        String prefix = getPrefix(remote);
+        File entry = new File(directory, prefix + "-" + stat.getSize() + "-" + stat.getLastModified());
+        synchronized (this) {
+            if (entry.isFile() && entry.length() == stat.getSize()) {
+                // The modification time is the last use, which is what eviction goes by
+                entry.setLastModified(System.currentTimeMillis());
+                Files.copy(entry.toPath(), destination);
+                return true;
+            }
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create " + directory);
+        File temporary = File.createTempFile(prefix, TEMPORARY_SUFFIX, directory);
+        try {
+            try (OutputStream out = new FileOutputStream(temporary)) {
+                device.pull(remote, out);
+            }
+            // A file which changed while it was pulled is passed on but not cached
+            if (temporary.length() == stat.getSize()) {
+                synchronized (this) {
+                    deleteVersions(prefix);
+                    Files.move(temporary.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    evict(entry);
+                    Files.copy(entry.toPath(), destination);
+                }
+            } else {
+                Files.copy(temporary.toPath(), destination);
+            }
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+        return false;
+    }
+
+    /**
+     * Deletes all cached files, of all devices sharing the directory.
+     */
+    public synchronized void clear() throws IOException {
+        for (File file : listEntries()) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * Deletes the cached versions of a remote file, which are outdated once a new version is pulled.
+     */
+    private void deleteVersions(String prefix) throws IOException {
+        for (File file : listEntries()) {
+            if (file.getName().startsWith(prefix + "-")) Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the directory is within the quota, keeping the given one.
+     */
+    private void evict(File keep) throws IOException {
+        File[] entries = listEntries();
+        long total = 0;
+        for (File file : entries) {
+            total += file.length();
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : entries) {
+            if (total <= quota) break;
+            if (file.equals(keep)) continue;
+            total -= file.length();
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private File[] listEntries() {
+        File[] files = directory.listFiles();
+        if (files == null) return new File[0];
+        int count = 0;
+        for (File file : files) {
+            // Pulls in progress, possibly of other caches sharing the directory
+            if (file.isFile() && !file.getName().endsWith(TEMPORARY_SUFFIX)) files[count++] = file;
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    private String getPrefix(RemoteFile remote) throws JadbException {
+        String key = device.getSerial() + "\n" + remote.getPath();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            return DigestManager.toHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new JadbException("SHA-1 is not available: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.CommandBatch;
+import se.vidstige.jadb.CommandResult;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.RemoteFileStat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Push and pull which survive a broken connection. Files are transferred in chunks with dd, and after every chunk
+ * the progress is saved in a state directory on the host. Calling push or pull again for the same files continues
+ * after the last completed chunk, as long as the source still has the same size and modification time. A push also
+ * checks that the remote file still starts with what was pushed before, and the whole file against an md5 at the
+ * end.</p>
+ *
+ * <pre>
+ * ResumableTransfer transfer = new ResumableTransfer(device, new File("build/transfers"));
+ * for (int attempt = 1; ; attempt++) {
+ *     try {
+ *         transfer.pull(new RemoteFile("/sdcard/dump.bin"), new File("dump.bin"));
+ *         break;
+ *     } catch (IOException e) {
+ *         if (attempt == 3) throw e;
+ *     }
+ * }
+ * </pre>
+ */
+public class ResumableTransfer {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final long DEFAULT_CHUNK_SIZE = 16L * 1024 * 1024;
+    //noinspection OctalInteger
+    private static final int DEFAULT_MODE = 0664;
+
+    private final JadbDevice device;
+    private final File stateDirectory;
+    private long chunkBlocks = DEFAULT_CHUNK_SIZE / BLOCK_SIZE;
+
+    public ResumableTransfer(JadbDevice device, File stateDirectory) {
+        this.device = device;
+        this.stateDirectory = stateDirectory;
+    }
+
+    /**
+     * @param bytes how much is transferred between two saves of the progress, rounded up to whole megabytes.
+     *              Defaults to 16 MB.
+     */
+    public void setChunkSize(long bytes) {
+        this.chunkBlocks = Math.max(1, (bytes + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    public void pull(RemoteFile remote, File local) throws IOException, JadbException {
+        RemoteFileStat stat = device.stat(remote);
+        if (!stat.isRegularFile()) throw new JadbException("Not a regular file: " + remote.getPath());
+        long size = stat.getSize();
+        File state = getStateFile("pull", remote, local);
+        Progress progress = Progress.load(state);
+        long offset = 0;
+        if (progress != null && progress.matches(size, stat.getLastModified()) && local.length() >= progress.offset) {
+            offset = progress.offset;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(local, "rw")) {
+            FileChannel channel = file.getChannel();
+            long blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            for (long block = offset / BLOCK_SIZE; block < blocks; block += chunkBlocks) {
+                long count = Math.min(chunkBlocks, blocks - block);
+                long expected = Math.min(count * BLOCK_SIZE, size - block * BLOCK_SIZE);
+                ParallelTransfer.readRange(device, remote, BLOCK_SIZE, block, count, expected, channel);
+                // Only what is on disk counts as done
+                channel.force(false);
+                new Progress(size, stat.getLastModified(), block * BLOCK_SIZE + expected).save(state);
+            }
+            file.setLength(size);
+        }
+        Files.deleteIfExists(state.toPath());
+    }
+
+    public void push(File local, RemoteFile remote) throws IOException, JadbException {
+        push(local, DEFAULT_MODE, remote);
+    }
+
+    /**
+     * @param mode permission bits of the remote file, e.g. 0644.
+     */
+    public void push(File local, int mode, RemoteFile remote) throws IOException, JadbException {
+        long size = local.length();
+        long lastModified = TimeUnit.MILLISECONDS.toSeconds(local.lastModified());
+        File state = getStateFile("push", remote, local);
+        Progress progress = Progress.load(state);
+        MessageDigest digest = createMd5();
+
+        try (RandomAccessFile file = new RandomAccessFile(local, "r")) {
+            FileChannel channel = file.getChannel();
+            long offset = 0;
+            if (progress != null && progress.matches(size, lastModified)) {
+                // The remote file must still hold everything that was pushed before, it may have been rewritten
+                // since without changing its size. Resumed at a block, the last one may be partial and is sent again.
+                offset = progress.offset / BLOCK_SIZE * BLOCK_SIZE;
+                digest(channel, offset, digest);
+                if (!toHex(digest).equals(digestPrefix(remote, offset))) {
+                    offset = 0;
+                    digest.reset();
+                }
+            }
+
+            long blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            for (long block = offset / BLOCK_SIZE; block < blocks; block += chunkBlocks) {
+                long length = Math.min(chunkBlocks * BLOCK_SIZE, size - block * BLOCK_SIZE);
+                // Returns only once the chunk reads back the same on the device, so only checked chunks are saved
+                ParallelTransfer.writeRange(device, channel, BLOCK_SIZE, block, length, remote, digest);
+                new Progress(size, lastModified, block * BLOCK_SIZE + length).save(state);
+            }
+        }
+        CommandResult.checkSuccess(device.executeBatch(new CommandBatch()
+                .add("truncate", "-s", Long.toString(size), remote.getPath())
+                .add("chmod", Integer.toOctalString(mode & 07777), remote.getPath())
+                .add("touch", "-m", "-d", "@" + lastModified, remote.getPath())));
+        String pushed = new DigestManager(device, "MD5").digest(remote);
+        String expected = DigestManager.toHex(digest.digest());
+        if (!pushed.equals(expected)) {
+            throw new JadbException("Digest mismatch for " + remote.getPath() + ": " + expected + " on the host, "
+                    + pushed + " on the device");
+        }
+        Files.deleteIfExists(state.toPath());
+    }
+
+    /**
+     * @return the md5 of the first length bytes of the remote file, or of less if it is shorter.
+     */
+    private String digestPrefix(RemoteFile remote, long length) throws IOException, JadbException {
+        String command = "head -c " + length + " " + Bash.quote(remote.getPath()) + " | md5sum; echo "
+                + CommandBatch.MARKER + "$?";
+        try (InputStream in = device.execute(command)) {
+            CommandResult result = CommandBatch.readResult(in);
+            String output = result.getOutput().trim();
+            int end = output.indexOf(' ');
+            if (!result.isSuccess() || end == -1) {
+                throw new JadbException("Could not hash " + remote.getPath() + ": " + result);
+            }
+            return output.substring(0, end);
+        }
+    }
+
+    private static void digest(FileChannel channel, long length, MessageDigest digest)
+            throws IOException, JadbException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            if (length - position < buffer.capacity()) buffer.limit((int) (length - position));
+            int n = channel.read(buffer, position);
+            if (n == -1) throw new JadbException("Local file shrank while hashing");
+            digest.update(buffer.array(), 0, n);
+            position += n;
+        }
+    }
+
+    /**
+     * @return the hex digest of what was hashed so far, without finishing the digest.
+     */
+    private static String toHex(MessageDigest digest) throws JadbException {
+        try {
+            return DigestManager.toHex(((MessageDigest) digest.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new JadbException("MD5 cannot be cloned: " + e.getMessage());
+        }
+    }
+
+    private static MessageDigest createMd5() throws JadbException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new JadbException("MD5 is not available: " + e.getMessage());
+        }
+    }
+
+    private File getStateFile(String direction, RemoteFile remote, File local) throws JadbException {
+        String key = direction + "\n" + device.getSerial() + "\n" + remote.getPath() + "\n" + local.getAbsolutePath();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            return new File(stateDirectory, DigestManager.toHex(digest) + ".progress");
+        } catch (NoSuchAlgorithmException e) {
+            throw new JadbException("SHA-1 is not available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * How much of a source with the given size and modification time has been transferred.
+     */
+    private static class Progress {
+        private final long size;
+        private final long lastModified;
+        private final long offset;
+
+        Progress(long size, long lastModified, long offset) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.offset = offset;
+        }
+
+        boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+        /**
+         * @return the saved progress, or null if there is none or it could not be read.
+         */
+        static Progress load(File file) {
+            if (!file.isFile()) return null;
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+                return new Progress(Long.parseLong(properties.getProperty("size")),
+                        Long.parseLong(properties.getProperty("lastModified")),
+                        Long.parseLong(properties.getProperty("offset")));
+            } catch (IOException | NumberFormatException e) {
+                return null;
+            }
+        }
+
+        void save(File file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("size", Long.toString(size));
+            properties.setProperty("lastModified", Long.toString(lastModified));
+            properties.setProperty("offset", Long.toString(offset));
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) throw new IOException("Could not create " + parent);
+            // Replaced in one step, so a crash never leaves a half written file behind
+            File temporary = new File(parent, file.getName() + ".tmp");
+            try (OutputStream out = new FileOutputStream(temporary)) {
+                properties.store(out, null);
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
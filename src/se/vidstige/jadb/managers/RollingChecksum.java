@@ -0,0 +1,86 @@
+package se.vidstige.jadb.managers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>The POSIX cksum of a window of fixed size, which can be moved along a file one byte at a time.</p>
+ *
+ * <p>cksum is a CRC-32 and CRC is linear, so moving the window is shifting in the new byte and cancelling the
+ * contribution of the byte which falls out. Every device has cksum in toybox, so this lets the host find blocks of a
+ * remote file at any offset of a local file without running anything but shell tools on the device.</p>
+ */
+class RollingChecksum {
+    private static final int POLYNOMIAL = 0x04c11db7;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? crc << 1 ^ POLYNOMIAL : crc << 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private final int size;
+    // What each byte contributes once it is size bytes behind the end of the window
+    private final int[] outgoing = new int[256];
+    private int crc = 0;
+
+    /**
+     * @param size the length of the window in bytes.
+     */
+    RollingChecksum(int size) {
+        this.size = size;
+        int[] bits = new int[8];
+        for (int bit = 0; bit < 8; bit++) {
+            int crc = update(0, 1 << bit);
+            for (int i = 0; i < size; i++) {
+                crc = update(crc, 0);
+            }
+            bits[bit] = crc;
+        }
+        for (int b = 0; b < 256; b++) {
+            for (int bit = 0; bit < 8; bit++) {
+                if ((b & 1 << bit) != 0) outgoing[b] ^= bits[bit];
+            }
+        }
+    }
+
+    /**
+     * Starts over with the window at data[offset, offset + size).
+     */
+    void reset(ByteBuffer data, int offset) {
+        crc = 0;
+        for (int i = offset; i < offset + size; i++) {
+            crc = update(crc, data.get(i));
+        }
+    }
+
+    /**
+     * Moves the window one byte ahead.
+     *
+     * @param out the first byte of the current window.
+     * @param in the byte following the current window.
+     */
+    void roll(byte out, byte in) {
+        crc = update(crc, in) ^ outgoing[out & 0xff];
+    }
+
+    /**
+     * @return the window's checksum as printed by cksum.
+     */
+    long getValue() {
+        int value = crc;
+        // cksum appends the length with as few bytes as possible, least significant first
+        for (long length = size; length != 0; length >>>= 8) {
+            value = update(value, (int) length);
+        }
+        return ~value & 0xffffffffL;
+    }
+
+    private static int update(int crc, int b) {
+        return crc << 8 ^ TABLE[(crc >>> 24 ^ b) & 0xff];
+    }
+}
@@ -0,0 +1,254 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams the screen as raw H.264 using "screenrecord --output-format=h264". Frames are delivered without decoding,
+ * ready to be written to a file or forwarded.
+ *
+ * <pre>
+ * new ScreenStream(device).bitRate(4000000).stream(listener);
+ * </pre>
+ *
+ * The device is read on a separate thread into a bounded queue of reusable frames. When the listener falls behind
+ * the reading either pauses, or with {@link #dropFramesWhenFull()} frames are skipped until the next key frame so
+ * that the delivered stream stays decodable. screenrecord only sends the SPS and PPS once, so the key frame ending a
+ * gap gets the last ones put in front of it.
+ */
+public class ScreenStream {
+    public interface Listener {
+        /**
+         * @param unit the frame, reused once this method returns.
+         * @return false to stop streaming.
+         */
+        boolean onAccessUnit(AccessUnit unit);
+    }
+
+    private static final int INITIAL_FRAME_CAPACITY = 64 * 1024;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final JadbDevice device;
+    private int bitRate = 0;
+    private String size = null;
+    private int timeLimitSeconds = 0;
+    private int bufferedFrames = 16;
+    private boolean dropFramesWhenFull = false;
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    public ScreenStream(JadbDevice device) {
+        this.device = device;
+    }
+
+    public ScreenStream bitRate(int bitsPerSecond) {
+        bitRate = bitsPerSecond;
+        return this;
+    }
+
+    public ScreenStream size(int width, int height) {
+        size = width + "x" + height;
+        return this;
+    }
+
+    /**
+     * screenrecord stops by itself after this time, three minutes unless set.
+     */
+    public ScreenStream timeLimit(int seconds) {
+        timeLimitSeconds = seconds;
+        return this;
+    }
+
+    /**
+     * Maximum number of frames waiting for the listener, 16 unless set.
+     */
+    public ScreenStream bufferedFrames(int frames) {
+        if (frames < 1) throw new IllegalArgumentException("At least one frame must be buffered");
+        bufferedFrames = frames;
+        return this;
+    }
+
+    public ScreenStream dropFramesWhenFull() {
+        dropFramesWhenFull = true;
+        return this;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    List<String> getArguments() {
+        List<String> arguments = new ArrayList<>();
+        arguments.add("--output-format=h264");
+        if (bitRate > 0) {
+            arguments.add("--bit-rate");
+            arguments.add(Integer.toString(bitRate));
+        }
+        if (size != null) {
+            arguments.add("--size");
+            arguments.add(size);
+        }
+        if (timeLimitSeconds > 0) {
+            arguments.add("--time-limit");
+            arguments.add(Integer.toString(timeLimitSeconds));
+        }
+        arguments.add("-");
+        return arguments;
+    }
+
+    /**
+     * Streams frames to the listener until it returns false or screenrecord exits. Requires the exec service, i.e.
+     * Lollipop or later.
+     */
+    public void stream(Listener listener) throws IOException, JadbException {
+        final InputStream input = device.execute("screenrecord", getArguments().toArray(new String[0]));
+        final BlockingQueue<AccessUnit> free = new LinkedBlockingQueue<>();
+        final BlockingQueue<AccessUnit> queued = new LinkedBlockingQueue<>();
+        final AccessUnit end = new AccessUnit(0);
+        final IOException[] failure = new IOException[1];
+        for (int i = 0; i < bufferedFrames; i++) {
+            free.add(new AccessUnit(INITIAL_FRAME_CAPACITY));
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read(input, free, queued);
+                } catch (IOException e) {
+                    failure[0] = e;
+                } finally {
+                    queued.add(end);
+                }
+            }
+        }, "ScreenStream " + device.getSerial());
+        reader.setDaemon(true);
+        reader.start();
+
+        boolean stopped = false;
+        try {
+            for (AccessUnit unit = queued.take(); unit != end; unit = queued.take()) {
+                boolean more = listener.onAccessUnit(unit);
+                free.add(unit);
+                if (!more) {
+                    stopped = true;
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            stopped = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            input.close();
+            reader.interrupt();
+        }
+        if (!stopped && failure[0] != null) throw failure[0];
+    }
+
+    private void read(InputStream input, BlockingQueue<AccessUnit> free, BlockingQueue<AccessUnit> queued)
+            throws IOException {
+        AccessUnitSplitter splitter = new AccessUnitSplitter(
+                new Enqueuer(free, queued, dropFramesWhenFull, droppedFrames));
+        byte[] chunk = new byte[64 * 1024];
+        int n;
+        while ((n = input.read(chunk)) != -1) {
+            splitter.feed(chunk, 0, n, System.nanoTime());
+        }
+        splitter.finish();
+    }
+
+    /**
+     * Copies access units into free frames and queues them for the listener.
+     */
+    static class Enqueuer implements AccessUnitSplitter.Listener {
+        private final BlockingQueue<AccessUnit> free;
+        private final BlockingQueue<AccessUnit> queued;
+        private final boolean dropWhenFull;
+        private final AtomicLong droppedFrames;
+        private byte[] sps = null;
+        private byte[] pps = null;
+        private boolean dropping = false;
+
+        Enqueuer(BlockingQueue<AccessUnit> free, BlockingQueue<AccessUnit> queued, boolean dropWhenFull,
+                 AtomicLong droppedFrames) {
+            this.free = free;
+            this.queued = queued;
+            this.dropWhenFull = dropWhenFull;
+            this.droppedFrames = droppedFrames;
+        }
+
+        @Override
+        public void onAccessUnit(byte[] data, int length, boolean keyFrame, long timestampNanos) throws IOException {
+            // Also for frames which are dropped, they may carry the only parameter sets of the stream
+            boolean hasParameterSets = findParameterSets(data, length);
+            AccessUnit unit;
+            try {
+                unit = dropWhenFull ? free.poll() : free.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a free frame");
+            }
+            if (unit == null || (dropping && !keyFrame)) {
+                // Frames depend on the previous ones, so once one is lost skip everything up to the next key frame
+                dropping = true;
+                droppedFrames.incrementAndGet();
+                if (unit != null) free.add(unit);
+                return;
+            }
+            if (dropping && !hasParameterSets) {
+                unit.set(getParameterSets(), data, length, keyFrame, timestampNanos);
+            } else {
+                unit.set(data, length, keyFrame, timestampNanos);
+            }
+            dropping = false;
+            queued.add(unit);
+        }
+
+        /**
+         * Remembers the SPS and PPS of the access unit, which come before its slices.
+         *
+         * @return true if the access unit has any.
+         */
+        private boolean findParameterSets(byte[] data, int length) {
+            boolean found = false;
+            int start = -1;
+            for (int i = 2; i <= length; i++) {
+                boolean startCode = i < length && data[i] == 1 && data[i - 1] == 0 && data[i - 2] == 0;
+                if (!startCode && i < length) continue;
+                if (start != -1) {
+                    int end = startCode ? i - 2 : length;
+                    // Leading zero of a four byte start code
+                    while (end > start && data[end - 1] == 0) end--;
+                    int type = end > start ? data[start] & 0x1f : 0;
+                    if (type == 1 || type == 5) break;
+                    if (type == 7) sps = withStartCode(data, start, end);
+                    if (type == 8) pps = withStartCode(data, start, end);
+                    found |= type == 7 || type == 8;
+                }
+                start = i + 1;
+            }
+            return found;
+        }
+
+        private byte[] getParameterSets() {
+            if (sps == null || pps == null) return new byte[0];
+            byte[] parameterSets = Arrays.copyOf(sps, sps.length + pps.length);
+            System.arraycopy(pps, 0, parameterSets, sps.length, pps.length);
+            return parameterSets;
+        }
+
+        private static byte[] withStartCode(byte[] data, int start, int end) {
+            byte[] nal = Arrays.copyOf(START_CODE, START_CODE.length + end - start);
+            System.arraycopy(data, start, nal, START_CODE.length, end - start);
+            return nal;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package se.vidstige.jadb.managers;
+
+import se.vidstige.jadb.CommandBatch;
+import se.vidstige.jadb.CommandResult;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes Android settings, uses the settings command of android shell. Reading or writing several keys
+ * is done through a single shell connection.
+ */
+public class SettingsManager {
+    public enum Namespace {
+        SYSTEM, SECURE, GLOBAL;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final JadbDevice device;
+
+    public SettingsManager(JadbDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * @return the value of the setting, or null if it is not set.
+     */
+    public String get(Namespace namespace, String key) throws IOException, JadbException {
+        return getAll(namespace, Collections.singletonList(key)).get(key);
+    }
+
+    /**
+     * Reads the given settings through a single shell connection.
+     *
+     * @return map from each key to its value, null for settings which are not set.
+     */
+    public Map<String, String> getAll(Namespace namespace, Collection<String> keys) throws IOException, JadbException {
+        List<String> keyList = new ArrayList<>(keys);
+        CommandBatch batch = new CommandBatch();
+        for (String key : keyList) {
+            batch.add("settings", "get", namespace.toString(), key);
+        }
+        List<CommandResult> results = device.executeBatch(batch);
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < keyList.size(); i++) {
+            CommandResult result = results.get(i);
+            if (result.getExitStatus() != 0) {
+                throw new JadbException("Could not get " + namespace + " setting " + keyList.get(i) + ": " + result.getOutput());
+            }
+            String value = Bash.stripNewline(result.getOutput());
+            values.put(keyList.get(i), "null".equals(value) ? null : value);
+        }
+        return values;
+    }
+
+    public void put(Namespace namespace, String key, String value) throws IOException, JadbException {
+        putAll(namespace, Collections.singletonMap(key, value));
+    }
+
+    /**
+     * Writes the given settings through a single shell connection. All settings are attempted even if some of them
+     * fail.
+     *
+     * @throws JadbException if any of the settings could not be written.
+     */
+    public void putAll(Namespace namespace, Map<String, String> values) throws IOException, JadbException {
+        List<String> keys = new ArrayList<>(values.keySet());
+        CommandBatch batch = new CommandBatch();
+        for (String key : keys) {
+            batch.add("settings", "put", namespace.toString(), key, values.get(key));
+        }
+        CommandResult.checkQuiet(device.executeBatch(batch), keys, "Could not put " + namespace + " settings");
+    }
+}
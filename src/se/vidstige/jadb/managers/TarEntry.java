@@ -0,0 +1,79 @@
+package se.vidstige.jadb.managers;
+
+/**
+ * One member of a tar archive, see {@link TarInputStream}.
+ */
+class TarEntry {
+    static final char REGULAR = '0';
+    static final char HARD_LINK = '1';
+    static final char SYMBOLIC_LINK = '2';
+    static final char DIRECTORY = '5';
+
+    private final String name;
+    private final char type;
+    private final int mode;
+    private final long size;
+    private final long lastModified;
+    private final String linkName;
+
+    /**
+     * @param lastModified modification time in seconds since the epoch.
+     */
+    TarEntry(String name, char type, int mode, long size, long lastModified, String linkName) {
+        this.name = name;
+        this.type = type;
+        this.mode = mode;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.linkName = linkName;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    char getType() {
+        return type;
+    }
+
+    /**
+     * @return the permission bits.
+     */
+    int getMode() {
+        return mode;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    String getLinkName() {
+        return linkName;
+    }
+
+    boolean isDirectory() {
+        return type == DIRECTORY;
+    }
+
+    boolean isFile() {
+        // Old archives mark regular files with a NUL, contiguous files ('7') are regular files too
+        return type == REGULAR || type == '\0' || type == '7';
+    }
+
+    /**
+     * @return whether the entry is followed by size bytes of content. Links and directories have none, whatever
+     * their size field says.
+     */
+    boolean hasContent() {
+        return isFile() || type > '7';
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
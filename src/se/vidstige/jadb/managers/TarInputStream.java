@@ -0,0 +1,223 @@
+package se.vidstige.jadb.managers;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Reads a tar archive as it arrives, like {@link java.util.zip.ZipInputStream}. {@link #getNextEntry()} moves
+ * to the next member and the read methods return its content.</p>
+ *
+ * <p>Understands ustar, GNU long names and pax extended headers for path, link, size and modification time, which
+ * covers what toybox and busybox tar write.</p>
+ */
+class TarInputStream extends FilterInputStream {
+    static final int BLOCK_SIZE = 512;
+
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private long remaining = 0;
+    private long padding = 0;
+    private boolean ended = false;
+
+    /**
+     * Thrown when the data is not a tar archive, e.g. because tar is missing on the device.
+     */
+    static class FormatException extends IOException {
+        FormatException(String message) {
+            super(message);
+        }
+
+        private static final long serialVersionUID = -2905436274631962107L;
+    }
+
+    TarInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Skips what is left of the current entry and reads the next header.
+     *
+     * @return the entry, or null at the end of the archive.
+     */
+    TarEntry getNextEntry() throws IOException {
+        if (ended) return null;
+        skipFully(remaining + padding);
+        remaining = 0;
+        padding = 0;
+
+        String longName = null;
+        String longLink = null;
+        String paxPath = null;
+        String paxLink = null;
+        long paxSize = -1;
+        long paxTime = -1;
+        while (true) {
+            if (!readHeader()) {
+                ended = true;
+                return null;
+            }
+            char type = (char) header[156];
+            long size = parseNumber(124, 12);
+            if (type == 'L' || type == 'K' || type == 'x' || type == 'g') {
+                byte[] data = readData(size);
+                if (type == 'L') longName = parseString(data, 0, data.length);
+                if (type == 'K') longLink = parseString(data, 0, data.length);
+                if (type == 'x') {
+                    for (String record : new String(data, StandardCharsets.UTF_8).split("\n")) {
+                        int space = record.indexOf(' ');
+                        int equals = record.indexOf('=', space + 1);
+                        if (space == -1 || equals == -1) continue;
+                        String key = record.substring(space + 1, equals);
+                        String value = record.substring(equals + 1);
+                        if (key.equals("path")) paxPath = value;
+                        if (key.equals("linkpath")) paxLink = value;
+                        if (key.equals("size")) paxSize = Long.parseLong(value);
+                        if (key.equals("mtime")) paxTime = (long) Double.parseDouble(value);
+                    }
+                }
+                // Global headers only carry defaults this reader does not use
+                continue;
+            }
+
+            String name = parseString(header, 0, 100);
+            if (isUstar()) {
+                String prefix = parseString(header, 345, 155);
+                if (!prefix.isEmpty()) name = prefix + "/" + name;
+            }
+            if (longName != null) name = longName;
+            if (paxPath != null) name = paxPath;
+            String linkName = parseString(header, 157, 100);
+            if (longLink != null) linkName = longLink;
+            if (paxLink != null) linkName = paxLink;
+            if (paxSize >= 0) size = paxSize;
+            long lastModified = paxTime >= 0 ? paxTime : parseNumber(136, 12);
+            int mode = (int) parseNumber(100, 8) & 07777;
+
+            TarEntry entry = new TarEntry(name, type, mode, size, lastModified, linkName);
+            remaining = entry.hasContent() ? size : 0;
+            padding = (BLOCK_SIZE - remaining % BLOCK_SIZE) % BLOCK_SIZE;
+            return entry;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0) return -1;
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) throw new EOFException("Truncated tar archive");
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.min(n, remaining);
+        skipFully(skipped);
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return false at the end of the archive, which is marked by a block of zeros or by the end of the stream.
+     */
+    private boolean readHeader() throws IOException {
+        int offset = 0;
+        while (offset < BLOCK_SIZE) {
+            int n = in.read(header, offset, BLOCK_SIZE - offset);
+            if (n == -1) {
+                if (offset == 0) return false;
+                throw new FormatException("Truncated tar header");
+            }
+            offset += n;
+        }
+        boolean zero = true;
+        for (byte b : header) {
+            if (b != 0) {
+                zero = false;
+                break;
+            }
+        }
+        if (zero) return false;
+
+        long expected = parseNumber(148, 8);
+        long unsigned = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            unsigned += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+        if (expected != unsigned) throw new FormatException("Not a tar archive, header checksum mismatch");
+        return true;
+    }
+
+    private boolean isUstar() {
+        return header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a'
+                && header[261] == 'r';
+    }
+
+    private byte[] readData(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) throw new FormatException("Extended tar header too large");
+        byte[] data = new byte[(int) size];
+        int offset = 0;
+        while (offset < data.length) {
+            int n = in.read(data, offset, data.length - offset);
+            if (n == -1) throw new EOFException("Truncated tar archive");
+            offset += n;
+        }
+        skipFully((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+        return data;
+    }
+
+    private long parseNumber(int offset, int length) throws FormatException {
+        if ((header[offset] & 0x80) != 0) {
+            // GNU base-256 for values which do not fit in octal
+            long value = header[offset] & 0x3f;
+            for (int i = 1; i < length; i++) {
+                value = value << 8 | (header[offset + i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        int end = offset + length;
+        int i = offset;
+        while (i < end && (header[i] == ' ' || header[i] == 0)) i++;
+        for (; i < end && header[i] != ' ' && header[i] != 0; i++) {
+            if (header[i] < '0' || header[i] > '7') throw new FormatException("Not a tar archive, bad number");
+            value = value << 3 | (header[i] - '0');
+        }
+        return value;
+    }
+
+    private static String parseString(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) end++;
+        return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() == -1) throw new EOFException("Truncated tar archive");
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
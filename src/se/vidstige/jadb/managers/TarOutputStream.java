@@ -0,0 +1,150 @@
+package se.vidstige.jadb.managers;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Writes a ustar archive, like {@link java.util.zip.ZipOutputStream}. Call {@link #putNextEntry(TarEntry)},
+ * write exactly as many bytes as the entry size and then {@link #closeEntry()}.</p>
+ *
+ * <p>Names which do not fit in the header are written as GNU long names and sizes above 8 GB in base-256, both of
+ * which toybox and busybox tar understand.</p>
+ */
+class TarOutputStream extends FilterOutputStream {
+    private static final int BLOCK_SIZE = TarInputStream.BLOCK_SIZE;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final byte[] MAGIC = {'u', 's', 't', 'a', 'r', 0, '0', '0'};
+
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private long remaining = 0;
+    private long padding = 0;
+    private boolean inEntry = false;
+    private boolean finished = false;
+
+    TarOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    void putNextEntry(TarEntry entry) throws IOException {
+        if (inEntry) closeEntry();
+        byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] link = entry.getLinkName() == null ? new byte[0] : entry.getLinkName().getBytes(StandardCharsets.UTF_8);
+        if (link.length > 100) writeLongName('K', link);
+        int split = name.length > 100 ? findPrefixSplit(name) : -1;
+        if (name.length > 100 && split == -1) writeLongName('L', name);
+
+        long size = entry.hasContent() ? entry.getSize() : 0;
+        clearHeader();
+        if (split != -1) {
+            System.arraycopy(name, split + 1, header, 0, name.length - split - 1);
+            System.arraycopy(name, 0, header, 345, split);
+        } else {
+            System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+        }
+        System.arraycopy(link, 0, header, 157, Math.min(link.length, 100));
+        writeHeader(entry.getType(), entry.getMode(), size, entry.getLastModified());
+
+        remaining = size;
+        padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+        inEntry = true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > remaining) throw new IOException("More data than the entry size");
+        out.write(b, off, len);
+        remaining -= len;
+    }
+
+    void closeEntry() throws IOException {
+        if (!inEntry) return;
+        if (remaining != 0) throw new IOException("Entry is " + remaining + " bytes short");
+        out.write(new byte[(int) padding]);
+        inEntry = false;
+    }
+
+    /**
+     * Ends the archive without closing the underlying stream.
+     */
+    void finish() throws IOException {
+        if (finished) return;
+        closeEntry();
+        out.write(new byte[2 * BLOCK_SIZE]);
+        out.flush();
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    /**
+     * @return where to split the name into the 155 byte prefix and 100 byte name fields of ustar, or -1.
+     */
+    private static int findPrefixSplit(byte[] name) {
+        for (int i = Math.min(name.length - 2, 155); i > 0; i--) {
+            if (name[i] == '/' && name.length - i - 1 <= 100) return i;
+        }
+        return -1;
+    }
+
+    private void writeLongName(char type, byte[] name) throws IOException {
+        clearHeader();
+        byte[] placeholder = "././@LongLink".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(placeholder, 0, header, 0, placeholder.length);
+        writeHeader(type, 0, name.length + 1, 0);
+        out.write(name);
+        out.write(new byte[BLOCK_SIZE - name.length % BLOCK_SIZE]);
+    }
+
+    private void clearHeader() {
+        for (int i = 0; i < header.length; i++) header[i] = 0;
+    }
+
+    /**
+     * Fills in everything but the names, which are already in the header, and writes it.
+     */
+    private void writeHeader(char type, int mode, long size, long lastModified) throws IOException {
+        putOctal(100, 8, mode & 07777);
+        putOctal(108, 8, 0);
+        putOctal(116, 8, 0);
+        if (size > MAX_OCTAL_SIZE) {
+            header[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++) {
+                header[135 - i] = (byte) (size >>> (8 * i));
+            }
+        } else {
+            putOctal(124, 12, size);
+        }
+        putOctal(136, 12, Math.max(0, lastModified));
+        header[156] = (byte) type;
+        System.arraycopy(MAGIC, 0, header, 257, MAGIC.length);
+        int checksum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+        putOctal(148, 7, checksum);
+        header[155] = ' ';
+        out.write(header);
+    }
+
+    /**
+     * Writes value as zero padded octal digits followed by a NUL, filling length bytes.
+     */
+    private void putOctal(int offset, int length, long value) {
+        header[offset + length - 1] = 0;
+        for (int i = offset + length - 2; i >= offset; i--) {
+            header[i] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+    }
+}
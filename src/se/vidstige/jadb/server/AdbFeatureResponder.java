@@ -0,0 +1,22 @@
+package se.vidstige.jadb.server;
+
+import se.vidstige.jadb.RemoteFile;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Optional capabilities of an {@link AdbDeviceResponder}. Devices which do not implement it report no features,
+ * so clients use sync v1, and answer STAT requests with a failure.
+ */
+public interface AdbFeatureResponder {
+    /**
+     * @return features of the device, e.g. "sendrecv_v2" and "sendrecv_v2_lz4" when sync v2 should be used.
+     */
+    List<String> getFeatures();
+
+    /**
+     * @return the file at the given path, or null if there is none.
+     */
+    RemoteFile stat(String path) throws IOException;
+}
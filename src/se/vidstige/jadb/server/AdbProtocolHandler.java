@@ -1,18 +1,23 @@
 package se.vidstige.jadb.server;
 
+import se.vidstige.jadb.Compression;
 import se.vidstige.jadb.JadbException;
 import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.SmartSocketCodec;
 import se.vidstige.jadb.SyncTransport;
 
 import java.io.*;
 import java.net.ProtocolException;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
 
 class AdbProtocolHandler implements Runnable {
     private final Socket socket;
     private final AdbResponder responder;
     private AdbDeviceResponder selected;
+    private final SmartSocketCodec codec = new SmartSocketCodec();
 
     public AdbProtocolHandler(Socket socket, AdbResponder responder) {
         this.socket = socket;
@@ -48,168 +53,222 @@ class AdbProtocolHandler implements Runnable {
         }
     }
 
-    private boolean processCommand(DataInput input, DataOutputStream output) throws IOException {
-        String command = readCommand(input);
+    private boolean processCommand(DataInputStream input, DataOutputStream output) throws IOException {
+        String command = codec.readMessage(input);
         responder.onCommand(command);
 
         try {
             if ("host:version".equals(command)) {
-                hostVersion(output);
+                hostVersion();
             } else if ("host:transport-any".equals(command)) {
-                hostTransportAny(output);
+                hostTransportAny();
             } else if ("host:devices".equals(command)) {
-                hostDevices(output);
+                hostDevices();
             } else if (command.startsWith("host:transport:")) {
-                hostTransport(output, command);
+                hostTransport(command);
             } else if ("sync:".equals(command)) {
                 sync(output, input);
+                return false;
             } else if (command.startsWith("shell:")) {
                 shell(input, output, command);
                 return false;
+            } else if (command.startsWith("exec:")) {
+                exec(input, output, command);
+                return false;
+            } else if ("host:features".equals(command)) {
+                hostFeatures(responder.getDevices().get(0));
             } else if ("host:get-state".equals(command)) {
-                hostGetState(output);
+                hostGetState();
             } else if (command.startsWith("host-serial:")) {
-                hostSerial(output, command);
+                hostSerial(command);
             } else if (command.startsWith("tcpip:")) {
                 handleTcpip(output, command);
             } else {
                 throw new ProtocolException("Unknown command: " + command);
             }
         } catch (ProtocolException e) {
-            output.writeBytes("FAIL");
-            send(output, e.getMessage());
+            codec.encodeStatus(SmartSocketCodec.FAIL);
+            codec.encode(e.getMessage());
+            // Like adb, give up on the connection since any pipelined request after this one was meant for a
+            // transport which could not be selected
+            codec.flushTo(output);
+            return false;
         }
-        output.flush();
+        codec.flushTo(output);
         return true;
     }
 
     private void handleTcpip(DataOutputStream output, String command) throws IOException {
-        output.writeBytes("OKAY");
+        codec.writeStatus(output, SmartSocketCodec.OKAY);
         selected.enableIpCommand(command.substring("tcpip:".length()), output);
     }
 
-    private void hostSerial(DataOutput output, String command) throws IOException {
+    private void hostSerial(String command) throws IOException {
         String[] strs = command.split(":",0);
         if (strs.length != 3) {
             throw new ProtocolException("Invalid command: " + command);
         }
 
         String serial = strs[1];
+        if ("features".equals(strs[2])) {
+            hostFeatures(findDevice(serial));
+            return;
+        }
         boolean found = false;
-        output.writeBytes("OKAY");
+        codec.encodeStatus(SmartSocketCodec.OKAY);
         for (AdbDeviceResponder d : responder.getDevices()) {
             if (d.getSerial().equals(serial)) {
-                send(output, d.getType());
+                codec.encode(d.getType());
                 found = true;
                 break;
             }
         }
 
         if (!found) {
-            send(output, "unknown");
+            codec.encode("unknown");
+        }
+    }
+
+    private void hostFeatures(AdbDeviceResponder device) {
+        StringBuilder features = new StringBuilder();
+        List<String> available = device instanceof AdbFeatureResponder
+                ? ((AdbFeatureResponder) device).getFeatures()
+                : Collections.<String>emptyList();
+        for (String feature : available) {
+            if (features.length() > 0) features.append(',');
+            features.append(feature);
         }
+        codec.encodeStatus(SmartSocketCodec.OKAY);
+        codec.encode(features);
     }
 
-    private void hostGetState(DataOutput output) throws IOException {
+    private void hostGetState() {
         // TODO: Check so that exactly one device is selected.
         AdbDeviceResponder device = responder.getDevices().get(0);
-        output.writeBytes("OKAY");
-        send(output, device.getType());
+        codec.encodeStatus(SmartSocketCodec.OKAY);
+        codec.encode(device.getType());
     }
 
     private void shell(DataInput input, DataOutputStream output, String command) throws IOException {
         String shellCommand = command.substring("shell:".length());
-        output.writeBytes("OKAY");
+        codec.writeStatus(output, SmartSocketCodec.OKAY);
         shell(shellCommand, output, input);
     }
 
-    private void hostTransport(DataOutput output, String command) throws IOException {
+    private void exec(DataInput input, DataOutputStream output, String command) throws IOException {
+        // exec: is a shell without a pty, the difference does not matter for responders
+        String execCommand = command.substring("exec:".length());
+        codec.writeStatus(output, SmartSocketCodec.OKAY);
+        shell(execCommand, output, input);
+    }
+
+    private void hostTransport(String command) throws ProtocolException {
         String serial = command.substring("host:transport:".length());
         selected = findDevice(serial);
-        output.writeBytes("OKAY");
+        codec.encodeStatus(SmartSocketCodec.OKAY);
     }
 
-    private void hostDevices(DataOutput output) throws IOException {
+    private void hostDevices() throws IOException {
         ByteArrayOutputStream tmp = new ByteArrayOutputStream();
         DataOutputStream writer = new DataOutputStream(tmp);
         for (AdbDeviceResponder d : responder.getDevices()) {
             writer.writeBytes(d.getSerial() + "\t" + d.getType() + "\n");
         }
-        output.writeBytes("OKAY");
-        send(output, new String(tmp.toByteArray(), StandardCharsets.UTF_8));
+        codec.encodeStatus(SmartSocketCodec.OKAY);
+        codec.encode(new String(tmp.toByteArray(), StandardCharsets.UTF_8));
     }
 
-    private void hostTransportAny(DataOutput output) throws IOException {
+    private void hostTransportAny() {
         // TODO: Check so that exactly one device is selected.
         selected = responder.getDevices().get(0);
-        output.writeBytes("OKAY");
+        codec.encodeStatus(SmartSocketCodec.OKAY);
     }
 
-    private void hostVersion(DataOutput output) throws IOException {
-        output.writeBytes("OKAY");
-        send(output, String.format("%04x", responder.getVersion()));
+    private void hostVersion() {
+        codec.encodeStatus(SmartSocketCodec.OKAY);
+        codec.encode(String.format("%04x", responder.getVersion()));
     }
 
     private void shell(String command, DataOutputStream stdout, DataInput stdin) throws IOException {
         selected.shell(command, stdout, stdin);
     }
 
-    private int readInt(DataInput input) throws IOException {
-        return Integer.reverseBytes(input.readInt());
-    }
-
-    private int readHexInt(DataInput input) throws IOException {
-        return Integer.parseInt(readString(input, 4), 16);
-    }
-
     private String readString(DataInput input, int length) throws IOException {
         byte[] responseBuffer = new byte[length];
         input.readFully(responseBuffer);
         return new String(responseBuffer, StandardCharsets.UTF_8);
     }
 
-    private String readCommand(DataInput input) throws IOException {
-        int length = readHexInt(input);
-        return readString(input, length);
-    }
-
-    private void sync(DataOutput output, DataInput input) throws IOException {
-        output.writeBytes("OKAY");
-        try {
-            String id = readString(input, 4);
-            int length = readInt(input);
-            switch (id) {
-                case "SEND":
-                    syncSend(output, input, length);
-                    break;
-                case "RECV":
-                    syncRecv(output, input, length);
-                    break;
-                case "LIST":
-                    syncList(output, input, length);
-                    break;
-                case "LIS2":
-                    syncListV2(output, input, length);
-                    break;
-                default:
-                    throw new JadbException("Unknown sync id " + id);
+    private void sync(DataOutputStream output, DataInputStream input) throws IOException {
+        codec.writeStatus(output, SmartSocketCodec.OKAY);
+        // Like adbd, serve requests until the client quits or disconnects
+        SyncTransport transport = new SyncTransport(output, input);
+        byte[] request = new byte[8];
+        while (true) {
+            // Replies to pipelined requests are written together, once there are no more requests waiting
+            if (input.available() == 0) transport.flush();
+            try {
+                input.readFully(request);
+            } catch (EOFException e) {
+                return;
+            }
+            String id = new String(request, 0, 4, StandardCharsets.UTF_8);
+            int length = littleEndianInt(request, 4);
+            try {
+                switch (id) {
+                    case "SEND":
+                        syncSend(transport, input, length);
+                        break;
+                    case "RECV":
+                        syncRecv(transport, input, length);
+                        break;
+                    case "LIST":
+                        syncList(transport, input, length);
+                        break;
+                    case "LIS2":
+                        syncListV2(transport, input, length);
+                        break;
+                    case "SND2":
+                        syncSendV2(transport, input, length);
+                        break;
+                    case "RCV2":
+                        syncRecvV2(transport, input, length);
+                        break;
+                    case "STAT":
+                        transport.sendStat(stat(readString(input, length)));
+                        break;
+                    case "STA2":
+                    case "LST2":
+                        transport.sendStatV2(id, stat(readString(input, length)));
+                        break;
+                    case "QUIT":
+                        transport.flush();
+                        return;
+                    default:
+                        throw new JadbException("Unknown sync id " + id);
+                }
+            } catch (JadbException e) { // sync response with a different type of fail message
+                transport.send("FAIL", e.getMessage());
+                transport.flush();
+                return;
             }
-        } catch (JadbException e) { // sync response with a different type of fail message
-            SyncTransport sync = getSyncTransport(output, input);
-            sync.send("FAIL", e.getMessage());
         }
     }
 
-    private void syncRecv(DataOutput output, DataInput input, int length) throws IOException, JadbException {
+    private RemoteFile stat(String path) throws IOException, JadbException {
+        if (!(selected instanceof AdbFeatureResponder)) throw new JadbException("stat is not supported");
+        return ((AdbFeatureResponder) selected).stat(path);
+    }
+
+    private void syncRecv(SyncTransport transport, DataInput input, int length) throws IOException, JadbException {
         String remotePath = readString(input, length);
-        SyncTransport transport = getSyncTransport(output, input);
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         selected.filePulled(new RemoteFile(remotePath), buffer);
         transport.sendStream(new ByteArrayInputStream(buffer.toByteArray()));
         transport.sendStatus("DONE", 0); // ignored
     }
 
-    private void syncSend(DataOutput output, DataInput input, int length) throws IOException, JadbException {
+    private void syncSend(SyncTransport transport, DataInput input, int length) throws IOException, JadbException {
         String remotePath = readString(input, length);
         int idx = remotePath.lastIndexOf(',');
         String path = remotePath;
@@ -218,41 +277,59 @@ class AdbProtocolHandler implements Runnable {
             path = remotePath.substring(0, idx);
             mode = Integer.parseInt(remotePath.substring(idx + 1));
         }
-        SyncTransport transport = getSyncTransport(output, input);
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         transport.readChunksTo(buffer);
         selected.filePushed(new RemoteFile(path), mode, buffer);
         transport.sendStatus("OKAY", 0); // 0 = ignored
     }
 
-    private void syncList(DataOutput output, DataInput input, int length) throws IOException, JadbException {
+    private void syncSendV2(SyncTransport transport, DataInput input, int length) throws IOException, JadbException {
+        String path = readString(input, length);
+        byte[] setup = new byte[12];
+        input.readFully(setup);
+        int mode = littleEndianInt(setup, 4);
+        Compression compression = getCompression(littleEndianInt(setup, 8));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        transport.readChunksTo(buffer, compression);
+        selected.filePushed(new RemoteFile(path), mode, buffer);
+        transport.sendStatus("OKAY", 0); // 0 = ignored
+    }
+
+    private void syncRecvV2(SyncTransport transport, DataInput input, int length) throws IOException, JadbException {
+        String remotePath = readString(input, length);
+        byte[] setup = new byte[8];
+        input.readFully(setup);
+        Compression compression = getCompression(littleEndianInt(setup, 4));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        selected.filePulled(new RemoteFile(remotePath), buffer);
+        transport.sendStream(new ByteArrayInputStream(buffer.toByteArray()), compression);
+        transport.sendStatus("DONE", 0); // ignored
+    }
+
+    private static Compression getCompression(int flags) throws JadbException {
+        Compression compression = Compression.fromFlags(flags);
+        if (compression == null) throw new JadbException("Unsupported sync flags " + flags);
+        return compression;
+    }
+
+    private static int littleEndianInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8
+                | (buffer[offset + 2] & 0xff) << 16 | (buffer[offset + 3] & 0xff) << 24;
+    }
+
+    private void syncList(SyncTransport transport, DataInput input, int length) throws IOException, JadbException {
         String remotePath = readString(input, length);
-        SyncTransport transport = getSyncTransport(output, input);
         for (RemoteFile file : selected.list(remotePath)) {
             transport.sendDirectoryEntry(file);
         }
         transport.sendDirectoryEntryDone();
     }
 
-    private void syncListV2(DataOutput output, DataInput input, int length) throws IOException, JadbException {
+    private void syncListV2(SyncTransport transport, DataInput input, int length) throws IOException, JadbException {
         String remotePath = readString(input, length);
-        SyncTransport transport = getSyncTransport(output, input);
         for (RemoteFile file : selected.list(remotePath)) {
             transport.sendDirectoryEntryV2(file);
         }
         transport.sendDirectoryEntryDoneV2();
     }
-
-    private String getCommandLength(String command) {
-        return String.format("%04x", command.length());
-    }
-
-    private void send(DataOutput writer, String response) throws IOException {
-        writer.writeBytes(getCommandLength(response));
-        writer.writeBytes(response);
-    }
-
-    private SyncTransport getSyncTransport(DataOutput output, DataInput input) {
-        return new SyncTransport(output, input);
-    }
 }
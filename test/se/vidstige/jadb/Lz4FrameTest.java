@@ -0,0 +1,90 @@
+package se.vidstige.jadb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Lz4FrameTest {
+    // What "lz4" writes for an empty file: magic, FLG, BD, header checksum, end mark and content checksum
+    private static final byte[] EMPTY_FRAME = {
+            0x04, 0x22, 0x4d, 0x18, 0x64, 0x40, (byte) 0xa7, 0, 0, 0, 0, 0x05, 0x5d, (byte) 0xcc, 0x02};
+
+    private static byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (Lz4FrameOutputStream out = new Lz4FrameOutputStream(compressed)) {
+            out.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] frame) throws IOException {
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        Stream.copy(new Lz4FrameInputStream(new ByteArrayInputStream(frame)), decompressed);
+        return decompressed.toByteArray();
+    }
+
+    @Test
+    public void testEmptyFrame() throws Exception {
+        assertArrayEquals(EMPTY_FRAME, compress(new byte[0]));
+        assertEquals(0, decompress(EMPTY_FRAME).length);
+    }
+
+    @Test
+    public void testRoundTripSeveralBlocks() throws Exception {
+        //Arrange
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(42);
+        while (text.length() < 200 * 1024) {
+            text.append("line ").append(random.nextInt(1000)).append(": the quick brown fox\n");
+        }
+        byte[] compressible = text.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] incompressible = new byte[100 * 1024];
+        random.nextBytes(incompressible);
+
+        //Act
+        byte[] compressedText = compress(compressible);
+        byte[] compressedNoise = compress(incompressible);
+
+        //Assert
+        assertTrue(compressedText.length < compressible.length / 3);
+        assertArrayEquals(compressible, decompress(compressedText));
+        assertArrayEquals(incompressible, decompress(compressedNoise));
+    }
+
+    @Test
+    public void testLinkedBlocks() throws Exception {
+        //Arrange
+        // First block is stored, the second copies 8 bytes from the first and ends with 5 literals
+        byte[] descriptor = {0x40, 0x40};
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(new byte[]{0x04, 0x22, 0x4d, 0x18, descriptor[0], descriptor[1]});
+        frame.write((XxHash32.hash(descriptor, 0, 2, 0) >>> 8) & 0xff);
+        frame.write(new byte[]{16, 0, 0, (byte) 0x80});
+        frame.write("0123456789abcdef".getBytes(StandardCharsets.UTF_8));
+        frame.write(new byte[]{9, 0, 0, 0, 0x04, 16, 0, 0x50, 'v', 'w', 'x', 'y', 'z'});
+        frame.write(new byte[]{0, 0, 0, 0});
+        // A second frame follows the first one
+        frame.write(EMPTY_FRAME);
+
+        //Act
+        byte[] decompressed = decompress(frame.toByteArray());
+
+        //Assert
+        assertEquals("0123456789abcdef01234567vwxyz", new String(decompressed, StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptContentIsDetected() throws Exception {
+        byte[] frame = compress("hello hello hello hello hello hello".getBytes(StandardCharsets.UTF_8));
+        frame[frame.length - 1] ^= 1;
+        decompress(frame);
+    }
+}
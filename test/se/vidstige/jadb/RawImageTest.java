@@ -0,0 +1,68 @@
+package se.vidstige.jadb;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RawImageTest {
+
+    private static byte[] framebuffer(int[] header, byte[] pixels) {
+        ByteBuffer buffer = ByteBuffer.allocate(header.length * 4 + pixels.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int value : header) {
+            buffer.putInt(value);
+        }
+        buffer.put(pixels);
+        return buffer.array();
+    }
+
+    @Test
+    public void testReadRgba8888() throws Exception {
+        byte[] pixels = {
+                (byte) 0xff, 0x00, 0x00, (byte) 0xff,  0x00, (byte) 0x80, 0x00, 0x40,
+        };
+        // version, bpp, size, width, height, red, blue, green, alpha (offset, length)
+        int[] header = {1, 32, 8, 2, 1, 0, 8, 16, 8, 8, 8, 24, 8};
+        RawImage image = new RawImage();
+        image.read(new ByteArrayInputStream(framebuffer(header, pixels)));
+
+        assertEquals(2, image.getWidth());
+        assertEquals(1, image.getHeight());
+        assertArrayEquals(new int[]{0xffff0000, 0x40008000}, image.toARGB(null));
+        assertEquals(0x40008000, image.getARGB(1));
+    }
+
+    @Test
+    public void testReadVersion2ReusesBuffer() throws Exception {
+        byte[] pixels = {0x01, 0x02, 0x03, 0x00};
+        // version, bpp, colorspace, size, width, height, red, blue, green, alpha (offset, length)
+        int[] header = {2, 32, 1, 4, 1, 1, 0, 8, 16, 8, 8, 8, 24, 0};
+        RawImage image = new RawImage();
+        image.read(new ByteArrayInputStream(framebuffer(header, pixels)));
+        byte[] data = image.getData();
+        image.read(new ByteArrayInputStream(framebuffer(header, pixels)));
+
+        assertSame(data, image.getData());
+        assertEquals(1, image.getColorSpace());
+        assertEquals(0xff010203, image.getARGB(0));
+    }
+
+    @Test
+    public void testReadRgb565() throws Exception {
+        // pure red and pure green in RGB565, little endian
+        byte[] pixels = {0x00, (byte) 0xf8, (byte) 0xe0, 0x07};
+        int[] header = {16, 4, 2, 1};
+        RawImage image = new RawImage();
+        image.read(new ByteArrayInputStream(framebuffer(header, pixels)));
+
+        BufferedImage bufferedImage = image.toBufferedImage();
+        assertEquals(0xffff0000, bufferedImage.getRGB(0, 0));
+        assertEquals(0xff00ff00, bufferedImage.getRGB(1, 0));
+    }
+}
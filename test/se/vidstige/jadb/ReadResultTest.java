@@ -0,0 +1,48 @@
+package se.vidstige.jadb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReadResultTest {
+    /**
+     * Hands out one byte per read, so that the marker is split across reads.
+     */
+    private static InputStream trickle(String data) {
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    @Test
+    public void testMarkerSplitAcrossReads() throws Exception {
+        CommandResult result = CommandBatch.readResult(trickle("d41d8cd9  -\nx-jadb-exit-status:12\nmore"));
+
+        assertEquals("d41d8cd9  -\n", result.getOutput());
+        assertEquals(12, result.getExitStatus());
+    }
+
+    @Test
+    public void testLongOutput() throws Exception {
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < 5000; i++) output.append("line ").append(i).append('\n');
+
+        CommandResult result = CommandBatch.readResult(
+                new ByteArrayInputStream((output + "x-jadb-exit-status:0\n").getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(output.toString(), result.getOutput());
+        assertEquals(0, result.getExitStatus());
+    }
+
+    @Test(expected = JadbException.class)
+    public void testEndWithoutExitStatus() throws Exception {
+        CommandBatch.readResult(trickle("x-jadb-exit-status:0"));
+    }
+}
@@ -0,0 +1,103 @@
+package se.vidstige.jadb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class ShellSessionTest {
+    private static final Closeable NOTHING = new Closeable() {
+        @Override
+        public void close() {
+        }
+    };
+
+    /** Returns one byte per read, to split the marker across reads */
+    private static class TrickleInputStream extends FilterInputStream {
+        TrickleInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(1, len));
+        }
+    }
+
+    private static InputStream shellOutput(String output) {
+        return new TrickleInputStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testExecuteSeveralCommands() throws Exception {
+        ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+        ShellSession session = new ShellSession(
+                shellOutput("total 0\nx-marker:0\nno newlinex-marker:1\n"), stdin, NOTHING, "x-marker:");
+
+        CommandResult first = session.execute("ls", "-l");
+        CommandResult second = session.execute("printf no\\ newline; false");
+
+        assertEquals("total 0\n", first.getOutput());
+        assertEquals(0, first.getExitStatus());
+        assertEquals("no newline", second.getOutput());
+        assertEquals(1, second.getExitStatus());
+        assertEquals("{ ls '-l'\n} </dev/null 2>&1; echo x-marker:$?\n" +
+                "{ printf no\\ newline; false\n} </dev/null 2>&1; echo x-marker:$?\n",
+                new String(stdin.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testShellExitBreaksSession() throws Exception {
+        ShellSession session = new ShellSession(shellOutput("partial"), new ByteArrayOutputStream(), NOTHING, "x-marker:");
+        try {
+            session.execute("exit");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(session.isUsable());
+    }
+
+    @Test
+    public void testTimeoutClosesSession() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+        // Blocks like a shell waiting for the end of an unbalanced quote, until the connection is closed
+        InputStream silent = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Socket closed");
+            }
+        };
+        Closeable connection = new Closeable() {
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+        ShellSession session = new ShellSession(silent, new ByteArrayOutputStream(), connection, "x-marker:");
+        session.setTimeout(100, TimeUnit.MILLISECONDS);
+        try {
+            session.execute("echo 'unbalanced");
+            fail("Expected the command to time out");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, closed.getCount());
+        assertFalse(session.isUsable());
+    }
+}
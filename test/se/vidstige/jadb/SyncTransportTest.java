@@ -0,0 +1,103 @@
+package se.vidstige.jadb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SyncTransportTest {
+
+    /** Counts the writes reaching the underlying stream, which would be syscalls on a socket */
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        int writes = 0;
+
+        @Override
+        public synchronized void write(int b) {
+            writes++;
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    private static SyncTransport reader(ByteArrayOutputStream written) {
+        return new SyncTransport(new DataOutputStream(new ByteArrayOutputStream()),
+                new DataInputStream(new ByteArrayInputStream(written.toByteArray())));
+    }
+
+    @Test
+    public void testListingIsWrittenInOneGo() throws Exception {
+        //Arrange
+        CountingOutputStream output = new CountingOutputStream();
+        SyncTransport server = new SyncTransport(new DataOutputStream(output), null);
+
+        //Act
+        for (int i = 0; i < 100; i++) {
+            server.sendDirectoryEntryV2(new RemoteFileRecordV2("file" + i, 0100644, i, 1600000000L + i));
+        }
+        server.sendDirectoryEntryDoneV2();
+
+        //Assert
+        assertEquals(1, output.writes);
+        SyncTransport client = reader(output);
+        for (int i = 0; i < 100; i++) {
+            RemoteFileRecordV2 entry = client.readDirectoryEntryV2();
+            assertEquals("file" + i, entry.getPath());
+            assertEquals(i, entry.getSize());
+            assertEquals(1600000000L + i, entry.getLastModified());
+        }
+        assertSame(RemoteFileRecordV2.DONE, client.readDirectoryEntryV2());
+    }
+
+    @Test
+    public void testSmallPushIsWrittenInOneGo() throws Exception {
+        //Arrange
+        CountingOutputStream output = new CountingOutputStream();
+        SyncTransport client = new SyncTransport(new DataOutputStream(output), null);
+        byte[] content = "abc".getBytes(StandardCharsets.UTF_8);
+
+        //Act
+        client.send("SEND", "/remote/path/abc.txt,420");
+        client.sendStream(new ByteArrayInputStream(content));
+        client.sendStatus("DONE", 0);
+
+        //Assert
+        assertEquals(1, output.writes);
+        byte[] written = output.toByteArray();
+        // SEND header and path, then a DATA header and the content, then DONE
+        int data = 8 + "/remote/path/abc.txt,420".length();
+        assertEquals("DATA", new String(written, data, 4, StandardCharsets.UTF_8));
+        assertArrayEquals(content, Arrays.copyOfRange(written, data + 8, data + 8 + content.length));
+        assertEquals("DONE", new String(written, data + 8 + content.length, 4, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLargeStreamRoundTrip() throws Exception {
+        //Arrange
+        byte[] content = new byte[300 * 1024];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) i;
+        CountingOutputStream output = new CountingOutputStream();
+        SyncTransport sender = new SyncTransport(new DataOutputStream(output), null);
+
+        //Act
+        sender.sendStream(new ByteArrayInputStream(content));
+        sender.sendStatus("DONE", 0);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        reader(output).readChunksTo(received);
+
+        //Assert
+        assertArrayEquals(content, received.toByteArray());
+    }
+}
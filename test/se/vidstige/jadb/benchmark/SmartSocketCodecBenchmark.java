@@ -0,0 +1,99 @@
+package se.vidstige.jadb.benchmark;
+
+import se.vidstige.jadb.SmartSocketCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares encoding a request and decoding a status plus reply with {@link SmartSocketCodec} against the
+ * String.format and OutputStreamWriter based code it replaced. Run the main method, not part of the test suite.
+ */
+public class SmartSocketCodecBenchmark {
+    private static final String REQUEST = "shell:getprop 'ro.build.version.sdk'";
+    private static final byte[] REPLY = "OKAY0005device".getBytes(StandardCharsets.UTF_8);
+    private static final int ITERATIONS = 2000000;
+
+    /** Counts bytes and writes, like a socket would see them */
+    private static class CountingOutputStream extends OutputStream {
+        long bytes = 0;
+        long writes = 0;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+            writes++;
+        }
+    }
+
+    private interface Round {
+        int run(CountingOutputStream output, ByteArrayInputStream input) throws IOException;
+    }
+
+    private static final Round LEGACY = new Round() {
+        @Override
+        public int run(CountingOutputStream output, ByteArrayInputStream input) throws IOException {
+            OutputStreamWriter writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            writer.write(String.format("%04x", REQUEST.getBytes().length));
+            writer.write(REQUEST);
+            writer.flush();
+            DataInputStream data = new DataInputStream(input);
+            byte[] status = new byte[4];
+            data.readFully(status);
+            if (!"OKAY".equals(new String(status, StandardCharsets.UTF_8))) throw new IOException("FAIL");
+            byte[] length = new byte[4];
+            data.readFully(length);
+            byte[] reply = new byte[Integer.parseInt(new String(length, StandardCharsets.UTF_8), 16)];
+            data.readFully(reply);
+            return new String(reply, StandardCharsets.UTF_8).length();
+        }
+    };
+
+    private static Round codec() {
+        final SmartSocketCodec codec = new SmartSocketCodec();
+        return new Round() {
+            @Override
+            public int run(CountingOutputStream output, ByteArrayInputStream input) throws IOException {
+                codec.writeMessage(output, REQUEST);
+                if (codec.readStatus(input) != SmartSocketCodec.OKAY) throw new IOException("FAIL");
+                return codec.readMessage(input).length();
+            }
+        };
+    }
+
+    private static void measure(String name, Round round) throws IOException {
+        CountingOutputStream output = new CountingOutputStream();
+        ByteArrayInputStream input = new ByteArrayInputStream(REPLY);
+        int checksum = 0;
+        for (int i = 0; i < ITERATIONS; i++) { // warm up
+            input.reset();
+            checksum += round.run(output, input);
+        }
+        output = new CountingOutputStream();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            input.reset();
+            checksum += round.run(output, input);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-8s %6.1f ns/op %4.1f writes/op (checksum %d)%n",
+                name, (double) elapsed / ITERATIONS, (double) output.writes / ITERATIONS, checksum);
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            measure("legacy", LEGACY);
+            measure("codec", codec());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package se.vidstige.jadb.managers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class InputManagerTest {
+
+    @Test
+    public void textSplitsOnWhitespace() {
+        InputManager.Batch batch = new InputManager(null).batch().text("say \"hi\"\n");
+        assertEquals(Arrays.asList("type say", "press 62", "type \\\"hi\\\"", "press 66"), batch.getCommands());
+    }
+
+    @Test
+    public void swipe() {
+        InputManager.Batch batch = new InputManager(null).batch().swipe(0, 0, 100, 50, 20);
+        assertEquals(Arrays.asList(
+                "touch down 0 0",
+                "sleep 10", "touch move 50 25",
+                "sleep 10", "touch move 100 50",
+                "touch up 100 50"), batch.getCommands());
+    }
+}
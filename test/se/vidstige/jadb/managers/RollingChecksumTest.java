@@ -0,0 +1,34 @@
+package se.vidstige.jadb.managers;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RollingChecksumTest {
+    @Test
+    public void testMatchesCksum() {
+        // printf abc | cksum
+        RollingChecksum checksum = new RollingChecksum(3);
+        checksum.reset(ByteBuffer.wrap("abc".getBytes(StandardCharsets.UTF_8)), 0);
+        assertEquals(1219131554L, checksum.getValue());
+    }
+
+    @Test
+    public void testRollingEqualsRecomputing() {
+        byte[] data = new byte[4096];
+        new Random(42).nextBytes(data);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        RollingChecksum rolling = new RollingChecksum(300);
+        RollingChecksum fresh = new RollingChecksum(300);
+        rolling.reset(buffer, 0);
+        for (int offset = 1; offset + 300 <= data.length; offset++) {
+            rolling.roll(data[offset - 1], data[offset + 299]);
+            fresh.reset(buffer, offset);
+            assertEquals(fresh.getValue(), rolling.getValue());
+        }
+    }
+}
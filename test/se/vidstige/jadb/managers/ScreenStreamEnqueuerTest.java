@@ -0,0 +1,84 @@
+package se.vidstige.jadb.managers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScreenStreamEnqueuerTest {
+    private static final byte[] PARAMETER_SETS = {
+            0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1f,
+            0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] IDR = {0, 0, 1, 0x65, (byte) 0x88, 0x00, 0x00, 0x03, 0x00, 0x21};
+    private static final byte[] KEY_FRAME = concat(PARAMETER_SETS, IDR);
+    private static final byte[] FRAME = {0, 0, 0, 1, 0x41, (byte) 0x9a, 0x11};
+
+    private BlockingQueue<AccessUnit> free;
+    private BlockingQueue<AccessUnit> queued;
+    private AtomicLong dropped;
+    private ScreenStream.Enqueuer enqueuer;
+
+    @Before
+    public void setUp() {
+        free = new LinkedBlockingQueue<>();
+        queued = new LinkedBlockingQueue<>();
+        dropped = new AtomicLong();
+        enqueuer = new ScreenStream.Enqueuer(free, queued, true, dropped);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] take(BlockingQueue<AccessUnit> queue) {
+        AccessUnit unit = queue.remove();
+        return Arrays.copyOf(unit.getData(), unit.getLength());
+    }
+
+    @Test
+    public void testKeyFrameIsDeliveredUnchanged() throws Exception {
+        free.add(new AccessUnit(16));
+
+        enqueuer.onAccessUnit(KEY_FRAME, KEY_FRAME.length, true, 0);
+
+        assertArrayEquals(KEY_FRAME, take(queued));
+        assertEquals(0, dropped.get());
+    }
+
+    @Test
+    public void testParameterSetsOfDroppedFrameArePutBeforeNextKeyFrame() throws Exception {
+        enqueuer.onAccessUnit(KEY_FRAME, KEY_FRAME.length, true, 0);
+        free.add(new AccessUnit(16));
+        enqueuer.onAccessUnit(FRAME, FRAME.length, false, 1);
+        enqueuer.onAccessUnit(IDR, IDR.length, true, 2);
+
+        assertEquals(2, dropped.get());
+        AccessUnit unit = queued.peek();
+        assertTrue(unit.isKeyFrame());
+        assertEquals(2, unit.getTimestampNanos());
+        assertArrayEquals(KEY_FRAME, take(queued));
+        assertTrue(queued.isEmpty());
+    }
+
+    @Test
+    public void testKeyFrameWithOwnParameterSetsIsNotPrefixed() throws Exception {
+        free.add(new AccessUnit(16));
+        enqueuer.onAccessUnit(KEY_FRAME, KEY_FRAME.length, true, 0);
+        enqueuer.onAccessUnit(FRAME, FRAME.length, false, 1);
+        assertArrayEquals(KEY_FRAME, take(queued));
+        free.add(new AccessUnit(16));
+        enqueuer.onAccessUnit(KEY_FRAME, KEY_FRAME.length, true, 2);
+
+        assertEquals(1, dropped.get());
+        assertArrayEquals(KEY_FRAME, take(queued));
+    }
+}
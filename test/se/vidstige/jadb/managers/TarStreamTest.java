@@ -0,0 +1,86 @@
+package se.vidstige.jadb.managers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TarStreamTest {
+    private static String repeat(String s, int times) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < times; i++) result.append(s);
+        return result.toString();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String prefixed = repeat("dir/", 30) + "file.txt";
+        String gnuLong = repeat("x", 150);
+        String longLink = "/" + repeat("target/", 20);
+        byte[] content = "content".getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TarOutputStream out = new TarOutputStream(bytes);
+        //noinspection OctalInteger
+        out.putNextEntry(new TarEntry(prefixed, TarEntry.REGULAR, 0644, content.length, 1234567890L, null));
+        out.write(content);
+        //noinspection OctalInteger
+        out.putNextEntry(new TarEntry(gnuLong, TarEntry.REGULAR, 0600, 0, 1, null));
+        //noinspection OctalInteger
+        out.putNextEntry(new TarEntry("link", TarEntry.SYMBOLIC_LINK, 0777, 0, 2, longLink));
+        out.finish();
+        assertEquals(0, bytes.size() % 512);
+
+        TarInputStream in = new TarInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        TarEntry entry = in.getNextEntry();
+        assertEquals(prefixed, entry.getName());
+        //noinspection OctalInteger
+        assertEquals(0644, entry.getMode());
+        assertEquals(1234567890L, entry.getLastModified());
+        byte[] read = new byte[content.length];
+        assertEquals(content.length, in.read(read));
+        assertArrayEquals(content, read);
+        assertEquals(-1, in.read());
+
+        entry = in.getNextEntry();
+        assertEquals(gnuLong, entry.getName());
+        assertEquals(0, entry.getSize());
+
+        entry = in.getNextEntry();
+        assertEquals("link", entry.getName());
+        assertEquals(TarEntry.SYMBOLIC_LINK, entry.getType());
+        assertEquals(longLink, entry.getLinkName());
+
+        assertNull(in.getNextEntry());
+    }
+
+    @Test
+    public void testPaxHeaderOverridesFields() throws Exception {
+        String records = "29 path=pax/name/from/header\n" + "22 mtime=1700000000.5\n";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TarOutputStream out = new TarOutputStream(bytes);
+        byte[] pax = records.getBytes(StandardCharsets.UTF_8);
+        out.putNextEntry(new TarEntry("PaxHeaders/short", 'x', 0, pax.length, 0, null));
+        out.write(pax);
+        //noinspection OctalInteger
+        out.putNextEntry(new TarEntry("short", TarEntry.REGULAR, 0644, 0, 1, null));
+        out.finish();
+
+        TarInputStream in = new TarInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        TarEntry entry = in.getNextEntry();
+        assertEquals("pax/name/from/header", entry.getName());
+        assertEquals(1700000000L, entry.getLastModified());
+        assertNull(in.getNextEntry());
+    }
+
+    @Test(expected = TarInputStream.FormatException.class)
+    public void testRejectsNonArchive() throws Exception {
+        byte[] garbage = repeat("/system/bin/sh: tar: not found\n", 20).getBytes(StandardCharsets.UTF_8);
+        new TarInputStream(new ByteArrayInputStream(garbage)).getNextEntry();
+    }
+}
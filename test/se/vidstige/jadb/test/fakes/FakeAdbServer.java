@@ -3,6 +3,7 @@ package se.vidstige.jadb.test.fakes;
 import se.vidstige.jadb.JadbException;
 import se.vidstige.jadb.RemoteFile;
 import se.vidstige.jadb.server.AdbDeviceResponder;
+import se.vidstige.jadb.server.AdbFeatureResponder;
 import se.vidstige.jadb.server.AdbResponder;
 import se.vidstige.jadb.server.AdbServer;
 
@@ -13,6 +14,7 @@ import java.io.IOException;
 import java.net.ProtocolException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -91,6 +93,14 @@ public class FakeAdbServer implements AdbResponder {
         findBySerial(serial).expectTcpip(port);
     }
 
+    public DeviceResponder.StatExpectation expectStat(String serial, String remotePath) {
+        return findBySerial(serial).expectStat(remotePath);
+    }
+
+    public void setFeatures(String serial, String... features) {
+        findBySerial(serial).features = Arrays.asList(features);
+    }
+
     public DeviceResponder.ListExpectation expectList(String serial, String remotePath) {
         return findBySerial(serial).expectList(remotePath);
     }
@@ -100,13 +110,16 @@ public class FakeAdbServer implements AdbResponder {
         return new ArrayList<AdbDeviceResponder>(devices);
     }
 
-    private static class DeviceResponder implements AdbDeviceResponder {
+    private static class DeviceResponder implements AdbDeviceResponder, AdbFeatureResponder {
         private final String serial;
         private final String type;
         private List<FileExpectation> fileExpectations = new ArrayList<>();
         private List<ShellExpectation> shellExpectations = new ArrayList<>();
         private List<ListExpectation> listExpectations = new ArrayList<>();
+        private List<StatExpectation> statExpectations = new ArrayList<>();
         private List<Integer> tcpipExpectations = new ArrayList<>();
+        private List<String> features = new ArrayList<>();
+        private final List<String> errors = new ArrayList<>();
 
         private DeviceResponder(String serial, String type) {
             this.serial = serial;
@@ -123,6 +136,11 @@ public class FakeAdbServer implements AdbResponder {
             return type;
         }
 
+        @Override
+        public List<String> getFeatures() {
+            return features;
+        }
+
         @Override
         public void filePushed(RemoteFile path, int mode, ByteArrayOutputStream buffer) throws JadbException {
             for (FileExpectation fe : fileExpectations) {
@@ -154,6 +172,12 @@ public class FakeAdbServer implements AdbResponder {
             for (ShellExpectation se : shellExpectations) {
                 if (se.matches(command)) {
                     shellExpectations.remove(se);
+                    try {
+                        se.readStdin(stdin);
+                    } catch (IOException e) {
+                        errors.add(e.getMessage());
+                        throw e;
+                    }
                     se.writeOutputTo(stdout);
                     return;
                 }
@@ -185,6 +209,17 @@ public class FakeAdbServer implements AdbResponder {
             throw new ProtocolException("Unexpected list of device " + serial + " in dir " + path);
         }
 
+        @Override
+        public RemoteFile stat(String path) throws IOException {
+            for (StatExpectation se : statExpectations) {
+                if (se.matches(path)) {
+                    statExpectations.remove(se);
+                    return se.getFile();
+                }
+            }
+            throw new ProtocolException("Unexpected stat of device " + serial + " for " + path);
+        }
+
         public void verifyExpectations() {
             for (FileExpectation expectation : fileExpectations) {
                 org.junit.Assert.fail(expectation.toString());
@@ -195,9 +230,15 @@ public class FakeAdbServer implements AdbResponder {
             for (ListExpectation expectation : listExpectations) {
                 org.junit.Assert.fail(expectation.toString());
             }
+            for (StatExpectation expectation : statExpectations) {
+                org.junit.Assert.fail(expectation.toString());
+            }
             for (int expectation : tcpipExpectations) {
                 org.junit.Assert.fail("Expected tcp/ip on" + expectation);
             }
+            for (String error : errors) {
+                org.junit.Assert.fail(error);
+            }
         }
 
         private static class FileExpectation implements ExpectationBuilder {
@@ -251,6 +292,7 @@ public class FakeAdbServer implements AdbResponder {
         public static class ShellExpectation {
             private final String command;
             private byte[] stdout;
+            private byte[] stdin = null;
 
             public ShellExpectation(String command) {
                 this.command = command;
@@ -264,6 +306,27 @@ public class FakeAdbServer implements AdbResponder {
                 this.stdout = stdout.getBytes(StandardCharsets.UTF_8);
             }
 
+            public void returns(byte[] stdout) {
+                this.stdout = stdout;
+            }
+
+            /**
+             * Expects the command to be sent exactly this input before it answers. Like a real adb server, the input
+             * is not expected to end, since adb cannot close just the sending side of a connection.
+             */
+            public ShellExpectation withStdin(byte[] stdin) {
+                this.stdin = stdin;
+                if (stdout == null) stdout = new byte[0];
+                return this;
+            }
+
+            public void readStdin(DataInput input) throws IOException {
+                if (stdin == null) return;
+                byte[] actual = new byte[stdin.length];
+                input.readFully(actual);
+                if (!Arrays.equals(stdin, actual)) throw new ProtocolException("Unexpected input to " + command);
+            }
+
             public void writeOutputTo(DataOutputStream stdout) throws IOException {
                 stdout.write(this.stdout);
             }
@@ -274,6 +337,39 @@ public class FakeAdbServer implements AdbResponder {
             }
         }
 
+        public static class StatExpectation {
+            private final String remotePath;
+            private RemoteFile file = null;
+
+            public StatExpectation(String remotePath) {
+                this.remotePath = remotePath;
+            }
+
+            public boolean matches(String remotePath) {
+                return remotePath.equals(this.remotePath);
+            }
+
+            public void withFile(long size, long modifyTime) {
+                file = new ListExpectation.MockFileEntry(remotePath, size, modifyTime, false);
+            }
+
+            public void withDir(long modifyTime) {
+                file = new ListExpectation.MockFileEntry(remotePath, -1, modifyTime, true);
+            }
+
+            /**
+             * @return the file, or null to report that it does not exist.
+             */
+            public RemoteFile getFile() {
+                return file;
+            }
+
+            @Override
+            public String toString() {
+                return "Expected stat " + remotePath;
+            }
+        }
+
         public static class ListExpectation {
 
             private final String remotePath;
@@ -359,6 +455,12 @@ public class FakeAdbServer implements AdbResponder {
             return expectation;
         }
 
+        public StatExpectation expectStat(String remotePath) {
+            StatExpectation expectation = new StatExpectation(remotePath);
+            statExpectations.add(expectation);
+            return expectation;
+        }
+
         public void expectTcpip(int port) {
             tcpipExpectations.add(port);
         }
@@ -18,6 +18,7 @@ import java.util.List;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class RealDeviceTestCases {
@@ -160,6 +161,14 @@ public class RealDeviceTestCases {
         }
     }
 
+    @Test
+    public void testRawScreenshot() throws Exception {
+        JadbDevice any = jadb.getAnyDevice();
+        RawImage image = any.screenshot(null);
+        assertSame(image, any.screenshot(image));
+        assertTrue(image.getWidth() > 0);
+    }
+
     /**
      * This test requires emulator running on non-standard tcp port - this may be achieve by executing such command:
      * ${ANDROID_HOME}/emulator -verbose -avd ${NAME} -ports 10000,10001
@@ -0,0 +1,130 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.managers.CompressedTransfer;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedTransferTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    private static byte[] logContent() {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            log.append("01-01 12:00:00.000  1000  1000 I ActivityManager: line ").append(i).append('\n');
+        }
+        return log.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(byte[] content) throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(content);
+        }
+        return compressed.toByteArray();
+    }
+
+    @Test
+    public void testPullCompressed() throws Exception {
+        byte[] content = logContent();
+        byte[] compressed = gzip(content);
+        server.expectStat(DEVICE_SERIAL, "/data/anr/traces.txt").withFile(content.length, 1000);
+        server.expectShell(DEVICE_SERIAL, "gzip -c -1 '/data/anr/traces.txt' 2>/dev/null").returns(compressed);
+
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        CompressedTransfer.Result result = new CompressedTransfer(device)
+                .pull(new RemoteFile("/data/anr/traces.txt"), destination);
+
+        assertArrayEquals(content, destination.toByteArray());
+        assertTrue(result.isCompressed());
+        assertEquals(content.length, result.getSize());
+        assertEquals(compressed.length, result.getTransferred());
+    }
+
+    @Test
+    public void testPullCompressedGrowingFile() throws Exception {
+        byte[] content = logContent();
+        server.expectStat(DEVICE_SERIAL, "/data/anr/traces.txt").withFile(content.length - 100, 1000);
+        server.expectShell(DEVICE_SERIAL, "gzip -c -1 '/data/anr/traces.txt' 2>/dev/null").returns(gzip(content));
+
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        CompressedTransfer.Result result = new CompressedTransfer(device)
+                .pull(new RemoteFile("/data/anr/traces.txt"), destination);
+
+        assertArrayEquals(content, destination.toByteArray());
+        assertEquals(content.length, result.getSize());
+    }
+
+    @Test(expected = IOException.class)
+    public void testPullCompressedStreamEndedEarly() throws Exception {
+        byte[] content = logContent();
+        byte[] compressed = gzip(content);
+        server.expectStat(DEVICE_SERIAL, "/data/anr/traces.txt").withFile(content.length, 1000);
+        server.expectShell(DEVICE_SERIAL, "gzip -c -1 '/data/anr/traces.txt' 2>/dev/null")
+                .returns(Arrays.copyOf(compressed, compressed.length / 2));
+
+        new CompressedTransfer(device).pull(new RemoteFile("/data/anr/traces.txt"), new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testPullAlreadyCompressedFilePlain() throws Exception {
+        byte[] content = logContent();
+        server.expectStat(DEVICE_SERIAL, "/sdcard/DCIM/photo.JPG").withFile(content.length, 1000);
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/sdcard/DCIM/photo.JPG")).withContent(content);
+
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        CompressedTransfer.Result result = new CompressedTransfer(device)
+                .pull(new RemoteFile("/sdcard/DCIM/photo.JPG"), destination);
+
+        assertArrayEquals(content, destination.toByteArray());
+        assertFalse(result.isCompressed());
+    }
+
+    @Test
+    public void testPullFallsBackWithoutGzip() throws Exception {
+        byte[] content = logContent();
+        server.expectStat(DEVICE_SERIAL, "/data/anr/traces.txt").withFile(content.length, 1000);
+        server.expectShell(DEVICE_SERIAL, "gzip -c -1 '/data/anr/traces.txt' 2>/dev/null").returns("");
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/data/anr/traces.txt")).withContent(content);
+
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        CompressedTransfer.Result result = new CompressedTransfer(device)
+                .pull(new RemoteFile("/data/anr/traces.txt"), destination);
+
+        assertArrayEquals(content, destination.toByteArray());
+        assertFalse(result.isCompressed());
+        assertEquals(content.length, result.getTransferred());
+    }
+}
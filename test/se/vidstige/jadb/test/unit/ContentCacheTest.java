@@ -0,0 +1,183 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.managers.ContentCache;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ContentCacheTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+    private static final String CACHED = "/data/local/tmp/.jadb-cache/"
+            + "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+    private static final String OTHER_CACHED = "/data/local/tmp/.jadb-cache/"
+            + "3608bca1e44ea6c4d268eb6db02260269892c0b42b86bbf1e77a6fa16c3c9282";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+    private File manifests;
+    private File local;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+        manifests = temporaryFolder.newFolder("manifests");
+        local = temporaryFolder.newFile("abc.txt");
+        Files.write(local.toPath(), "abc".getBytes(StandardCharsets.UTF_8));
+        assertTrue(local.setLastModified(1000000));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    private void expectPushAndCache(String path) {
+        expectPushAndCache(path, "abc", CACHED);
+    }
+
+    private void expectPushAndCache(String path, String content, String cached) {
+        server.expectPush(DEVICE_SERIAL, new RemoteFile(path)).withContent(content);
+        server.expectShell(DEVICE_SERIAL, "mkdir '-p' '/data/local/tmp/.jadb-cache'; echo x-jadb-exit-status:$?; "
+                + "cp '-p' '-f' '" + path + "' '" + cached + ".tmp'; echo x-jadb-exit-status:$?; "
+                + "mv '-f' '" + cached + ".tmp' '" + cached + "'; echo x-jadb-exit-status:$?")
+                .returns("x-jadb-exit-status:0\nx-jadb-exit-status:0\nx-jadb-exit-status:0\n");
+    }
+
+    private void expectCopy(String path, int exitStatus) {
+        expectCopy(path, CACHED, "664", exitStatus);
+    }
+
+    private void expectCopy(String path, String cached, String mode, int exitStatus) {
+        String temporary = path + ".jadb-tmp";
+        server.expectShell(DEVICE_SERIAL, "test '-f' '" + cached + "'; echo x-jadb-exit-status:$?; "
+                + "mkdir '-p' '/sdcard/fixtures'; echo x-jadb-exit-status:$?; "
+                + "rm '-f' '" + temporary + "'; echo x-jadb-exit-status:$?; "
+                + "cp '-f' '" + cached + "' '" + temporary + "'; echo x-jadb-exit-status:$?; "
+                + "chmod '" + mode + "' '" + temporary + "'; echo x-jadb-exit-status:$?; "
+                + "touch '-m' '-d' '@1000' '" + temporary + "'; echo x-jadb-exit-status:$?; "
+                + "mv '-f' '" + temporary + "' '" + path + "'; echo x-jadb-exit-status:$?")
+                .returns("x-jadb-exit-status:" + exitStatus + "\nx-jadb-exit-status:0\nx-jadb-exit-status:0"
+                        + "\nx-jadb-exit-status:" + exitStatus + "\nx-jadb-exit-status:" + exitStatus
+                        + "\nx-jadb-exit-status:" + exitStatus + "\nx-jadb-exit-status:" + exitStatus + "\n");
+    }
+
+    private void expectLink(String path) {
+        String temporary = path + ".jadb-tmp";
+        server.expectShell(DEVICE_SERIAL, "mkdir '-p' '/sdcard/fixtures'; echo x-jadb-exit-status:$?; "
+                + "ln '-f' '" + CACHED + "' '" + temporary + "'; echo x-jadb-exit-status:$?; "
+                + "mv '-f' '" + temporary + "' '" + path + "'; echo x-jadb-exit-status:$?")
+                .returns("x-jadb-exit-status:0\nx-jadb-exit-status:0\nx-jadb-exit-status:0\n");
+    }
+
+    @Test
+    public void testSecondPushIsCopiedOnDevice() throws Exception {
+        expectPushAndCache("/sdcard/fixtures/a.txt");
+        expectCopy("/sdcard/fixtures/b.txt", 0);
+
+        assertFalse(new ContentCache(device, manifests).push(local, new RemoteFile("/sdcard/fixtures/a.txt")));
+        // A new instance, as in the next run, reads the manifest from disk
+        assertTrue(new ContentCache(device, manifests).push(local, new RemoteFile("/sdcard/fixtures/b.txt")));
+    }
+
+    @Test
+    public void testPushesAgainWhenGoneFromDevice() throws Exception {
+        expectPushAndCache("/sdcard/fixtures/a.txt");
+        expectCopy("/sdcard/fixtures/b.txt", 1);
+        expectPushAndCache("/sdcard/fixtures/b.txt");
+
+        ContentCache cache = new ContentCache(device, manifests);
+        assertFalse(cache.push(local, new RemoteFile("/sdcard/fixtures/a.txt")));
+        assertFalse(cache.push(local, new RemoteFile("/sdcard/fixtures/b.txt")));
+    }
+
+    @Test
+    public void testKeepsEntryWhenCopyFails() throws Exception {
+        expectPushAndCache("/sdcard/fixtures/a.txt");
+        String temporary = "/sdcard/fixtures/b.txt.jadb-tmp";
+        server.expectShell(DEVICE_SERIAL, "test '-f' '" + CACHED + "'; echo x-jadb-exit-status:$?; "
+                + "mkdir '-p' '/sdcard/fixtures'; echo x-jadb-exit-status:$?; "
+                + "rm '-f' '" + temporary + "'; echo x-jadb-exit-status:$?; "
+                + "cp '-f' '" + CACHED + "' '" + temporary + "'; echo x-jadb-exit-status:$?; "
+                + "chmod '664' '" + temporary + "'; echo x-jadb-exit-status:$?; "
+                + "touch '-m' '-d' '@1000' '" + temporary + "'; echo x-jadb-exit-status:$?; "
+                + "mv '-f' '" + temporary + "' '/sdcard/fixtures/b.txt'; echo x-jadb-exit-status:$?")
+                .returns("x-jadb-exit-status:0\nx-jadb-exit-status:0\nx-jadb-exit-status:0\n"
+                        + "cp: No space left on device\nx-jadb-exit-status:1\nx-jadb-exit-status:1\n"
+                        + "x-jadb-exit-status:1\nx-jadb-exit-status:1\n");
+        expectCopy("/sdcard/fixtures/c.txt", 0);
+
+        ContentCache cache = new ContentCache(device, manifests);
+        assertFalse(cache.push(local, new RemoteFile("/sdcard/fixtures/a.txt")));
+        try {
+            cache.push(local, new RemoteFile("/sdcard/fixtures/b.txt"));
+            fail("Expected the failed copy to be reported");
+        } catch (JadbException e) {
+            // expected
+        }
+        // Still cached, so copied without a transfer
+        assertTrue(cache.push(local, new RemoteFile("/sdcard/fixtures/c.txt")));
+    }
+
+    @Test(expected = JadbException.class)
+    public void testRejectsDeviceWithoutSerial() throws Exception {
+        new ContentCache(new JadbConnection("localhost", 15037).getAnyDevice(), manifests)
+                .push(local, new RemoteFile("/sdcard/fixtures/a.txt"));
+    }
+
+    @Test
+    public void testHardLinkOnlyWithSameModeAndTime() throws Exception {
+        expectPushAndCache("/sdcard/fixtures/a.txt");
+        expectLink("/sdcard/fixtures/b.txt");
+        expectCopy("/sdcard/fixtures/c.txt", CACHED, "644", 0);
+
+        ContentCache cache = new ContentCache(device, manifests);
+        cache.setHardLinks(true);
+        assertFalse(cache.push(local, new RemoteFile("/sdcard/fixtures/a.txt")));
+        assertTrue(cache.push(local, new RemoteFile("/sdcard/fixtures/b.txt")));
+        // A link would change the mode of the cached file and every other link to it
+        //noinspection OctalInteger
+        assertTrue(cache.push(local, 0644, new RemoteFile("/sdcard/fixtures/c.txt")));
+    }
+
+    @Test
+    public void testCopyOverLinkedPathKeepsCachedFile() throws Exception {
+        File other = temporaryFolder.newFile("xyz.txt");
+        Files.write(other.toPath(), "xyz".getBytes(StandardCharsets.UTF_8));
+        assertTrue(other.setLastModified(1000000));
+        expectPushAndCache("/sdcard/fixtures/a.txt");
+        expectLink("/sdcard/fixtures/b.txt");
+        expectPushAndCache("/sdcard/fixtures/c.txt", "xyz", OTHER_CACHED);
+        // Copied beside the link and moved over it, writing to the link would change the cached file of abc.txt
+        expectCopy("/sdcard/fixtures/b.txt", OTHER_CACHED, "644", 0);
+
+        ContentCache cache = new ContentCache(device, manifests);
+        cache.setHardLinks(true);
+        assertFalse(cache.push(local, new RemoteFile("/sdcard/fixtures/a.txt")));
+        assertTrue(cache.push(local, new RemoteFile("/sdcard/fixtures/b.txt")));
+        assertFalse(cache.push(other, new RemoteFile("/sdcard/fixtures/c.txt")));
+        //noinspection OctalInteger
+        assertTrue(cache.push(other, 0644, new RemoteFile("/sdcard/fixtures/b.txt")));
+    }
+}
@@ -0,0 +1,149 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.managers.DeltaTransfer;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaTransferTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+    private static final String SIGNATURES = "d='/sdcard/model.bin.jadb-blocks'; rm -rf \"$d\"; mkdir \"$d\" && "
+            + "head -c 12 '/sdcard/model.bin' | split -b 4 -a 2 - \"$d/b\" && cd \"$d\" && cksum b* && md5sum b*; "
+            + "s=$?; cd /; rm -rf \"$d\"; echo x-jadb-exit-status:$s";
+
+    private static final String SCRIPT = "(\n"
+            + "dd 'if=/sdcard/model.bin.jadb-literals' 'bs=4' 'skip=0' 'count=1' 'status=none' | head -c 1 || exit 1\n"
+            + "dd 'if=/sdcard/model.bin' 'bs=4' 'skip=0' 'count=2' 'status=none' || exit 1\n"
+            + "dd 'if=/sdcard/model.bin.jadb-literals' 'bs=4' 'skip=1' 'count=1' 'status=none' | head -c 1 || exit 1\n"
+            + "dd 'if=/sdcard/model.bin' 'bs=4' 'skip=2' 'count=1' 'status=none' || exit 1\n"
+            + "dd 'if=/sdcard/model.bin.jadb-literals' 'bs=4' 'skip=2' 'count=1' 'status=none' | head -c 2 || exit 1\n"
+            + ") > '/sdcard/model.bin.jadb-delta' && chmod 664 '/sdcard/model.bin.jadb-delta'"
+            + " && touch -m -d @1000 '/sdcard/model.bin.jadb-delta'"
+            + " && mv -f '/sdcard/model.bin.jadb-delta' '/sdcard/model.bin'\n"
+            + "s=$?; rm -f '/sdcard/model.bin.jadb-delta' '/sdcard/model.bin.jadb-literals'"
+            + " '/sdcard/model.bin.jadb-script'; echo x-jadb-exit-status:$s\n";
+    private static final String REMOTE_SIGNATURES = "3100911197 4 baa\n1932957438 4 bab\n899090079 4 bac\n"
+            + "74b87337454200d4d33f80c4663dc5e5  baa\n65ba841e01d6db7733e90a5b7f9e6f80  bab\n"
+            + "41fcba09f2bdcdf315ba4119dc7978dd  bac\n"
+            + "x-jadb-exit-status:0\n";
+    private static final String MD5SUM = "md5sum '/sdcard/model.bin'; echo x-jadb-exit-status:$?";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    private static String md5(String content) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(content.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private File newFile(String content) throws Exception {
+        File local = temporaryFolder.newFile("model.bin");
+        Files.write(local.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        assertTrue(local.setLastModified(1000000));
+        return local;
+    }
+
+    @Test
+    public void testPushSendsOnlyChanges() throws Exception {
+        // Remote is "aaaabbbbccccdd", cksum and md5sum of its three whole blocks
+        server.expectStat(DEVICE_SERIAL, "/sdcard/model.bin").withFile(14, 500);
+        server.expectShell(DEVICE_SERIAL, SIGNATURES).returns(REMOTE_SIGNATURES);
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/model.bin.jadb-literals"))
+                .withContent("x\0\0\0Z\0\0\0dd");
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/model.bin.jadb-script")).withContent(SCRIPT);
+        server.expectShell(DEVICE_SERIAL, "sh '/sdcard/model.bin.jadb-script'").returns("x-jadb-exit-status:0\n");
+        server.expectShell(DEVICE_SERIAL, MD5SUM).returns(md5("xaaaabbbbZccccdd") + "  /sdcard/model.bin\n"
+                + "x-jadb-exit-status:0\n");
+
+        DeltaTransfer transfer = new DeltaTransfer(device);
+        transfer.setBlockSize(4);
+        long sent = transfer.push(newFile("xaaaabbbbZccccdd"), new RemoteFile("/sdcard/model.bin"));
+
+        assertEquals(10, sent);
+    }
+
+    @Test
+    public void testPushFallsBackWhenResultDiffers() throws Exception {
+        server.expectStat(DEVICE_SERIAL, "/sdcard/model.bin").withFile(14, 500);
+        server.expectShell(DEVICE_SERIAL, SIGNATURES).returns(REMOTE_SIGNATURES);
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/model.bin.jadb-literals"))
+                .withContent("x\0\0\0Z\0\0\0dd");
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/model.bin.jadb-script")).withContent(SCRIPT);
+        server.expectShell(DEVICE_SERIAL, "sh '/sdcard/model.bin.jadb-script'").returns("x-jadb-exit-status:0\n");
+        // Same size, other content
+        server.expectShell(DEVICE_SERIAL, MD5SUM).returns(md5("xaaaaccccZbbbbdd") + "  /sdcard/model.bin\n"
+                + "x-jadb-exit-status:0\n");
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/model.bin")).withContent("xaaaabbbbZccccdd");
+
+        DeltaTransfer transfer = new DeltaTransfer(device);
+        transfer.setBlockSize(4);
+        long sent = transfer.push(newFile("xaaaabbbbZccccdd"), new RemoteFile("/sdcard/model.bin"));
+
+        assertEquals(16, sent);
+    }
+
+    @Test
+    public void testPushWithoutCksumFallsBack() throws Exception {
+        server.expectStat(DEVICE_SERIAL, "/sdcard/model.bin").withFile(14, 500);
+        server.expectShell(DEVICE_SERIAL, SIGNATURES).returns("x-jadb-exit-status:127\n");
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/model.bin")).withContent("xaaaabbbbZccccdd");
+
+        DeltaTransfer transfer = new DeltaTransfer(device);
+        transfer.setBlockSize(4);
+        long sent = transfer.push(newFile("xaaaabbbbZccccdd"), new RemoteFile("/sdcard/model.bin"));
+
+        assertEquals(16, sent);
+    }
+
+    @Test
+    public void testPushFallsBackAfterScriptFailed() throws Exception {
+        server.expectStat(DEVICE_SERIAL, "/sdcard/model.bin").withFile(14, 500);
+        server.expectShell(DEVICE_SERIAL, SIGNATURES).returns(REMOTE_SIGNATURES);
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/model.bin.jadb-literals"))
+                .withContent("x\0\0\0Z\0\0\0dd");
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/model.bin.jadb-script")).withContent(SCRIPT);
+        server.expectShell(DEVICE_SERIAL, "sh '/sdcard/model.bin.jadb-script'")
+                .returns("dd: /sdcard/model.bin.jadb-delta: No space left on device\nx-jadb-exit-status:1\n");
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/model.bin")).withContent("xaaaabbbbZccccdd");
+
+        DeltaTransfer transfer = new DeltaTransfer(device);
+        transfer.setBlockSize(4);
+        long sent = transfer.push(newFile("xaaaabbbbZccccdd"), new RemoteFile("/sdcard/model.bin"));
+
+        assertEquals(16, sent);
+    }
+}
@@ -0,0 +1,103 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.managers.DigestManager;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DigestManagerTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    @Test
+    public void testDigestMany() throws Exception {
+        server.expectShell(DEVICE_SERIAL, "md5sum '/sdcard/a'; echo x-jadb-exit-status:$?; "
+                + "md5sum '/sdcard/b'; echo x-jadb-exit-status:$?")
+                .returns("0CC175B9C0F1B6A831C399E269772661  /sdcard/a\nx-jadb-exit-status:0\n"
+                        + "92eb5ffee6ae2fec3ad71c777531578f  /sdcard/b\nx-jadb-exit-status:0\n");
+
+        List<String> digests = new DigestManager(device, "MD5")
+                .digest(Arrays.asList(new RemoteFile("/sdcard/a"), new RemoteFile("/sdcard/b")));
+
+        assertEquals(Arrays.asList("0cc175b9c0f1b6a831c399e269772661", "92eb5ffee6ae2fec3ad71c777531578f"), digests);
+    }
+
+    @Test(expected = JadbException.class)
+    public void testDigestMissingFile() throws Exception {
+        server.expectShell(DEVICE_SERIAL, "sha256sum '/sdcard/missing'; echo x-jadb-exit-status:$?")
+                .returns("sha256sum: /sdcard/missing: No such file or directory\nx-jadb-exit-status:1\n");
+
+        new DigestManager(device).digest(new RemoteFile("/sdcard/missing"));
+    }
+
+    @Test
+    public void testPushVerified() throws Exception {
+        File local = temporaryFolder.newFile("abc.txt");
+        Files.write(local.toPath(), "abc".getBytes(StandardCharsets.UTF_8));
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/abc.txt")).withContent("abc");
+        server.expectShell(DEVICE_SERIAL, "sha256sum '/sdcard/abc.txt'; echo x-jadb-exit-status:$?")
+                .returns(ABC_SHA256 + "  /sdcard/abc.txt\nx-jadb-exit-status:0\n");
+
+        new DigestManager(device).pushVerified(local, new RemoteFile("/sdcard/abc.txt"));
+    }
+
+    @Test(expected = JadbException.class)
+    public void testPushVerifiedMismatch() throws Exception {
+        File local = temporaryFolder.newFile("abc.txt");
+        Files.write(local.toPath(), "abc".getBytes(StandardCharsets.UTF_8));
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/abc.txt")).withContent("abc");
+        server.expectShell(DEVICE_SERIAL, "sha256sum '/sdcard/abc.txt'; echo x-jadb-exit-status:$?")
+                .returns("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855  /sdcard/abc.txt\n"
+                        + "x-jadb-exit-status:0\n");
+
+        new DigestManager(device).pushVerified(local, new RemoteFile("/sdcard/abc.txt"));
+    }
+
+    @Test
+    public void testPullVerified() throws Exception {
+        File local = new File(temporaryFolder.getRoot(), "abc.txt");
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/sdcard/abc.txt")).withContent("abc");
+        server.expectShell(DEVICE_SERIAL, "sha256sum '/sdcard/abc.txt'; echo x-jadb-exit-status:$?")
+                .returns(ABC_SHA256 + "  /sdcard/abc.txt\nx-jadb-exit-status:0\n");
+
+        new DigestManager(device).pullVerified(new RemoteFile("/sdcard/abc.txt"), local);
+
+        assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(local.toPath()));
+    }
+}
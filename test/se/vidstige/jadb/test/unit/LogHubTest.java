@@ -0,0 +1,149 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.managers.LogEntry;
+import se.vidstige.jadb.managers.LogFilter;
+import se.vidstige.jadb.managers.LogHub;
+import se.vidstige.jadb.managers.Logcat;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LogHubTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    private static class Collector implements Logcat.Listener {
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch release;
+
+        Collector(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public boolean onEntry(LogEntry entry) {
+            messages.add(entry.getMessage());
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    @Test
+    public void testSubscribersShareOneUpstream() throws Exception {
+        //Arrange
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.write(LogcatTest.entry(24, 1, 1, 0, 0, Logcat.Priority.INFO, "first", "1"));
+        log.write(LogcatTest.entry(24, 1, 1, 0, 0, Logcat.Priority.INFO, "first", "2"));
+        log.write(LogcatTest.entry(24, 1, 1, 0, 0, Logcat.Priority.INFO, "second", "3"));
+        log.write(LogcatTest.entry(24, 1, 1, 0, 0, Logcat.Priority.ERROR, "second", "4"));
+        server.expectShell(DEVICE_SERIAL, "logcat '-B'").returns(log.toByteArray());
+        LogHub hub = new LogHub(device);
+
+        // The first subscriber blocks on its first entry, holding back the upstream until the second subscribed
+        CountDownLatch release = new CountDownLatch(1);
+        Collector all = new Collector(release);
+        Collector errors = new Collector(new CountDownLatch(0));
+
+        //Act
+        LogHub.Subscription first = hub.subscribe(LogFilter.ALL, all, 1, LogHub.OverflowPolicy.BLOCK);
+        LogHub.Subscription second = hub.subscribe(new LogFilter("second", Logcat.Priority.WARN), errors, 10, LogHub.OverflowPolicy.DROP);
+        release.countDown();
+
+        //Assert
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("1", "2", "3", "4"), all.messages);
+        assertEquals(Collections.singletonList("4"), errors.messages);
+        assertEquals(0, second.getDroppedCount());
+    }
+
+    @Test
+    public void testThrowingSubscriberDoesNotStallOthers() throws Exception {
+        //Arrange
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.write(LogcatTest.entry(24, 1, 1, 0, 0, Logcat.Priority.INFO, "tag", "1"));
+        log.write(LogcatTest.entry(24, 1, 1, 0, 0, Logcat.Priority.INFO, "tag", "2"));
+        log.write(LogcatTest.entry(24, 1, 1, 0, 0, Logcat.Priority.INFO, "tag", "3"));
+        log.write(LogcatTest.entry(24, 1, 1, 0, 0, Logcat.Priority.INFO, "tag", "4"));
+        server.expectShell(DEVICE_SERIAL, "logcat '-B'").returns(log.toByteArray());
+        LogHub hub = new LogHub(device);
+
+        // The healthy subscriber holds back the upstream until the throwing one subscribed
+        CountDownLatch release = new CountDownLatch(1);
+        Collector healthy = new Collector(release);
+        final RuntimeException thrown = new IllegalStateException("listener failed");
+        Logcat.Listener throwing = new Logcat.Listener() {
+            @Override
+            public boolean onEntry(LogEntry entry) {
+                throw thrown;
+            }
+        };
+
+        //Act
+        LogHub.Subscription first = hub.subscribe(LogFilter.ALL, healthy, 1, LogHub.OverflowPolicy.BLOCK);
+        LogHub.Subscription second = hub.subscribe(LogFilter.ALL, throwing, 1, LogHub.OverflowPolicy.BLOCK);
+        release.countDown();
+
+        //Assert
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("1", "2", "3", "4"), healthy.messages);
+        assertTrue(second.isClosed());
+        assertSame(thrown, second.getFailure());
+    }
+
+    @Test
+    public void testSharedHubIsForgottenWhenLogEnds() throws Exception {
+        //Arrange
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.write(LogcatTest.entry(24, 1, 1, 0, 0, Logcat.Priority.INFO, "tag", "1"));
+        log.write(LogcatTest.entry(24, 1, 1, 0, 0, Logcat.Priority.INFO, "tag", "2"));
+        server.expectShell(DEVICE_SERIAL, "logcat '-B'").returns(log.toByteArray());
+        LogHub hub = LogHub.forDevice(device);
+        Collector all = new Collector(new CountDownLatch(0));
+
+        //Act
+        LogHub.Subscription subscription = hub.subscribe(LogFilter.ALL, all, 10, LogHub.OverflowPolicy.BLOCK);
+
+        //Assert
+        assertTrue(subscription.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("1", "2"), all.messages);
+        assertNotSame(hub, LogHub.forDevice(device));
+    }
+}
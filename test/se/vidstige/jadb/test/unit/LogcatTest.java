@@ -0,0 +1,138 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.managers.LogEntry;
+import se.vidstige.jadb.managers.Logcat;
+import se.vidstige.jadb.managers.LogcatReader;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LogcatTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    static byte[] entry(int headerSize, int pid, int tid, int seconds, int nanoseconds, Logcat.Priority priority, String tag, String message) {
+        byte[] tagBytes = tag.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 1 + tagBytes.length + 1 + messageBytes.length + 1;
+        int actualHeaderSize = headerSize == 0 ? 20 : headerSize;
+        ByteBuffer buffer = ByteBuffer.allocate(actualHeaderSize + payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) payloadLength);
+        buffer.putShort((short) headerSize);
+        buffer.putInt(pid);
+        buffer.putInt(tid);
+        buffer.putInt(seconds);
+        buffer.putInt(nanoseconds);
+        buffer.position(actualHeaderSize);
+        buffer.put((byte) priority.getValue());
+        buffer.put(tagBytes).put((byte) 0);
+        buffer.put(messageBytes).put((byte) 0);
+        return buffer.array();
+    }
+
+    @Test
+    public void testReadEntries() throws Exception {
+        //Arrange
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.write(entry(0, 100, 101, 1500000000, 250000000, Logcat.Priority.INFO, "ActivityManager", "Start proc"));
+        log.write(entry(28, 200, 202, 1500000001, 0, Logcat.Priority.ERROR, "\u904A\u6232", "crash"));
+        LogcatReader reader = new LogcatReader(new ByteArrayInputStream(log.toByteArray()));
+        LogEntry entry = new LogEntry();
+
+        //Act & Assert
+        assertTrue(reader.read(entry));
+        assertEquals(100, entry.getPid());
+        assertEquals(101, entry.getTid());
+        assertEquals(1500000000250L, entry.getTimestampMillis());
+        assertSame(Logcat.Priority.INFO, entry.getPriority());
+        assertTrue(entry.hasTag("ActivityManager"));
+        assertEquals("ActivityManager", entry.getTag());
+        assertEquals("Start proc", entry.getMessage());
+
+        assertTrue(reader.read(entry));
+        assertEquals(200, entry.getPid());
+        assertSame(Logcat.Priority.ERROR, entry.getPriority());
+        assertTrue(entry.hasTag("\u904A\u6232"));
+        assertEquals("crash", entry.getMessage());
+
+        assertFalse(reader.read(entry));
+    }
+
+    @Test
+    public void testLogIdOnlyFromV4Header() throws Exception {
+        // The last field of a 24 byte header is the euid in v2 and the log id in v3
+        byte[] v2 = entry(24, 100, 101, 1500000000, 0, Logcat.Priority.INFO, "tag", "v2");
+        ByteBuffer.wrap(v2).order(ByteOrder.LITTLE_ENDIAN).putInt(20, 10057);
+        byte[] v4 = entry(28, 200, 202, 1500000001, 0, Logcat.Priority.INFO, "tag", "v4");
+        ByteBuffer.wrap(v4).order(ByteOrder.LITTLE_ENDIAN).putInt(20, 3).putInt(24, 1000);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.write(v2);
+        log.write(v4);
+        LogcatReader reader = new LogcatReader(new ByteArrayInputStream(log.toByteArray()));
+        LogEntry entry = new LogEntry();
+
+        assertTrue(reader.read(entry));
+        assertEquals(LogEntry.UNKNOWN_LOG_ID, entry.getLogId());
+        assertEquals("v2", entry.getMessage());
+        assertTrue(reader.read(entry));
+        assertEquals(3, entry.getLogId());
+        assertEquals(1000, entry.getUid());
+    }
+
+    @Test
+    public void testFiltersArePassedToDevice() throws Exception {
+        //Arrange
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.write(entry(24, 1, 1, 0, 0, Logcat.Priority.WARN, "ActivityManager", "first"));
+        log.write(entry(24, 1, 1, 0, 0, Logcat.Priority.WARN, "ActivityManager", "second"));
+        server.expectShell(DEVICE_SERIAL, "logcat '-B' '-d' 'ActivityManager:I' '*:S'").returns(log.toByteArray());
+        final List<String> messages = new ArrayList<>();
+
+        //Act
+        new Logcat(device).dump().filter("ActivityManager", Logcat.Priority.INFO).read(new Logcat.Listener() {
+            @Override
+            public boolean onEntry(LogEntry entry) {
+                messages.add(entry.getMessage());
+                return true;
+            }
+        });
+
+        //Assert
+        List<String> expected = new ArrayList<>();
+        expected.add("first");
+        expected.add("second");
+        assertEquals(expected, messages);
+    }
+}
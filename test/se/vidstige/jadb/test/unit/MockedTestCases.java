@@ -4,10 +4,15 @@ import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import se.vidstige.jadb.CommandBatch;
+import se.vidstige.jadb.CommandResult;
+import se.vidstige.jadb.Compression;
 import se.vidstige.jadb.JadbConnection;
 import se.vidstige.jadb.JadbDevice;
 import se.vidstige.jadb.JadbException;
 import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.RemoteFileStat;
+import se.vidstige.jadb.Stream;
 import se.vidstige.jadb.test.fakes.FakeAdbServer;
 
 import java.io.ByteArrayInputStream;
@@ -17,6 +22,7 @@ import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.List;
 
 public class MockedTestCases {
@@ -96,6 +102,74 @@ public class MockedTestCases {
         Assert.assertArrayEquals("foobar".getBytes(StandardCharsets.UTF_8), buffer.toByteArray());
     }
 
+    @Test
+    public void testCompressedPushAndPull() throws Exception {
+        server.add("serial-123");
+        server.setFeatures("serial-123", "shell_v2", "sendrecv_v2", "sendrecv_v2_lz4");
+        server.expectPush("serial-123", new RemoteFile("/remote/path/abc.txt")).withContent("abc abc abc abc abc abc");
+        server.expectPull("serial-123", new RemoteFile("/remote/path/def.txt")).withContent("def def def def def def");
+        JadbDevice device = connection.getDevices().get(0);
+
+        ByteArrayInputStream fileContents = new ByteArrayInputStream("abc abc abc abc abc abc".getBytes(StandardCharsets.UTF_8));
+        device.push(fileContents, parseDate("1981-08-25 13:37"), 0666, new RemoteFile("/remote/path/abc.txt"), Compression.LZ4);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        device.pull(new RemoteFile("/remote/path/def.txt"), buffer, Compression.LZ4);
+
+        Assert.assertArrayEquals("def def def def def def".getBytes(StandardCharsets.UTF_8), buffer.toByteArray());
+        Assert.assertTrue(device.getFeatures().contains("sendrecv_v2_lz4"));
+    }
+
+    @Test
+    public void testCompressedPullFallsBackWithoutSyncV2() throws Exception {
+        server.add("serial-123");
+        server.expectPull("serial-123", new RemoteFile("/remote/path/abc.txt")).withContent("foobar");
+        JadbDevice device = connection.getDevices().get(0);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        device.pull(new RemoteFile("/remote/path/abc.txt"), buffer, Compression.LZ4);
+        Assert.assertArrayEquals("foobar".getBytes(StandardCharsets.UTF_8), buffer.toByteArray());
+    }
+
+    @Test
+    public void testStat() throws Exception {
+        server.add("serial-123");
+        server.expectStat("serial-123", "/sdcard/file.txt").withFile(123, 1600000000L);
+        JadbDevice device = connection.getDevices().get(0);
+
+        RemoteFileStat stat = device.stat(new RemoteFile("/sdcard/file.txt"));
+
+        Assert.assertTrue(stat.exists());
+        Assert.assertTrue(stat.isRegularFile());
+        Assert.assertEquals(123, stat.getSize());
+        Assert.assertEquals(1600000000L, stat.getLastModified());
+    }
+
+    @Test
+    public void testStatManyV2() throws Exception {
+        server.add("serial-123");
+        server.setFeatures("serial-123", "stat_v2");
+        List<RemoteFile> files = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            files.add(new RemoteFile("/sdcard/file" + i));
+            if (i % 2 == 0) server.expectStat("serial-123", "/sdcard/file" + i).withFile(i, 1600000000L + i);
+            else server.expectStat("serial-123", "/sdcard/file" + i);
+        }
+        server.expectStat("serial-123", "/sdcard/dir").withDir(1600000000L);
+        files.add(new RemoteFile("/sdcard/dir"));
+        JadbDevice device = connection.getDevices().get(0);
+
+        List<RemoteFileStat> stats = device.stat(files);
+
+        Assert.assertEquals(601, stats.size());
+        for (int i = 0; i < 600; i++) {
+            RemoteFileStat stat = stats.get(i);
+            Assert.assertEquals("/sdcard/file" + i, stat.getPath());
+            Assert.assertEquals(i % 2 == 0, stat.exists());
+            if (stat.exists()) Assert.assertEquals(i, stat.getSize());
+            else Assert.assertEquals(2, stat.getError());
+        }
+        Assert.assertTrue(stats.get(600).isDirectory());
+    }
+
     @Test
     public void testExecuteShell() throws Exception {
         server.add("serial-123");
@@ -104,6 +178,54 @@ public class MockedTestCases {
         device.executeShell("ls", "-l");
     }
 
+    @Test
+    public void testExecuteBatch() throws Exception {
+        server.add("serial-123");
+        server.expectShell("serial-123", "getprop 'ro.serialno'; echo x-jadb-exit-status:$?; ls '/missing'; echo x-jadb-exit-status:$?")
+                .returns("serial-123\nx-jadb-exit-status:0\nls: /missing: No such file or directory\nx-jadb-exit-status:1\n");
+        JadbDevice device = connection.getDevices().get(0);
+
+        List<CommandResult> results = device.executeBatch(new CommandBatch()
+                .add("getprop", "ro.serialno")
+                .add("ls", "/missing"));
+
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals("serial-123\n", results.get(0).getOutput());
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertEquals("ls: /missing: No such file or directory\n", results.get(1).getOutput());
+        Assert.assertEquals(1, results.get(1).getExitStatus());
+    }
+
+    @Test(expected = JadbException.class)
+    public void testExecuteBatchTruncatedOutput() throws Exception {
+        server.add("serial-123");
+        server.expectShell("serial-123", "true; echo x-jadb-exit-status:$?; exit; echo x-jadb-exit-status:$?")
+                .returns("x-jadb-exit-status:0\n");
+        JadbDevice device = connection.getDevices().get(0);
+        device.executeBatch(new CommandBatch().add("true").add("exit"));
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        server.add("serial-123");
+        server.expectShell("serial-123", "ls '-l'").returns("total 0");
+        server.expectPull("serial-123", new RemoteFile("/remote/path/abc.txt")).withContent("foobar");
+        connection.setPipelining(true);
+        JadbDevice device = connection.getDevices().get(0);
+
+        Assert.assertEquals("total 0", Stream.readAll(device.executeShell("ls", "-l"), StandardCharsets.UTF_8));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        device.pull(new RemoteFile("/remote/path/abc.txt"), buffer);
+        Assert.assertArrayEquals("foobar".getBytes(StandardCharsets.UTF_8), buffer.toByteArray());
+    }
+
+    @Test(expected = JadbException.class)
+    public void testPipeliningUnknownDevice() throws Exception {
+        connection.setPipelining(true);
+        JadbDevice device = connection.parseDevices("serial-404\tdevice\n").get(0);
+        device.executeShell("ls");
+    }
+
     @Test
     public void testExecuteEnableTcpip() throws IOException, JadbException {
         server.add("serial-123");
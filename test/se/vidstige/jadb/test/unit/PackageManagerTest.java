@@ -13,6 +13,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class PackageManagerTest {
     private static final String DEVICE_SERIAL = "serial-123";
@@ -87,4 +89,35 @@ public class PackageManagerTest {
         //Assert
         assertEquals(expected, actual);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExecuteBatch() throws Exception {
+        //Arrange
+        Package app = new Package("com.example.app");
+        List<PackageManager.Operation> operations = new ArrayList<>();
+        operations.add(PackageManager.Operation.uninstall(new Package("com.example.gone")));
+        operations.add(PackageManager.Operation.clear(app));
+        operations.add(PackageManager.Operation.grant(app, "android.permission.CAMERA"));
+        operations.add(PackageManager.Operation.forceStop(app));
+
+        server.expectShell(DEVICE_SERIAL, "pm 'uninstall' 'com.example.gone'; echo x-jadb-exit-status:$?; " +
+                "pm 'clear' 'com.example.app'; echo x-jadb-exit-status:$?; " +
+                "pm 'grant' 'com.example.app' 'android.permission.CAMERA'; echo x-jadb-exit-status:$?; " +
+                "am 'force-stop' 'com.example.app'; echo x-jadb-exit-status:$?")
+                .returns("Failure [DELETE_FAILED_INTERNAL_ERROR]\nx-jadb-exit-status:1\n" +
+                        "Success\nx-jadb-exit-status:0\n" +
+                        "x-jadb-exit-status:0\n" +
+                        "x-jadb-exit-status:0\n");
+
+        //Act
+        List<PackageManager.OperationResult> actual = new PackageManager(device).execute(operations);
+
+        //Assert
+        assertEquals(4, actual.size());
+        assertFalse(actual.get(0).isSuccess());
+        assertEquals("Failure [DELETE_FAILED_INTERNAL_ERROR]\n", actual.get(0).getOutput());
+        assertTrue(actual.get(1).isSuccess());
+        assertTrue(actual.get(2).isSuccess());
+        assertTrue(actual.get(3).isSuccess());
+    }
+}
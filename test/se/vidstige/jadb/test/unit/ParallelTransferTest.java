@@ -0,0 +1,175 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.managers.ParallelTransfer;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ParallelTransferTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    private static String dd(int skip, int count) {
+        return "dd 'if=/sdcard/big.bin' 'bs=" + BLOCK_SIZE + "' 'skip=" + skip + "' 'count=" + count + "' 'status=none'";
+    }
+
+    @Test
+    public void testPullSegments() throws Exception {
+        byte[] content = randomBytes(2 * BLOCK_SIZE + BLOCK_SIZE / 2);
+        server.expectStat(DEVICE_SERIAL, "/sdcard/big.bin").withFile(content.length, 1000);
+        server.expectShell(DEVICE_SERIAL, dd(0, 1)).returns(Arrays.copyOfRange(content, 0, BLOCK_SIZE));
+        server.expectShell(DEVICE_SERIAL, dd(1, 1)).returns(Arrays.copyOfRange(content, BLOCK_SIZE, 2 * BLOCK_SIZE));
+        server.expectShell(DEVICE_SERIAL, dd(2, 1)).returns(Arrays.copyOfRange(content, 2 * BLOCK_SIZE, content.length));
+
+        ParallelTransfer transfer = new ParallelTransfer(device, 3);
+        transfer.setMinimumSize(0);
+        File local = temporaryFolder.newFile("big.bin");
+        transfer.pull(new RemoteFile("/sdcard/big.bin"), local);
+
+        assertArrayEquals(content, Files.readAllBytes(local.toPath()));
+    }
+
+    @Test
+    public void testPullFallsBackWhenSegmentFails() throws Exception {
+        byte[] content = randomBytes(BLOCK_SIZE + 10);
+        server.expectStat(DEVICE_SERIAL, "/sdcard/big.bin").withFile(content.length, 1000);
+        server.expectShell(DEVICE_SERIAL, dd(0, 1)).returns("dd: unknown status=none\n");
+        server.expectShell(DEVICE_SERIAL, dd(1, 1)).returns(Arrays.copyOfRange(content, BLOCK_SIZE, content.length));
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/sdcard/big.bin")).withContent(content);
+
+        ParallelTransfer transfer = new ParallelTransfer(device, 2);
+        transfer.setMinimumSize(0);
+        File local = temporaryFolder.newFile("big.bin");
+        transfer.pull(new RemoteFile("/sdcard/big.bin"), local);
+
+        assertArrayEquals(content, Files.readAllBytes(local.toPath()));
+    }
+
+    @Test
+    public void testSmallFileUsesSingleConnection() throws Exception {
+        byte[] content = randomBytes(100);
+        server.expectStat(DEVICE_SERIAL, "/sdcard/small.bin").withFile(content.length, 1000);
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/sdcard/small.bin")).withContent(content);
+
+        File local = temporaryFolder.newFile("small.bin");
+        new ParallelTransfer(device, 4).pull(new RemoteFile("/sdcard/small.bin"), local);
+
+        assertArrayEquals(content, Files.readAllBytes(local.toPath()));
+    }
+
+    private static String ddWrite(int seek, int length) {
+        int count = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        return "head -c " + length + " | dd 'of=/sdcard/big.bin' 'bs=" + BLOCK_SIZE + "' 'seek=" + seek
+                + "' 'conv=notrunc' 'status=none' && dd 'if=/sdcard/big.bin' 'bs=" + BLOCK_SIZE + "' 'skip=" + seek
+                + "' 'count=" + count + "' 'status=none' | head -c " + length + " | md5sum; echo x-jadb-exit-status:$?";
+    }
+
+    private static void expectWrite(FakeAdbServer server, byte[] content, int seek, int end, String md5) {
+        byte[] range = Arrays.copyOfRange(content, seek * BLOCK_SIZE, end);
+        server.expectShell(DEVICE_SERIAL, ddWrite(seek, range.length)).withStdin(range)
+                .returns((md5 == null ? md5(range) : md5) + "  -\nx-jadb-exit-status:0\n");
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(data)) hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testPushSegments() throws Exception {
+        byte[] content = randomBytes(2 * BLOCK_SIZE + BLOCK_SIZE / 2);
+        File local = temporaryFolder.newFile("big.bin");
+        Files.write(local.toPath(), content);
+        local.setLastModified(1500000000000L);
+        server.expectShell(DEVICE_SERIAL, "truncate '-s' '" + content.length + "' '/sdcard/big.bin'; echo x-jadb-exit-status:$?")
+                .returns("x-jadb-exit-status:0\n");
+        expectWrite(server, content, 0, BLOCK_SIZE, null);
+        expectWrite(server, content, 1, 2 * BLOCK_SIZE, null);
+        expectWrite(server, content, 2, content.length, null);
+        server.expectShell(DEVICE_SERIAL, "chmod '644' '/sdcard/big.bin'; echo x-jadb-exit-status:$?; "
+                + "touch '-m' '-d' '@1500000000' '/sdcard/big.bin'; echo x-jadb-exit-status:$?")
+                .returns("x-jadb-exit-status:0\nx-jadb-exit-status:0\n");
+
+        ParallelTransfer transfer = new ParallelTransfer(device, 3);
+        transfer.setMinimumSize(0);
+        //noinspection OctalInteger
+        transfer.push(local, 0644, new RemoteFile("/sdcard/big.bin"));
+    }
+
+    @Test
+    public void testPushFallsBackWithoutTruncate() throws Exception {
+        byte[] content = randomBytes(BLOCK_SIZE + 10);
+        File local = temporaryFolder.newFile("big.bin");
+        Files.write(local.toPath(), content);
+        server.expectShell(DEVICE_SERIAL, "truncate '-s' '" + content.length + "' '/sdcard/big.bin'; echo x-jadb-exit-status:$?")
+                .returns("truncate: not found\nx-jadb-exit-status:127\n");
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/big.bin")).withContent(content);
+
+        ParallelTransfer transfer = new ParallelTransfer(device, 2);
+        transfer.setMinimumSize(0);
+        transfer.push(local, new RemoteFile("/sdcard/big.bin"));
+    }
+
+    @Test
+    public void testPushFallsBackWhenRangeDiffers() throws Exception {
+        byte[] content = randomBytes(2 * BLOCK_SIZE);
+        File local = temporaryFolder.newFile("big.bin");
+        Files.write(local.toPath(), content);
+        server.expectShell(DEVICE_SERIAL, "truncate '-s' '" + content.length + "' '/sdcard/big.bin'; echo x-jadb-exit-status:$?")
+                .returns("x-jadb-exit-status:0\n");
+        expectWrite(server, content, 0, BLOCK_SIZE, null);
+        // E.g. the disk filled up half way
+        expectWrite(server, content, 1, content.length, "d41d8cd98f00b204e9800998ecf8427e");
+        server.expectPush(DEVICE_SERIAL, new RemoteFile("/sdcard/big.bin")).withContent(content);
+
+        ParallelTransfer transfer = new ParallelTransfer(device, 2);
+        transfer.setMinimumSize(0);
+        transfer.push(local, new RemoteFile("/sdcard/big.bin"));
+    }
+}
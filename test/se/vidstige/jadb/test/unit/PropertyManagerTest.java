@@ -5,13 +5,18 @@ import org.junit.Before;
 import org.junit.Test;
 import se.vidstige.jadb.JadbConnection;
 import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
 import se.vidstige.jadb.managers.PropertyManager;
 import se.vidstige.jadb.test.fakes.FakeAdbServer;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class PropertyManagerTest {
     private static final String DEVICE_SERIAL = "serial-123";
@@ -121,4 +126,93 @@ public class PropertyManagerTest {
         //Assert
         assertEquals(expected, actual);
     }
+
+    @Test
+    public void testGetSingleProperty() throws Exception {
+        server.expectShell(DEVICE_SERIAL, "getprop 'sys.boot_completed'").returns("1\n");
+
+        assertEquals("1", new PropertyManager(device).get("sys.boot_completed"));
+    }
+
+    @Test
+    public void testGetReadOnlyPropertyIsCached() throws Exception {
+        server.expectShell(DEVICE_SERIAL, "getprop 'ro.product.model'").returns("Nexus 9\n");
+        PropertyManager propertyManager = new PropertyManager(device);
+
+        assertEquals("Nexus 9", propertyManager.get("ro.product.model"));
+        assertEquals("Nexus 9", propertyManager.get("ro.product.model"));
+    }
+
+    @Test
+    public void testReadOnlyCacheIsNotSharedBetweenInstances() throws Exception {
+        // Another adb server may have a device with the same serial
+        server.expectShell(DEVICE_SERIAL, "getprop 'ro.product.model'").returns("Nexus 9\n");
+        server.expectShell(DEVICE_SERIAL, "getprop 'ro.product.model'").returns("Pixel\n");
+
+        assertEquals("Nexus 9", new PropertyManager(device).get("ro.product.model"));
+        assertEquals("Pixel", new PropertyManager(device).get("ro.product.model"));
+    }
+
+    @Test
+    public void testClearCacheFetchesAgain() throws Exception {
+        server.expectShell(DEVICE_SERIAL, "getprop 'ro.product.model'").returns("Nexus 9\n");
+        server.expectShell(DEVICE_SERIAL, "getprop 'ro.product.model'").returns("Pixel\n");
+        PropertyManager propertyManager = new PropertyManager(device);
+
+        assertEquals("Nexus 9", propertyManager.get("ro.product.model"));
+        propertyManager.clearCache();
+        assertEquals("Pixel", propertyManager.get("ro.product.model"));
+    }
+
+    @Test
+    public void testGetAllFetchesOnlyUncachedKeys() throws Exception {
+        //Arrange
+        server.expectShell(DEVICE_SERIAL, "getprop 'ro.build.version.sdk'").returns("29\n");
+        server.expectShell(DEVICE_SERIAL, "getprop 'sys.boot_completed'; echo x-jadb-exit-status:$?; " +
+                "getprop 'init.svc.bootanim'; echo x-jadb-exit-status:$?")
+                .returns("1\nx-jadb-exit-status:0\nstopped\nx-jadb-exit-status:0\n");
+        PropertyManager propertyManager = new PropertyManager(device);
+        propertyManager.get("ro.build.version.sdk");
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("ro.build.version.sdk", "29");
+        expected.put("sys.boot_completed", "1");
+        expected.put("init.svc.bootanim", "stopped");
+
+        //Act
+        Map<String, String> actual = propertyManager.getAll(
+                Arrays.asList("ro.build.version.sdk", "sys.boot_completed", "init.svc.bootanim"));
+
+        //Assert
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testWaitForProperty() throws Exception {
+        server.expectShell(DEVICE_SERIAL, "i=0; while [ \"$(getprop 'sys.boot_completed')\" != '1' ] && [ $i -lt 50 ]; " +
+                "do if sleep 0.1 2>/dev/null; then i=$((i+1)); else sleep 1; i=$((i+10)); fi; done; " +
+                "getprop 'sys.boot_completed'").returns("1\n");
+
+        assertTrue(new PropertyManager(device).waitFor("sys.boot_completed", "1", 5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSetPropsInOneShell() throws Exception {
+        server.expectShell(DEVICE_SERIAL, "setprop 'debug.a' '1'; echo x-jadb-exit-status:$?; " +
+                "setprop 'debug.b' 'two words'; echo x-jadb-exit-status:$?")
+                .returns("x-jadb-exit-status:0\nx-jadb-exit-status:0\n");
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("debug.a", "1");
+        properties.put("debug.b", "two words");
+
+        new PropertyManager(device).setprop(properties);
+    }
+
+    @Test(expected = JadbException.class)
+    public void testSetPropFailure() throws Exception {
+        server.expectShell(DEVICE_SERIAL, "setprop 'ro.secure' '0'; echo x-jadb-exit-status:$?")
+                .returns("Failed to set property 'ro.secure' to '0'.\nx-jadb-exit-status:1\n");
+
+        new PropertyManager(device).setprop("ro.secure", "0");
+    }
 }
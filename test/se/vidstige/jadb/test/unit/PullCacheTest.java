@@ -0,0 +1,114 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.managers.PullCache;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PullCacheTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+        directory = new File(temporaryFolder.getRoot(), "cache");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    private static String pull(PullCache cache, String path, boolean hit) throws Exception {
+        ByteArrayOutputStream destination = new ByteArrayOutputStream();
+        assertEquals(hit, cache.pull(new RemoteFile(path), destination));
+        return destination.toString("UTF-8");
+    }
+
+    @Test
+    public void testUnchangedFileIsServedFromCache() throws Exception {
+        server.expectStat(DEVICE_SERIAL, "/system/build.prop").withFile(6, 1000);
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/system/build.prop")).withContent("a=b\nc\n");
+        server.expectStat(DEVICE_SERIAL, "/system/build.prop").withFile(6, 1000);
+
+        PullCache cache = new PullCache(device, directory, 1024);
+        assertEquals("a=b\nc\n", pull(cache, "/system/build.prop", false));
+        assertEquals("a=b\nc\n", pull(cache, "/system/build.prop", true));
+    }
+
+    @Test
+    public void testChangedFileReplacesCachedVersion() throws Exception {
+        server.expectStat(DEVICE_SERIAL, "/data/local/tmp/config").withFile(3, 1000);
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/data/local/tmp/config")).withContent("old");
+        server.expectStat(DEVICE_SERIAL, "/data/local/tmp/config").withFile(3, 2000);
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/data/local/tmp/config")).withContent("new");
+
+        PullCache cache = new PullCache(device, directory, 1024);
+        assertEquals("old", pull(cache, "/data/local/tmp/config", false));
+        assertEquals("new", pull(cache, "/data/local/tmp/config", false));
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        server.expectStat(DEVICE_SERIAL, "/sdcard/a").withFile(6, 1000);
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/sdcard/a")).withContent("aaaaaa");
+        server.expectStat(DEVICE_SERIAL, "/sdcard/b").withFile(6, 1000);
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/sdcard/b")).withContent("bbbbbb");
+        server.expectStat(DEVICE_SERIAL, "/sdcard/b").withFile(6, 1000);
+        server.expectStat(DEVICE_SERIAL, "/sdcard/a").withFile(6, 1000);
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/sdcard/a")).withContent("aaaaaa");
+
+        PullCache cache = new PullCache(device, directory, 10);
+        pull(cache, "/sdcard/a", false);
+        pull(cache, "/sdcard/b", false);
+        assertTrue(pull(cache, "/sdcard/b", true).startsWith("b"));
+        assertFalse(pull(cache, "/sdcard/a", false).isEmpty());
+    }
+
+    @Test
+    public void testFailedPullKeepsLocalFile() throws Exception {
+        server.expectStat(DEVICE_SERIAL, "/sdcard/a").withFile(6, 1000);
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/sdcard/a")).failWith("Permission denied");
+        File local = new File(temporaryFolder.newFolder("out"), "a");
+        Files.write(local.toPath(), "before".getBytes(StandardCharsets.UTF_8));
+
+        try {
+            new PullCache(device, directory, 1024).pull(new RemoteFile("/sdcard/a"), local);
+            fail("Expected the pull to fail");
+        } catch (JadbException e) {
+            // Expected
+        }
+
+        assertEquals("before", new String(Files.readAllBytes(local.toPath()), StandardCharsets.UTF_8));
+        assertEquals(1, local.getParentFile().listFiles().length);
+    }
+}
@@ -0,0 +1,256 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.managers.ResumableTransfer;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ResumableTransferTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+    private File stateDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+        stateDirectory = new File(temporaryFolder.getRoot(), "state");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    private static String ddRead(int skip) {
+        return "dd 'if=/sdcard/dump.bin' 'bs=" + BLOCK_SIZE + "' 'skip=" + skip + "' 'count=1' 'status=none'";
+    }
+
+    private static void expectWrite(FakeAdbServer server, byte[] content, int seek, int end, String result) {
+        byte[] range = Arrays.copyOfRange(content, seek * BLOCK_SIZE, end);
+        String command = "head -c " + range.length + " | dd 'of=/sdcard/dump.bin' 'bs=" + BLOCK_SIZE + "' 'seek=" + seek
+                + "' 'conv=notrunc' 'status=none' && dd 'if=/sdcard/dump.bin' 'bs=" + BLOCK_SIZE + "' 'skip=" + seek
+                + "' 'count=1' 'status=none' | head -c " + range.length + " | md5sum; echo x-jadb-exit-status:$?";
+        // The answer comes while the input is still open, as a real adb server cannot see it end
+        server.expectShell(DEVICE_SERIAL, command).withStdin(range)
+                .returns(result != null ? result : md5(range) + "  -\nx-jadb-exit-status:0\n");
+    }
+
+    private static void expectPrefix(FakeAdbServer server, int length, byte[] prefix) {
+        server.expectShell(DEVICE_SERIAL, "head -c " + length + " '/sdcard/dump.bin' | md5sum; echo x-jadb-exit-status:$?")
+                .returns(md5(prefix) + "  -\nx-jadb-exit-status:0\n");
+    }
+
+    private static void expectFinish(FakeAdbServer server, byte[] content) {
+        server.expectShell(DEVICE_SERIAL, "truncate '-s' '" + content.length + "' '/sdcard/dump.bin'; echo x-jadb-exit-status:$?; "
+                + "chmod '664' '/sdcard/dump.bin'; echo x-jadb-exit-status:$?; "
+                + "touch '-m' '-d' '@1500000000' '/sdcard/dump.bin'; echo x-jadb-exit-status:$?")
+                .returns("x-jadb-exit-status:0\nx-jadb-exit-status:0\nx-jadb-exit-status:0\n");
+        server.expectShell(DEVICE_SERIAL, "md5sum '/sdcard/dump.bin'; echo x-jadb-exit-status:$?")
+                .returns(md5(content) + "  /sdcard/dump.bin\nx-jadb-exit-status:0\n");
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(data)) hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testPullResumesAfterFailure() throws Exception {
+        byte[] content = randomBytes(2 * BLOCK_SIZE + BLOCK_SIZE / 2);
+        server.expectStat(DEVICE_SERIAL, "/sdcard/dump.bin").withFile(content.length, 1000);
+        server.expectShell(DEVICE_SERIAL, ddRead(0)).returns(Arrays.copyOfRange(content, 0, BLOCK_SIZE));
+        server.expectShell(DEVICE_SERIAL, ddRead(1)).returns(Arrays.copyOfRange(content, BLOCK_SIZE, BLOCK_SIZE + 100));
+        server.expectStat(DEVICE_SERIAL, "/sdcard/dump.bin").withFile(content.length, 1000);
+        server.expectShell(DEVICE_SERIAL, ddRead(1)).returns(Arrays.copyOfRange(content, BLOCK_SIZE, 2 * BLOCK_SIZE));
+        server.expectShell(DEVICE_SERIAL, ddRead(2)).returns(Arrays.copyOfRange(content, 2 * BLOCK_SIZE, content.length));
+
+        ResumableTransfer transfer = new ResumableTransfer(device, stateDirectory);
+        transfer.setChunkSize(BLOCK_SIZE);
+        File local = new File(temporaryFolder.getRoot(), "dump.bin");
+        try {
+            transfer.pull(new RemoteFile("/sdcard/dump.bin"), local);
+            fail("Expected the truncated range to fail");
+        } catch (JadbException e) {
+            assertEquals(1, stateDirectory.list().length);
+        }
+        transfer.pull(new RemoteFile("/sdcard/dump.bin"), local);
+
+        assertArrayEquals(content, Files.readAllBytes(local.toPath()));
+        assertEquals(0, stateDirectory.list().length);
+    }
+
+    @Test
+    public void testPullRestartsWhenRemoteChanged() throws Exception {
+        byte[] content = randomBytes(BLOCK_SIZE + 10);
+        server.expectStat(DEVICE_SERIAL, "/sdcard/dump.bin").withFile(content.length, 1000);
+        server.expectShell(DEVICE_SERIAL, ddRead(0)).returns(Arrays.copyOfRange(content, 0, BLOCK_SIZE));
+        server.expectShell(DEVICE_SERIAL, ddRead(1)).returns("");
+        server.expectStat(DEVICE_SERIAL, "/sdcard/dump.bin").withFile(content.length, 2000);
+        server.expectShell(DEVICE_SERIAL, ddRead(0)).returns(Arrays.copyOfRange(content, 0, BLOCK_SIZE));
+        server.expectShell(DEVICE_SERIAL, ddRead(1)).returns(Arrays.copyOfRange(content, BLOCK_SIZE, content.length));
+
+        ResumableTransfer transfer = new ResumableTransfer(device, stateDirectory);
+        transfer.setChunkSize(BLOCK_SIZE);
+        File local = new File(temporaryFolder.getRoot(), "dump.bin");
+        try {
+            transfer.pull(new RemoteFile("/sdcard/dump.bin"), local);
+            fail("Expected the empty range to fail");
+        } catch (JadbException e) {
+            // Expected
+        }
+        transfer.pull(new RemoteFile("/sdcard/dump.bin"), local);
+
+        assertArrayEquals(content, Files.readAllBytes(local.toPath()));
+    }
+
+    @Test
+    public void testPushResumesAfterFailure() throws Exception {
+        byte[] content = randomBytes(2 * BLOCK_SIZE + BLOCK_SIZE / 2);
+        File local = temporaryFolder.newFile("dump.bin");
+        Files.write(local.toPath(), content);
+        local.setLastModified(1500000000000L);
+        expectWrite(server, content, 0, BLOCK_SIZE, null);
+        expectWrite(server, content, 1, 2 * BLOCK_SIZE,
+                "dd: /sdcard/dump.bin: No space left on device\nx-jadb-exit-status:1\n");
+        expectPrefix(server, BLOCK_SIZE, Arrays.copyOf(content, BLOCK_SIZE));
+        expectWrite(server, content, 1, 2 * BLOCK_SIZE, null);
+        expectWrite(server, content, 2, content.length, null);
+        expectFinish(server, content);
+
+        ResumableTransfer transfer = new ResumableTransfer(device, stateDirectory);
+        transfer.setChunkSize(BLOCK_SIZE);
+        try {
+            transfer.push(local, new RemoteFile("/sdcard/dump.bin"));
+            fail("Expected the device to run out of space");
+        } catch (JadbException e) {
+            assertEquals(1, stateDirectory.list().length);
+        }
+        transfer.push(local, new RemoteFile("/sdcard/dump.bin"));
+
+        assertEquals(0, stateDirectory.list().length);
+    }
+
+    @Test
+    public void testPushDoesNotSaveChunkWhichDiffers() throws Exception {
+        byte[] content = randomBytes(2 * BLOCK_SIZE);
+        File local = temporaryFolder.newFile("dump.bin");
+        Files.write(local.toPath(), content);
+        local.setLastModified(1500000000000L);
+        expectWrite(server, content, 0, BLOCK_SIZE, null);
+        // dd succeeded, yet the range reads back as something else
+        expectWrite(server, content, 1, content.length,
+                "d41d8cd98f00b204e9800998ecf8427e  -\nx-jadb-exit-status:0\n");
+        expectPrefix(server, BLOCK_SIZE, Arrays.copyOf(content, BLOCK_SIZE));
+        expectWrite(server, content, 1, content.length, null);
+        expectFinish(server, content);
+
+        ResumableTransfer transfer = new ResumableTransfer(device, stateDirectory);
+        transfer.setChunkSize(BLOCK_SIZE);
+        try {
+            transfer.push(local, new RemoteFile("/sdcard/dump.bin"));
+            fail("Expected the second chunk to fail its check");
+        } catch (JadbException e) {
+            assertEquals(1, stateDirectory.list().length);
+        }
+        transfer.push(local, new RemoteFile("/sdcard/dump.bin"));
+    }
+
+    @Test
+    public void testPushRestartsWhenRemoteRewritten() throws Exception {
+        byte[] content = randomBytes(2 * BLOCK_SIZE);
+        File local = temporaryFolder.newFile("dump.bin");
+        Files.write(local.toPath(), content);
+        local.setLastModified(1500000000000L);
+        expectWrite(server, content, 0, BLOCK_SIZE, null);
+        expectWrite(server, content, 1, content.length,
+                "dd: /sdcard/dump.bin: No space left on device\nx-jadb-exit-status:1\n");
+        // Something else wrote to the remote file in between, keeping its size
+        expectPrefix(server, BLOCK_SIZE, new byte[BLOCK_SIZE]);
+        expectWrite(server, content, 0, BLOCK_SIZE, null);
+        expectWrite(server, content, 1, content.length, null);
+        expectFinish(server, content);
+
+        ResumableTransfer transfer = new ResumableTransfer(device, stateDirectory);
+        transfer.setChunkSize(BLOCK_SIZE);
+        try {
+            transfer.push(local, new RemoteFile("/sdcard/dump.bin"));
+            fail("Expected the device to run out of space");
+        } catch (JadbException e) {
+            assertEquals(1, stateDirectory.list().length);
+        }
+        transfer.push(local, new RemoteFile("/sdcard/dump.bin"));
+
+        assertEquals(0, stateDirectory.list().length);
+    }
+
+    @Test
+    public void testPushRetriesFinishOfPartialLastBlock() throws Exception {
+        byte[] content = randomBytes(2 * BLOCK_SIZE + BLOCK_SIZE / 2);
+        File local = temporaryFolder.newFile("dump.bin");
+        Files.write(local.toPath(), content);
+        local.setLastModified(1500000000000L);
+        expectWrite(server, content, 0, BLOCK_SIZE, null);
+        expectWrite(server, content, 1, 2 * BLOCK_SIZE, null);
+        expectWrite(server, content, 2, content.length, null);
+        server.expectShell(DEVICE_SERIAL, "truncate '-s' '" + content.length + "' '/sdcard/dump.bin'; echo x-jadb-exit-status:$?; "
+                + "chmod '664' '/sdcard/dump.bin'; echo x-jadb-exit-status:$?; "
+                + "touch '-m' '-d' '@1500000000' '/sdcard/dump.bin'; echo x-jadb-exit-status:$?")
+                .returns("truncate: Read-only file system\nx-jadb-exit-status:1\nx-jadb-exit-status:1\n"
+                        + "x-jadb-exit-status:1\n");
+        // Every chunk was written, the partial last block is sent again
+        expectPrefix(server, 2 * BLOCK_SIZE, Arrays.copyOf(content, 2 * BLOCK_SIZE));
+        expectWrite(server, content, 2, content.length, null);
+        expectFinish(server, content);
+
+        ResumableTransfer transfer = new ResumableTransfer(device, stateDirectory);
+        transfer.setChunkSize(BLOCK_SIZE);
+        try {
+            transfer.push(local, new RemoteFile("/sdcard/dump.bin"));
+            fail("Expected the truncate to fail");
+        } catch (JadbException e) {
+            assertEquals(1, stateDirectory.list().length);
+        }
+        transfer.push(local, new RemoteFile("/sdcard/dump.bin"));
+
+        assertEquals(0, stateDirectory.list().length);
+    }
+}
@@ -0,0 +1,108 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.managers.AccessUnit;
+import se.vidstige.jadb.managers.AccessUnitSplitter;
+import se.vidstige.jadb.managers.ScreenStream;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScreenStreamTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+
+    // SPS, PPS and an IDR slice make up the first frame
+    private static final byte[] KEY_FRAME = {
+            0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1f,
+            0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80,
+            0, 0, 1, 0x65, (byte) 0x88, 0x00, 0x00, 0x03, 0x00, 0x21};
+    // Two slices of the same picture, the second one has first_mb_in_slice != 0
+    private static final byte[] FRAME = {
+            0, 0, 0, 1, 0x41, (byte) 0x9a, 0x11,
+            0, 0, 1, 0x41, 0x40, 0x22};
+    private static final byte[] LAST_FRAME = {0, 0, 0, 1, 0x41, (byte) 0x9b, 0x33};
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    private static byte[] stream() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(KEY_FRAME);
+        stream.write(FRAME);
+        stream.write(LAST_FRAME);
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void testSplitAcrossChunkBoundaries() throws Exception {
+        final List<byte[]> frames = new ArrayList<>();
+        final List<Boolean> keyFrames = new ArrayList<>();
+        AccessUnitSplitter splitter = new AccessUnitSplitter(new AccessUnitSplitter.Listener() {
+            @Override
+            public void onAccessUnit(byte[] data, int length, boolean keyFrame, long timestampNanos) {
+                frames.add(Arrays.copyOf(data, length));
+                keyFrames.add(keyFrame);
+            }
+        });
+
+        byte[] data = stream();
+        for (int i = 0; i < data.length; i++) {
+            splitter.feed(data, i, 1, i);
+        }
+        splitter.finish();
+
+        assertEquals(3, frames.size());
+        assertArrayEquals(KEY_FRAME, frames.get(0));
+        assertArrayEquals(FRAME, frames.get(1));
+        assertArrayEquals(LAST_FRAME, frames.get(2));
+        assertEquals(Arrays.asList(true, false, false), keyFrames);
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        server.expectShell(DEVICE_SERIAL, "screenrecord '--output-format=h264' '--bit-rate' '4000000' '-'").returns(stream());
+        final List<byte[]> frames = new ArrayList<>();
+        final List<Boolean> keyFrames = new ArrayList<>();
+
+        new ScreenStream(device).bitRate(4000000).bufferedFrames(1).stream(new ScreenStream.Listener() {
+            @Override
+            public boolean onAccessUnit(AccessUnit unit) {
+                frames.add(Arrays.copyOf(unit.getData(), unit.getLength()));
+                keyFrames.add(unit.isKeyFrame());
+                return true;
+            }
+        });
+
+        assertEquals(3, frames.size());
+        assertArrayEquals(KEY_FRAME, frames.get(0));
+        assertTrue(keyFrames.get(0));
+        assertArrayEquals(LAST_FRAME, frames.get(2));
+        assertFalse(keyFrames.get(2));
+    }
+}
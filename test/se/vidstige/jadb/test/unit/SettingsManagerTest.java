@@ -0,0 +1,77 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.managers.SettingsManager;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class SettingsManagerTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    @Test
+    public void testGetAll() throws Exception {
+        //Arrange
+        server.expectShell(DEVICE_SERIAL, "settings 'get' 'global' 'adb_enabled'; echo x-jadb-exit-status:$?; " +
+                "settings 'get' 'global' 'no_such_key'; echo x-jadb-exit-status:$?")
+                .returns("1\nx-jadb-exit-status:0\nnull\nx-jadb-exit-status:0\n");
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("adb_enabled", "1");
+        expected.put("no_such_key", null);
+
+        //Act
+        Map<String, String> actual = new SettingsManager(device)
+                .getAll(SettingsManager.Namespace.GLOBAL, Arrays.asList("adb_enabled", "no_such_key"));
+
+        //Assert
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testPutAll() throws Exception {
+        server.expectShell(DEVICE_SERIAL, "settings 'put' 'system' 'screen_brightness' '255'; echo x-jadb-exit-status:$?; " +
+                "settings 'put' 'system' 'screen_off_timeout' '1800000'; echo x-jadb-exit-status:$?")
+                .returns("x-jadb-exit-status:0\nx-jadb-exit-status:0\n");
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("screen_brightness", "255");
+        values.put("screen_off_timeout", "1800000");
+
+        new SettingsManager(device).putAll(SettingsManager.Namespace.SYSTEM, values);
+    }
+
+    @Test(expected = JadbException.class)
+    public void testPutFailure() throws Exception {
+        server.expectShell(DEVICE_SERIAL, "settings 'put' 'secure' 'location_mode' '3'; echo x-jadb-exit-status:$?")
+                .returns("java.lang.SecurityException: Permission denial\nx-jadb-exit-status:255\n");
+
+        new SettingsManager(device).put(SettingsManager.Namespace.SECURE, "location_mode", "3");
+    }
+}
@@ -0,0 +1,72 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.Test;
+import se.vidstige.jadb.SmartSocketCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class SmartSocketCodecTest {
+    private final SmartSocketCodec codec = new SmartSocketCodec();
+
+    private static ByteArrayInputStream input(String data) {
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEncodeUsesUtf8ByteLength() throws Exception {
+        //Arrange
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        //Act
+        codec.writeMessage(output, "echo fu\u00f6 \u20ac \ud83d\ude00");
+
+        //Assert
+        // 2 bytes for o umlaut, 3 for the euro sign and 4 for the emoji
+        assertEquals("0012echo fu\u00f6 \u20ac \ud83d\ude00", new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEncodeSeveralInOneWrite() throws Exception {
+        //Arrange
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        //Act
+        codec.encode("host:transport:serial-123");
+        codec.encode("sync:");
+        codec.flushTo(output);
+
+        //Assert
+        assertEquals("0019host:transport:serial-1230005sync:", new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStatus() throws Exception {
+        ByteArrayInputStream input = input("OKAYFAIL");
+        assertEquals(SmartSocketCodec.OKAY, codec.readStatus(input));
+        assertEquals(SmartSocketCodec.FAIL, codec.readStatus(input));
+        assertEquals("FAIL", SmartSocketCodec.statusToString(SmartSocketCodec.FAIL));
+    }
+
+    @Test
+    public void testReadMessage() throws Exception {
+        ByteArrayInputStream input = input("0005fu\u00f6 000Adevice\tabc");
+        assertEquals("fu\u00f6 ", codec.readMessage(input));
+        assertEquals("device\tabc", codec.readMessage(input));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidLength() throws Exception {
+        codec.readMessage(input("00g1x"));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedMessage() throws Exception {
+        codec.readMessage(input("0010short"));
+    }
+}
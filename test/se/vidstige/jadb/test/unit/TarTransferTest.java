@@ -0,0 +1,312 @@
+package se.vidstige.jadb.test.unit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.vidstige.jadb.JadbConnection;
+import se.vidstige.jadb.JadbDevice;
+import se.vidstige.jadb.JadbException;
+import se.vidstige.jadb.RemoteFile;
+import se.vidstige.jadb.managers.TarTransfer;
+import se.vidstige.jadb.test.fakes.FakeAdbServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TarTransferTest {
+    private static final String DEVICE_SERIAL = "serial-123";
+    private static final String TAR_COMMAND =
+            "tar -cf - -C '/sdcard/dir' . 2>/dev/null; echo x-jadb-exit-status:$?";
+    private static final String PUSH_COMMAND =
+            "mkdir -p '/sdcard/dir' && tar -xf - -C '/sdcard/dir'; echo x-jadb-exit-status:$?";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FakeAdbServer server;
+    private JadbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeAdbServer(15037);
+        server.start();
+        server.add(DEVICE_SERIAL);
+        device = new JadbConnection("localhost", 15037).getDevices().get(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        server.verifyExpectations();
+    }
+
+    private static void putString(byte[] header, int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+
+    private static void addEntry(ByteArrayOutputStream archive, String name, char type, int mode, byte[] content,
+                                 long lastModified) throws IOException {
+        addEntry(archive, name, type, mode, content, lastModified, "");
+    }
+
+    private static void addLink(ByteArrayOutputStream archive, String name, char type, String linkName)
+            throws IOException {
+        //noinspection OctalInteger
+        addEntry(archive, name, type, 0777, new byte[0], 1000, linkName);
+    }
+
+    private static void addEntry(ByteArrayOutputStream archive, String name, char type, int mode, byte[] content,
+                                 long lastModified, String linkName) throws IOException {
+        byte[] header = new byte[512];
+        putString(header, 0, name);
+        putString(header, 157, linkName);
+        putString(header, 100, String.format("%07o", mode));
+        putString(header, 108, "0000000");
+        putString(header, 116, "0000000");
+        putString(header, 124, String.format("%011o", content.length));
+        putString(header, 136, String.format("%011o", lastModified));
+        header[156] = (byte) type;
+        putString(header, 257, "ustar");
+        putString(header, 263, "00");
+        int checksum = 0;
+        for (int i = 0; i < header.length; i++) {
+            checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+        putString(header, 148, String.format("%06o", checksum));
+        header[155] = ' ';
+        archive.write(header);
+        archive.write(content);
+        archive.write(new byte[(512 - content.length % 512) % 512]);
+    }
+
+    @Test
+    public void testPullExtractsArchive() throws Exception {
+        byte[] big = new byte[300 * 1024];
+        new Random(1).nextBytes(big);
+        StringBuilder longName = new StringBuilder("./sub/");
+        for (int i = 0; i < 30; i++) longName.append("long");
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        //noinspection OctalInteger
+        addEntry(archive, "./", '5', 0755, new byte[0], 1000);
+        //noinspection OctalInteger
+        addEntry(archive, "./a.txt", '0', 0640, "hello".getBytes(StandardCharsets.UTF_8), 2000);
+        //noinspection OctalInteger
+        addEntry(archive, "./sub/", '5', 0755, new byte[0], 3000);
+        //noinspection OctalInteger
+        addEntry(archive, "./sub/big.bin", '0', 0644, big, 4000);
+        addEntry(archive, "././@LongLink", 'L', 0, (longName + "\0").getBytes(StandardCharsets.UTF_8), 0);
+        //noinspection OctalInteger
+        addEntry(archive, longName.substring(0, 99), '0', 0644, "x".getBytes(StandardCharsets.UTF_8), 5000);
+        archive.write(new byte[1024]);
+        archive.write("x-jadb-exit-status:0\n".getBytes(StandardCharsets.UTF_8));
+        server.expectShell(DEVICE_SERIAL, TAR_COMMAND).returns(archive.toByteArray());
+
+        File local = new File(temporaryFolder.getRoot(), "dir");
+        new TarTransfer(device, 2).pull(new RemoteFile("/sdcard/dir"), local);
+
+        File a = new File(local, "a.txt");
+        assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(a.toPath()));
+        assertEquals(2000000, a.lastModified());
+        assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(a.toPath())));
+        assertArrayEquals(big, Files.readAllBytes(new File(local, "sub/big.bin").toPath()));
+        assertEquals(4000000, new File(local, "sub/big.bin").lastModified());
+        assertEquals(1, new File(local, longName.toString()).length());
+        assertEquals(3000000, new File(local, "sub").lastModified());
+    }
+
+    private void expectArchive(ByteArrayOutputStream archive) throws IOException {
+        archive.write(new byte[1024]);
+        archive.write("x-jadb-exit-status:0\n".getBytes(StandardCharsets.UTF_8));
+        server.expectShell(DEVICE_SERIAL, TAR_COMMAND).returns(archive.toByteArray());
+    }
+
+    @Test
+    public void testPullRejectsHardLinkThroughSymbolicLink() throws Exception {
+        File secret = temporaryFolder.newFile("secret.txt");
+        Files.write(secret.toPath(), "secret".getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        addLink(archive, "./s", '2', secret.getAbsolutePath());
+        addLink(archive, "./copy", '1', "./s");
+        expectArchive(archive);
+
+        File local = new File(temporaryFolder.getRoot(), "dir");
+        try {
+            new TarTransfer(device).pull(new RemoteFile("/sdcard/dir"), local);
+            fail("Expected the hard link to be rejected");
+        } catch (JadbException e) {
+            // expected
+        }
+        assertFalse(new File(local, "copy").exists());
+    }
+
+    @Test
+    public void testPullRejectsHardLinkThroughLinkedDirectory() throws Exception {
+        File outside = temporaryFolder.newFolder("outside");
+        Files.write(new File(outside, "passwd").toPath(), "secret".getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        addLink(archive, "./d", '2', outside.getAbsolutePath());
+        addLink(archive, "./copy", '1', "./d/passwd");
+        expectArchive(archive);
+
+        File local = new File(temporaryFolder.getRoot(), "dir");
+        try {
+            new TarTransfer(device).pull(new RemoteFile("/sdcard/dir"), local);
+            fail("Expected the hard link to be rejected");
+        } catch (JadbException e) {
+            // expected
+        }
+        assertFalse(new File(local, "copy").exists());
+    }
+
+    @Test
+    public void testPullDoesNotChangeLinkedDirectory() throws Exception {
+        File outside = temporaryFolder.newFolder("outside");
+        Files.setPosixFilePermissions(outside.toPath(), PosixFilePermissions.fromString("rwx------"));
+        assertTrue(outside.setLastModified(7000000));
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        addLink(archive, "./d", '2', outside.getAbsolutePath());
+        //noinspection OctalInteger
+        addEntry(archive, "./d/", '5', 0755, new byte[0], 1000);
+        expectArchive(archive);
+
+        File local = new File(temporaryFolder.getRoot(), "dir");
+        new TarTransfer(device).pull(new RemoteFile("/sdcard/dir"), local);
+
+        assertFalse(Files.isSymbolicLink(new File(local, "d").toPath()));
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(outside.toPath())));
+        assertEquals(7000000, outside.lastModified());
+    }
+
+    @Test
+    public void testPullFallsBackWithoutTar() throws Exception {
+        server.expectShell(DEVICE_SERIAL, TAR_COMMAND).returns("x-jadb-exit-status:127\n");
+        server.expectList(DEVICE_SERIAL, "/sdcard/dir")
+                .withFile("a.txt", 5, 2000)
+                .withDir("sub", 3000);
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/sdcard/dir/a.txt")).withContent("hello");
+        server.expectList(DEVICE_SERIAL, "/sdcard/dir/sub")
+                .withFile("b.txt", 1, 4000);
+        server.expectPull(DEVICE_SERIAL, new RemoteFile("/sdcard/dir/sub/b.txt")).withContent("b");
+
+        File local = new File(temporaryFolder.getRoot(), "dir");
+        new TarTransfer(device).pull(new RemoteFile("/sdcard/dir"), local);
+
+        assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(new File(local, "a.txt").toPath()));
+        assertEquals(2000000, new File(local, "a.txt").lastModified());
+        assertArrayEquals("b".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(new File(local, "sub/b.txt").toPath()));
+        assertEquals(3000000, new File(local, "sub").lastModified());
+    }
+
+    @Test(expected = JadbException.class)
+    public void testPullReportsMissingDirectory() throws Exception {
+        server.expectShell(DEVICE_SERIAL, TAR_COMMAND).returns("x-jadb-exit-status:1\n");
+
+        new TarTransfer(device).pull(new RemoteFile("/sdcard/dir"), new File(temporaryFolder.getRoot(), "dir"));
+    }
+
+    @Test(expected = JadbException.class)
+    public void testPullReportsUnreadableFiles() throws Exception {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        //noinspection OctalInteger
+        addEntry(archive, "./", '5', 0755, new byte[0], 1000);
+        archive.write(new byte[1024]);
+        archive.write("x-jadb-exit-status:1\n".getBytes(StandardCharsets.UTF_8));
+        server.expectShell(DEVICE_SERIAL, TAR_COMMAND).returns(archive.toByteArray());
+
+        new TarTransfer(device).pull(new RemoteFile("/sdcard/dir"), new File(temporaryFolder.getRoot(), "dir"));
+    }
+
+    @Test
+    public void testPushStreamsArchive() throws Exception {
+        File local = temporaryFolder.newFolder("dir");
+        File a = new File(local, "a.txt");
+        Files.write(a.toPath(), "hello".getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(a.toPath(), PosixFilePermissions.fromString("rw-r-----"));
+        a.setLastModified(2000000);
+        File sub = new File(local, "sub");
+        File b = new File(sub, "b.txt");
+        Files.createDirectories(sub.toPath());
+        Files.write(b.toPath(), "b".getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(b.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+        b.setLastModified(4000000);
+        Files.setPosixFilePermissions(sub.toPath(), PosixFilePermissions.fromString("rwxr-xr-x"));
+        sub.setLastModified(3000000);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        //noinspection OctalInteger
+        addEntry(archive, "a.txt", '0', 0640, "hello".getBytes(StandardCharsets.UTF_8), 2000);
+        //noinspection OctalInteger
+        addEntry(archive, "sub/", '5', 0755, new byte[0], 3000);
+        //noinspection OctalInteger
+        addEntry(archive, "sub/b.txt", '0', 0644, "b".getBytes(StandardCharsets.UTF_8), 4000);
+        archive.write(new byte[1024]);
+        server.expectShell(DEVICE_SERIAL, PUSH_COMMAND).withStdin(archive.toByteArray())
+                .returns("x-jadb-exit-status:0\n");
+        server.expectStat(DEVICE_SERIAL, "/sdcard/dir/a.txt").withFile(5, 2000);
+        server.expectStat(DEVICE_SERIAL, "/sdcard/dir/sub/b.txt").withFile(1, 4000);
+
+        final List<String> progress = new ArrayList<>();
+        new TarTransfer(device).push(local, new RemoteFile("/sdcard/dir"), new TarTransfer.Listener() {
+            @Override
+            public void onFile(RemoteFile remote, long size) {
+                progress.add(remote.getPath() + " " + size);
+            }
+        });
+
+        assertEquals(Arrays.asList("/sdcard/dir/a.txt 5", "/sdcard/dir/sub/b.txt 1"), progress);
+    }
+
+    @Test(expected = JadbException.class)
+    public void testPushVerifiesSizes() throws Exception {
+        File local = temporaryFolder.newFolder("dir");
+        File a = new File(local, "a.txt");
+        Files.write(a.toPath(), "hello".getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(a.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+        a.setLastModified(2000000);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        //noinspection OctalInteger
+        addEntry(archive, "a.txt", '0', 0644, "hello".getBytes(StandardCharsets.UTF_8), 2000);
+        archive.write(new byte[1024]);
+        server.expectShell(DEVICE_SERIAL, PUSH_COMMAND).withStdin(archive.toByteArray())
+                .returns("x-jadb-exit-status:0\n");
+        server.expectStat(DEVICE_SERIAL, "/sdcard/dir/a.txt");
+
+        new TarTransfer(device).push(local, new RemoteFile("/sdcard/dir"));
+    }
+
+    @Test(expected = JadbException.class)
+    public void testPushReportsTarFailure() throws Exception {
+        File local = temporaryFolder.newFolder("dir");
+        File a = new File(local, "a.txt");
+        Files.write(a.toPath(), "hello".getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(a.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+        a.setLastModified(2000000);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        //noinspection OctalInteger
+        addEntry(archive, "a.txt", '0', 0644, "hello".getBytes(StandardCharsets.UTF_8), 2000);
+        archive.write(new byte[1024]);
+        server.expectShell(DEVICE_SERIAL, PUSH_COMMAND).withStdin(archive.toByteArray())
+                .returns("tar: a.txt: Read-only file system\nx-jadb-exit-status:1\n");
+
+        new TarTransfer(device).push(local, new RemoteFile("/sdcard/dir"));
+    }
+}